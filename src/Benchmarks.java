@@ -0,0 +1,438 @@
+import static java.nio.channels.SelectionKey.OP_READ;
+
+import java.io.IOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.Selector;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Benchmarks measures the packet codec and the reliable transport so that
+ * changes to either can be compared against a baseline.
+ * <p>
+ * The codec benchmarks time {@link Packet.Builder#create}, {@link Packet#toBytes},
+ * {@link Packet#toBuffer}, {@link Packet#fromBytes}, {@link Packet#fromBuffer}
+ * and the {@link PacketView} fast path for payload sizes up to
+ * {@link Packet#MAX_PAYLOAD_LEN}. Each is warmed up first, then measured over
+ * several fixed-length iterations and reported in ns/op together with the bytes
+ * the benchmark thread allocated per operation.
+ * <p>
+ * The transport benchmarks run a {@link ReliableChannel} against an in-process
+ * responder through an in-process {@link Router}, for several drop rates and
+ * window sizes. They report bulk throughput, request/response latency
+ * percentiles and the allocations and GC activity of the whole JVM.
+ * <p>
+ * The compression benchmarks time {@link Compression#encode} and
+ * {@link Compression#decode} of JSON responses for each codec, and report the
+ * size they compress to.
+ * <pre>
+ *   java Benchmarks [codec] [compression] [transport]
+ * </pre>
+ */
+public class Benchmarks {
+
+    static int warmupIterations = 5;
+    static int measurementIterations = 10;
+    static long iterationMillis = 200;
+
+    static int[] payloadSizes = {0, 64, 512, Packet.MAX_PAYLOAD_LEN};
+    static int[] messageSizes = {1024, 64 * 1024, 1024 * 1024};
+    static String[] compressions = {"lz", "deflate:1", "deflate:6", "deflate:9"};
+    static double[] dropRates = {0.0, 0.01, 0.05};
+    static int[] windowSizes = {8, 32, 128};
+    static int transferSize = 1024 * 1024;
+    static int transfers = 5;
+    static int roundTrips = 200;
+    static long timeout = 30000;
+
+    // Results are folded into this so that the JIT cannot discard the work.
+    static volatile int sink;
+
+    private static final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+    /**
+     * An operation to benchmark; its result is consumed so it has to be computed.
+     */
+    interface Operation {
+        Object run() throws Exception;
+    }
+
+    public static void main(String[] args) throws Exception {
+        List<String> argList = Arrays.asList(args);
+        boolean all = argList.isEmpty();
+        if (all || argList.contains("codec")) {
+            codecBenchmarks();
+        }
+        if (all || argList.contains("compression")) {
+            compressionBenchmarks();
+        }
+        if (all || argList.contains("transport")) {
+            transportBenchmarks();
+        }
+    }
+
+    private static void codecBenchmarks() throws Exception {
+        InetAddress address = InetAddress.getLoopbackAddress();
+        System.out.printf("%-24s %6s %12s %10s %10s%n", "Benchmark", "size", "ns/op", "error", "B/op");
+
+        for (int size : payloadSizes) {
+            byte[] payload = new byte[size];
+            Packet packet = new Packet(Packet.DATA, 1, address, 8080, payload);
+            byte[] raw = packet.toBytes();
+            ByteBuffer buf = packet.toBuffer();
+            ByteBuffer direct = ByteBuffer.allocateDirect(Packet.MAX_LEN);
+            PacketView view = new PacketView();
+
+            measure("Builder.create", size, () -> new Packet.Builder().setType(Packet.DATA).setSequenceNumber(1)
+                    .setPeerAddress(address).setPortNumber(8080).setPayload(payload).create());
+            measure("Packet.toBytes", size, packet::toBytes);
+            measure("Packet.toBuffer", size, packet::toBuffer);
+            measure("Packet.fromBytes", size, () -> Packet.fromBytes(raw));
+            measure("Packet.fromBuffer", size, () -> {
+                buf.rewind();
+                return Packet.fromBuffer(buf);
+            });
+            measure("Packet.write(direct)", size, () -> {
+                direct.clear();
+                packet.write(direct);
+                return direct.position();
+            });
+            measure("PacketView.wrap", size, () -> {
+                buf.rewind();
+                view.wrap(buf);
+                return view.getSequenceNumber() + view.getPeerPort() + view.getPayloadLength();
+            });
+        }
+    }
+
+    private static void compressionBenchmarks() throws Exception {
+        System.out.printf("%-24s %6s %12s %10s %10s%n", "Benchmark", "size", "ns/op", "error", "B/op");
+
+        for (int size : messageSizes) {
+            byte[] message = jsonMessage(size);
+            for (String spec : compressions) {
+                Compression compression = Compression.parse(spec);
+                ByteBuffer[] parts = {ByteBuffer.wrap(message)};
+                ByteBuffer encoded = ByteBuffer.wrap(toBytes(compression.encode(parts)));
+                System.out.printf("%-24s %6d %12s %10.3f%n", spec + " ratio", size, "", (double) encoded.remaining() / size);
+                measure(spec + ".encode", size, () -> compression.encode(parts));
+                measure(spec + ".decode", size, () -> Compression.decode(encoded));
+            }
+        }
+    }
+
+    /**
+     * Returns size bytes of JSON like the responses of the server.
+     */
+    private static byte[] jsonMessage(int size) {
+        StringBuilder json = new StringBuilder("[\n");
+        for (int i = 0; json.length() < size; i++) {
+            json.append("{\"args\":{},\"headers\":{\"Connection\":\"keep-alive\",\"Host\":\"localhost:8080\"},")
+                    .append("\"data\":\"line ").append(i * 7919 % 100003).append("\",\"status\":\"HTTP/1.1 200 OK\",")
+                    .append("\"origin\":\"127.0.0.1\",\"url\":\"http://localhost:8080/get/").append(i).append(".txt\"},\n");
+        }
+        return Arrays.copyOf(json.toString().getBytes(), size);
+    }
+
+    private static byte[] toBytes(ByteBuffer[] parts) {
+        int length = 0;
+        for (ByteBuffer part : parts) {
+            length += part.remaining();
+        }
+        ByteBuffer bytes = ByteBuffer.allocate(length);
+        for (ByteBuffer part : parts) {
+            bytes.put(part.duplicate());
+        }
+        return bytes.array();
+    }
+
+    /**
+     * Runs the operation for the warmup iterations, then reports the mean time and
+     * allocation per operation over the measurement iterations.
+     */
+    private static void measure(String name, int size, Operation operation) throws Exception {
+        for (int i = 0; i < warmupIterations; i++) {
+            iteration(operation, null);
+        }
+
+        double[] nanosPerOp = new double[measurementIterations];
+        long[] allocation = new long[2];
+        for (int i = 0; i < measurementIterations; i++) {
+            nanosPerOp[i] = iteration(operation, allocation);
+        }
+
+        double mean = 0;
+        for (double n : nanosPerOp) {
+            mean += n;
+        }
+        mean /= nanosPerOp.length;
+        double variance = 0;
+        for (double n : nanosPerOp) {
+            variance += (n - mean) * (n - mean);
+        }
+        double error = Math.sqrt(variance / Math.max(1, nanosPerOp.length - 1));
+
+        System.out.printf("%-24s %6d %12.2f %10.2f %10.1f%n", name, size, mean, error,
+                (double) allocation[0] / allocation[1]);
+    }
+
+    /**
+     * Runs the operation for one iteration and returns its time per operation.
+     * Allocated bytes and operations are added to allocation, if given.
+     */
+    private static double iteration(Operation operation, long[] allocation) throws Exception {
+        long deadline = System.nanoTime() + iterationMillis * 1_000_000L;
+        long allocatedBefore = allocatedBytes();
+        long start = System.nanoTime();
+        long ops = 0;
+        int result = 0;
+        long end;
+        do {
+            // Check the clock every 256 operations only, to keep it out of the measurement.
+            for (int i = 0; i < 256; i++) {
+                result += System.identityHashCode(operation.run());
+            }
+            ops += 256;
+        } while ((end = System.nanoTime()) < deadline);
+        long allocated = allocatedBytes() - allocatedBefore;
+        sink += result;
+
+        if (allocation != null) {
+            allocation[0] += allocated;
+            allocation[1] += ops;
+        }
+        return (double) (end - start) / ops;
+    }
+
+    /**
+     * Returns the bytes the current thread has allocated, or 0 if the JVM cannot
+     * tell.
+     */
+    private static long allocatedBytes() {
+        if (threads instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return 0;
+    }
+
+    /**
+     * Returns the bytes allocated by every live thread of the JVM, or 0 if the JVM
+     * cannot tell.
+     */
+    private static long totalAllocatedBytes() {
+        if (!(threads instanceof com.sun.management.ThreadMXBean)) {
+            return 0;
+        }
+        long total = 0;
+        for (long allocated : ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(
+                threads.getAllThreadIds())) {
+            total += Math.max(0, allocated);
+        }
+        return total;
+    }
+
+    private static long gcCount() {
+        long count = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            count += Math.max(0, gc.getCollectionCount());
+        }
+        return count;
+    }
+
+    private static long gcMillis() {
+        long millis = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            millis += Math.max(0, gc.getCollectionTime());
+        }
+        return millis;
+    }
+
+    private static void transportBenchmarks() throws Exception {
+        System.out.printf("%-6s %6s %10s %10s %10s %10s %12s %6s %6s%n", "drop", "window", "MB/s", "p50 us",
+                "p99 us", "max us", "MB alloc", "GCs", "GC ms");
+
+        try (Responder responder = new Responder()) {
+            responder.start();
+            for (double dropRate : dropRates) {
+                for (int windowSize : windowSizes) {
+                    Router router = new Router.Builder().setPort(0).setDropRate(dropRate).setSeed(1).create();
+                    router.start();
+                    try {
+                        transport(new InetSocketAddress("localhost", router.getPort()), responder.getAddress(),
+                                dropRate, windowSize);
+                    } finally {
+                        router.close();
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Measures one configuration over a fresh connection: a few warmup transfers,
+     * then bulk transfers of transferSize bytes, then small request/response round
+     * trips.
+     */
+    private static void transport(SocketAddress routerAddress, InetSocketAddress responderAddress, double dropRate,
+                                  int windowSize) throws Exception {
+        try (ReliableChannel channel = new ReliableChannel(routerAddress, responderAddress, windowSize,
+                CongestionControl.create("reno"))) {
+            channel.connect(timeout);
+            for (int i = 0; i < 2; i++) {
+                request(channel, transferSize);
+            }
+
+            long allocatedBefore = totalAllocatedBytes();
+            long gcCountBefore = gcCount();
+            long gcMillisBefore = gcMillis();
+
+            long start = System.nanoTime();
+            for (int i = 0; i < transfers; i++) {
+                request(channel, transferSize);
+            }
+            double seconds = (System.nanoTime() - start) / 1e9;
+
+            long[] latencies = new long[roundTrips];
+            for (int i = 0; i < roundTrips; i++) {
+                long sent = System.nanoTime();
+                request(channel, 0);
+                latencies[i] = System.nanoTime() - sent;
+            }
+            Arrays.sort(latencies);
+
+            System.out.printf("%-6.2f %6d %10.2f %10d %10d %10d %12.1f %6d %6d%n", dropRate, windowSize,
+                    (double) transfers * transferSize / (1024 * 1024) / seconds,
+                    latencies[roundTrips / 2] / 1000, latencies[roundTrips * 99 / 100] / 1000,
+                    latencies[roundTrips - 1] / 1000,
+                    (totalAllocatedBytes() - allocatedBefore) / (1024.0 * 1024), gcCount() - gcCountBefore,
+                    gcMillis() - gcMillisBefore);
+
+            channel.disconnect(timeout);
+        }
+    }
+
+    /**
+     * Asks the responder for a response of the given size and waits for it.
+     */
+    private static void request(ReliableChannel channel, int responseSize) throws IOException {
+        channel.send(RequestFrame.encode(responseSize, new byte[0]));
+        ByteBuffer response = channel.receive(timeout);
+        if (response == null || response.remaining() != RequestFrame.HEADER_LEN + responseSize) {
+            throw new IOException("No response from responder");
+        }
+    }
+
+    /**
+     * Responder is a minimal server on its own thread. It answers every request
+     * frame with a response of as many bytes as the request id says, so the
+     * transport is measured without the file handling of the real Server.
+     */
+    private static class Responder implements AutoCloseable {
+        private final DatagramChannel channel;
+        private final Selector selector;
+        private final BufferPool pool = new BufferPool(Packet.MAX_LEN, BufferPool.DEFAULT_MAX_POOLED, false);
+        private final Thread thread = new Thread(this::run, "responder");
+        private volatile boolean running = true;
+        private ReliableConnection connection;
+
+        Responder() throws IOException {
+            channel = DatagramChannel.open();
+            channel.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+            channel.configureBlocking(false);
+            selector = Selector.open();
+            channel.register(selector, OP_READ);
+        }
+
+        InetSocketAddress getAddress() throws IOException {
+            return (InetSocketAddress) channel.getLocalAddress();
+        }
+
+        void start() {
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        private void run() {
+            try {
+                PacketView packet = new PacketView();
+                while (running) {
+                    long now = System.currentTimeMillis();
+                    long next = connection == null ? Long.MAX_VALUE : connection.nextTimeout();
+                    selector.select(next == Long.MAX_VALUE ? 0 : Math.max(1, next - now));
+                    selector.selectedKeys().clear();
+
+                    now = System.currentTimeMillis();
+                    for (int batch = 0; batch < ReliableConnection.MAX_RECEIVE_BATCH; batch++) {
+                        ByteBuffer buf = pool.acquire();
+                        SocketAddress router = channel.receive(buf);
+                        if (router == null) {
+                            pool.release(buf);
+                            break;
+                        }
+                        buf.flip();
+                        if (!PacketView.isValid(buf)) {
+                            pool.release(buf);
+                            continue;
+                        }
+                        packet.wrap(buf);
+                        if (packet.getType() == Packet.SYN && (connection == null
+                                || connection.getPeerInitialSequenceNumber() != packet.getSequenceNumber())) {
+                            if (connection != null) {
+                                connection.close();
+                            }
+                            connection = new ReliableConnection(packet.getPeerAddress(), packet.getPeerPort(),
+                                    datagram -> channel.send(datagram, router), pool,
+                                    ReliableConnection.DEFAULT_WINDOW_SIZE, CongestionControl.create("reno"));
+                            connection.listen();
+                        }
+                        if (connection == null) {
+                            pool.release(buf);
+                            continue;
+                        }
+                        connection.onPacket(buf, now);
+                        byte[] frame;
+                        while ((frame = connection.poll(now)) != null) {
+                            int size = RequestFrame.requestId(frame);
+                            connection.send(RequestFrame.encode(size, new byte[size]), now);
+                        }
+                        if (connection.getState() == ReliableConnection.State.CLOSE_WAIT) {
+                            connection.shutdown(now);
+                        }
+                    }
+
+                    if (connection != null) {
+                        connection.onTimer(now);
+                        if (connection.getState() == ReliableConnection.State.CLOSED) {
+                            connection.close();
+                            connection = null;
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                if (running) {
+                    e.printStackTrace();
+                }
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            running = false;
+            selector.wakeup();
+            try {
+                thread.join(1000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            selector.close();
+            channel.close();
+        }
+    }
+}
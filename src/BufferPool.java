@@ -0,0 +1,99 @@
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayDeque;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * BufferPool hands out direct ByteBuffers of one datagram each and takes them back
+ * once they are no longer needed, so that the send and receive paths do not
+ * allocate in the steady state. At most maxPooled free buffers are kept; anything
+ * released beyond that is left to the garbage collector.
+ * <p>
+ * With leak tracking on, the pool remembers where every outstanding buffer was
+ * acquired and rejects buffers that are released twice or do not belong to it.
+ * <p>
+ * A pool is not thread-safe: it belongs to the thread running the channel it
+ * serves.
+ */
+public class BufferPool {
+
+    public static final int DEFAULT_MAX_POOLED = 4096;
+
+    private final int bufferSize;
+    private final int maxPooled;
+    private final boolean trackLeaks;
+    private final ArrayDeque<ByteBuffer> free = new ArrayDeque<>();
+    private final Map<ByteBuffer, Throwable> inUse = new IdentityHashMap<>();
+    private int outstanding;
+    private long allocated;
+
+    public BufferPool(int bufferSize, int maxPooled, boolean trackLeaks) {
+        this.bufferSize = bufferSize;
+        this.maxPooled = maxPooled;
+        this.trackLeaks = trackLeaks;
+    }
+
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    /**
+     * Returns a cleared big-endian buffer of bufferSize bytes.
+     */
+    public ByteBuffer acquire() {
+        ByteBuffer buf = free.poll();
+        if (buf == null) {
+            buf = ByteBuffer.allocateDirect(bufferSize).order(ByteOrder.BIG_ENDIAN);
+            allocated++;
+        }
+        buf.clear();
+        outstanding++;
+        if (trackLeaks) {
+            inUse.put(buf, new Throwable("Buffer acquired here"));
+        }
+        return buf;
+    }
+
+    /**
+     * Gives a buffer back to the pool. The caller must not touch it afterwards.
+     *
+     * @throws IllegalStateException if leak tracking is on and the buffer is not
+     *                               currently acquired from this pool
+     */
+    public void release(ByteBuffer buf) {
+        if (trackLeaks && inUse.remove(buf) == null) {
+            throw new IllegalStateException("Buffer released twice or not acquired from this pool");
+        }
+        outstanding--;
+        if (free.size() < maxPooled) {
+            free.push(buf);
+        }
+    }
+
+    /**
+     * Returns the number of buffers acquired and not yet released.
+     */
+    public int getOutstanding() {
+        return outstanding;
+    }
+
+    /**
+     * Returns the number of buffers ever allocated by the pool.
+     */
+    public long getAllocated() {
+        return allocated;
+    }
+
+    /**
+     * Prints where every outstanding buffer was acquired. Only available with leak
+     * tracking on.
+     */
+    public void reportLeaks(PrintStream out) {
+        out.println(outstanding + " buffer(s) outstanding, " + allocated + " allocated");
+        for (Throwable site : inUse.values()) {
+            site.printStackTrace(out);
+        }
+    }
+}
@@ -0,0 +1,388 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+/**
+ * Checks exercises the parts of the transport whose mistakes only show after
+ * hours of traffic: sequence numbers and ring slots wrapping around, the timer
+ * wheel cascading, codecs and parity that must give back exactly what went in,
+ * and the accuracy of the latency percentiles. Each check compares against a
+ * plain reference over a seeded random workload, prints "ok" and throws
+ * AssertionError at the first mismatch, so a failed run exits non-zero.
+ * <pre>
+ *   java Checks [wheel] [window] [unwrap] [compression] [parity] [histogram]
+ * </pre>
+ */
+public class Checks {
+
+    static long seed = 42;
+    static int wheelRounds = 100;
+    static int windowRounds = 50;
+    static int compressionRounds = 20;
+    static int parityRounds = 200;
+    static int histogramRounds = 50;
+
+    public static void main(String[] args) throws Exception {
+        List<String> argList = Arrays.asList(args);
+        boolean all = argList.isEmpty();
+        if (all || argList.contains("wheel")) {
+            run("wheel", Checks::timerWheel);
+        }
+        if (all || argList.contains("window")) {
+            run("window", Checks::sequenceWindow);
+        }
+        if (all || argList.contains("unwrap")) {
+            run("unwrap", Checks::unwrap);
+        }
+        if (all || argList.contains("compression")) {
+            run("compression", Checks::compression);
+        }
+        if (all || argList.contains("parity")) {
+            run("parity", Checks::parity);
+        }
+        if (all || argList.contains("histogram")) {
+            run("histogram", Checks::histogram);
+        }
+    }
+
+    /**
+     * A check; it throws AssertionError if what it checks does not hold.
+     */
+    interface Check {
+        void run(Random random) throws Exception;
+    }
+
+    private static void run(String name, Check check) throws Exception {
+        check.run(new Random(seed));
+        System.out.printf("%-12s ok%n", name);
+    }
+
+    /**
+     * Schedules, moves and cancels timeouts across the boundaries of every wheel
+     * and past the span of the wheels, while time jumps by anything from a tick to
+     * the whole span, and checks that each falls due on the first advance at or
+     * after its deadline, never before.
+     */
+    private static void timerWheel(Random random) {
+        for (int round = 0; round < wheelRounds; round++) {
+            long tick = round % 2 == 0 ? 1 : 1 + random.nextInt(10);
+            // Just short of the point where the slots of every wheel wrap around at once.
+            long start = ((1L << 24) - 1 - random.nextInt(64)) * tick;
+            TimerWheel<TestTimeout> wheel = new TimerWheel<>(tick, start);
+            List<TestTimeout> timeouts = new ArrayList<>();
+            for (int i = 0; i < 500; i++) {
+                timeouts.add(new TestTimeout());
+            }
+            Map<TestTimeout, Long> scheduled = new HashMap<>();
+            long now = start;
+            for (int step = 0; step < 2000; step++) {
+                TestTimeout timeout = timeouts.get(random.nextInt(timeouts.size()));
+                int op = random.nextInt(10);
+                if (op < 5) {
+                    long deadline = now + delay(random) * tick - random.nextInt(2);
+                    wheel.schedule(timeout, deadline);
+                    scheduled.put(timeout, deadline);
+                } else if (op < 6) {
+                    wheel.cancel(timeout);
+                    scheduled.remove(timeout);
+                } else {
+                    long next = wheel.nextDeadline();
+                    check(next != Long.MAX_VALUE || scheduled.isEmpty(), "wheel lost a timeout");
+                    now += random.nextInt(4) == 0 ? delay(random) * tick : random.nextInt(3 * (int) tick);
+                    wheel.advance(now);
+                    TestTimeout due;
+                    while ((due = wheel.poll()) != null) {
+                        Long deadline = scheduled.remove(due);
+                        check(deadline != null, "a timeout that is not scheduled fell due");
+                        check(deadline <= now, "timeout at " + deadline + " fell due early, at " + now);
+                    }
+                    for (long deadline : scheduled.values()) {
+                        check((deadline + tick - 1) / tick > now / tick,
+                                "timeout at " + deadline + " still waiting at " + now);
+                    }
+                }
+                check(wheel.size() == scheduled.size(), "wheel holds " + wheel.size() + " timeouts, expected "
+                        + scheduled.size());
+            }
+        }
+    }
+
+    /**
+     * Returns a delay in ticks, right at or around the span of one of the wheels,
+     * up to past the span of them all.
+     */
+    private static long delay(Random random) {
+        long span = 1L << 6 * (1 + random.nextInt(5));
+        return Math.max(0, span - 2 + random.nextInt(4)) / (random.nextBoolean() ? 1 : 1 + random.nextInt(64));
+    }
+
+    private static class TestTimeout extends TimerWheel.Timeout {
+    }
+
+    /**
+     * Slides windows of sequence numbers across the end of the ring, the 32-bit
+     * sequence field and the 63-bit extended sequence numbers, holding and
+     * removing sequence numbers at random, and checks every lookup and scan
+     * against a sorted map.
+     */
+    private static void sequenceWindow(Random random) {
+        long[] starts = {0, (1L << 32) - 100, -300, Long.MAX_VALUE / 2 - 50};
+        for (int round = 0; round < windowRounds; round++) {
+            int span = 1 + random.nextInt(300);
+            SequenceWindow<Long> window = new SequenceWindow<>(span);
+            check(window.capacity() >= span, "capacity " + window.capacity() + " below window " + span);
+            TreeMap<Long, Long> held = new TreeMap<>();
+            long base = starts[round % starts.length] + random.nextInt(window.capacity());
+            for (int step = 0; step < 20 * window.capacity(); step++) {
+                // Boxed once, so that the window and the map hold the same element.
+                Long seq = base + random.nextInt(span);
+                if (random.nextInt(3) == 0) {
+                    check(window.remove(seq) == held.remove(seq), "remove of " + seq);
+                } else {
+                    window.put(seq, seq);
+                    held.put(seq, seq);
+                }
+                int offset = random.nextInt(span);
+                long from = base + offset;
+                long end = from + random.nextInt(span - offset + 1);
+                Long next = held.ceilingKey(from);
+                check(window.next(from, end) == (next == null || next >= end ? end : next),
+                        "next in [" + from + ", " + end + ")");
+                long missing = from;
+                while (missing < end && held.containsKey(missing)) {
+                    missing++;
+                }
+                check(window.nextMissing(from, end) == missing, "next missing in [" + from + ", " + end + ")");
+                check(window.contains(seq) == held.containsKey(seq), "contains " + seq);
+                check(held.get(seq) == window.get(seq), "get " + seq);
+                check(window.size() == held.size(), "size " + window.size() + ", expected " + held.size());
+                // Slide forward past sequence numbers no longer held, as a send window does.
+                while (random.nextInt(4) == 0 && !held.containsKey(base)) {
+                    base++;
+                }
+            }
+        }
+    }
+
+    /**
+     * Checks that a 32-bit sequence field is unwrapped to the full sequence number
+     * nearest the reference, on both sides of it and across every 32-bit
+     * boundary.
+     */
+    private static void unwrap(Random random) {
+        long[] references = {0, 1, Integer.MAX_VALUE, 1L << 31, (1L << 32) - 1, 1L << 32, (1L << 32) + 1,
+                5L << 32 | 0x80000000L, Long.MAX_VALUE / 2};
+        long[] distances = {0, 1, -1, Integer.MAX_VALUE, Integer.MIN_VALUE, Integer.MAX_VALUE - 1,
+                Integer.MIN_VALUE + 1, 1 << 16, -(1 << 16)};
+        for (long reference : references) {
+            for (long distance : distances) {
+                checkUnwrap(reference, distance);
+            }
+            for (int i = 0; i < 10000; i++) {
+                checkUnwrap(reference, random.nextInt());
+            }
+        }
+        for (int i = 0; i < 100000; i++) {
+            checkUnwrap(random.nextLong() >>> 2, random.nextInt());
+        }
+    }
+
+    private static void checkUnwrap(long reference, long distance) {
+        long seq = reference + distance;
+        long unwrapped = PacketView.unwrap((int) seq, reference);
+        check(unwrapped == seq, "serial " + (int) seq + " near " + reference + " unwrapped to " + unwrapped
+                + ", expected " + seq);
+    }
+
+    /**
+     * Encodes random, repetitive and JSON messages of many sizes with every codec,
+     * split into parts, and checks that each decodes to what went in, that an
+     * uncompressed message decodes as a view and that a truncated compressed one
+     * is rejected.
+     */
+    private static void compression(Random random) throws IOException {
+        Compression[] compressions = {Compression.UNCOMPRESSED, Compression.parse("lz"),
+                Compression.parse("lz:0"), Compression.parse("deflate:1"), Compression.parse("deflate:9:0")};
+        int[] sizes = {0, 1, 4, 15, 16, Compression.DEFAULT_THRESHOLD - 1, Compression.DEFAULT_THRESHOLD, 4096,
+                0xffff + 17, 1 << 20};
+        for (int round = 0; round < compressionRounds; round++) {
+            for (int size : sizes) {
+                byte[] message = message(random, size, round % 3);
+                for (Compression compression : compressions) {
+                    ByteBuffer encoded = join(compression.encode(split(random, message)));
+                    ByteBuffer decoded = Compression.decode(encoded);
+                    check(encoded.position() == 0, compression + " decode moved the message");
+                    byte[] result = new byte[decoded.remaining()];
+                    decoded.duplicate().get(result);
+                    check(Arrays.equals(result, message), compression + " changed a message of " + size + " bytes");
+
+                    if (encoded.get(0) == Compression.NONE) {
+                        check(decoded.array() == encoded.array(), "an uncompressed message was copied");
+                    } else {
+                        ByteBuffer truncated = encoded.duplicate();
+                        truncated.limit(random.nextInt(encoded.limit()));
+                        try {
+                            Compression.decode(truncated);
+                            check(false, compression + " decoded a truncated message");
+                        } catch (IOException expected) {
+                            // Rejected, as it should be.
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns a message of random bytes, of a few bytes repeated, or of JSON like
+     * the responses of the server, by kind.
+     */
+    private static byte[] message(Random random, int size, int kind) {
+        byte[] message = new byte[size];
+        if (kind == 0) {
+            random.nextBytes(message);
+        } else if (kind == 1) {
+            byte[] pattern = new byte[1 + random.nextInt(8)];
+            random.nextBytes(pattern);
+            for (int i = 0; i < size; i++) {
+                message[i] = pattern[i % pattern.length];
+            }
+        } else {
+            StringBuilder json = new StringBuilder("[");
+            while (json.length() < size) {
+                json.append("{\"name\":\"f").append(random.nextInt(1000)).append(".txt\",\"size\":")
+                        .append(random.nextInt(1 << 20)).append("},");
+            }
+            System.arraycopy(json.toString().getBytes(), 0, message, 0, size);
+        }
+        return message;
+    }
+
+    /**
+     * Splits a message into up to four buffers, some of them empty, each held at
+     * an offset in its array.
+     */
+    private static ByteBuffer[] split(Random random, byte[] message) {
+        ByteBuffer[] parts = new ByteBuffer[1 + random.nextInt(4)];
+        int offset = 0;
+        for (int i = 0; i < parts.length; i++) {
+            int length = i == parts.length - 1 ? message.length - offset : random.nextInt(message.length - offset + 1);
+            byte[] array = new byte[length + 3];
+            System.arraycopy(message, offset, array, 3, length);
+            ByteBuffer part = ByteBuffer.wrap(array);
+            part.position(3);
+            part.limit(3 + length);
+            parts[i] = part;
+            offset += length;
+        }
+        return parts;
+    }
+
+    private static ByteBuffer join(ByteBuffer[] parts) {
+        int length = 0;
+        for (ByteBuffer part : parts) {
+            length += part.remaining();
+        }
+        ByteBuffer joined = ByteBuffer.allocate(length);
+        for (ByteBuffer part : parts) {
+            joined.put(part.duplicate());
+        }
+        joined.flip();
+        return joined;
+    }
+
+    /**
+     * Builds blocks of DATA packets with payloads of every length from empty to
+     * full, drops each packet of a block in turn, and checks that the REPAIR
+     * packet of the block brings back its payload exactly.
+     */
+    private static void parity(Random random) {
+        int maxPayload = Packet.MAX_PAYLOAD_LEN;
+        Parity sent = new Parity(maxPayload);
+        Parity received = new Parity(maxPayload);
+        for (int round = 0; round < parityRounds; round++) {
+            int count = 1 + random.nextInt(round % 10 == 0 ? Parity.MAX_COUNT : 16);
+            long first = (1L << 32) - random.nextInt(count + 1);
+            ByteBuffer[] block = new ByteBuffer[count];
+            for (int i = 0; i < count; i++) {
+                int length = random.nextInt(4) == 0 ? (random.nextBoolean() ? 0 : maxPayload)
+                        : random.nextInt(maxPayload + 1);
+                byte[] payload = new byte[length];
+                random.nextBytes(payload);
+                block[i] = ByteBuffer.allocate(Packet.MAX_LEN);
+                block[i].position(PacketView.PAYLOAD_OFFSET);
+                block[i].put(payload);
+                block[i].flip();
+                sent.add(first + i, block[i], PacketView.PAYLOAD_OFFSET, length);
+            }
+            ByteBuffer repair = ByteBuffer.allocate(PacketView.PAYLOAD_OFFSET + Parity.HEADER_LEN + maxPayload);
+            repair.position(PacketView.PAYLOAD_OFFSET);
+            sent.write(repair);
+            repair.flip();
+            sent.clear();
+
+            for (int lost = 0; lost < count; lost++) {
+                check(received.read(repair, first), "parity of " + count + " packets rejected");
+                check(received.getFirst() == first && received.getCount() == count, "parity header");
+                for (int i = 0; i < count; i++) {
+                    if (i != lost) {
+                        received.add(first + i, block[i], PacketView.PAYLOAD_OFFSET,
+                                block[i].limit() - PacketView.PAYLOAD_OFFSET);
+                    }
+                }
+                ByteBuffer recovered = ByteBuffer.allocate(maxPayload);
+                check(received.writeMissing(recovered), "packet " + lost + " of " + count + " not recovered");
+                recovered.flip();
+                ByteBuffer expected = block[lost].duplicate();
+                expected.position(PacketView.PAYLOAD_OFFSET);
+                check(recovered.equals(expected), "packet " + lost + " of " + count + " recovered wrong");
+            }
+        }
+    }
+
+    /**
+     * Records values spread over many orders of magnitude and checks that every
+     * percentile is at or above the exact one and within a sixteenth of it, that
+     * small values are exact, and that values out of range are clamped.
+     */
+    private static void histogram(Random random) {
+        double[] percentiles = {0, 1, 25, 50, 90, 99, 99.9, 100};
+        for (int round = 0; round < histogramRounds; round++) {
+            LatencyHistogram histogram = new LatencyHistogram();
+            long[] values = new long[1 + random.nextInt(5000)];
+            for (int i = 0; i < values.length; i++) {
+                values[i] = round % 5 == 0 ? random.nextInt(16) : (long) Math.exp(random.nextDouble() * 27);
+                histogram.record(values[i]);
+            }
+            Arrays.sort(values);
+            for (double percentile : percentiles) {
+                long exact = values[(int) Math.max(0, Math.ceil(percentile / 100 * values.length) - 1)];
+                long value = histogram.getValueAtPercentile(percentile);
+                check(value >= exact && value <= exact + exact / 16,
+                        "p" + percentile + " is " + value + ", exact " + exact);
+            }
+            check(histogram.getCount() == values.length, "count");
+            check(histogram.getMax() == values[values.length - 1], "max");
+        }
+
+        LatencyHistogram histogram = new LatencyHistogram();
+        check(histogram.getValueAtPercentile(50) == 0, "an empty histogram has a median");
+        histogram.record(-5);
+        check(histogram.getValueAtPercentile(100) == 0, "a negative value is not counted as 0");
+        histogram.record(Long.MAX_VALUE);
+        check(histogram.getMax() == LatencyHistogram.MAX_VALUE, "a value beyond MAX_VALUE is not clamped");
+        check(histogram.getValueAtPercentile(100) == LatencyHistogram.MAX_VALUE, "p100 beyond MAX_VALUE");
+    }
+
+    private static void check(boolean condition, String message) {
+        if (!condition) {
+            throw new AssertionError(message);
+        }
+    }
+}
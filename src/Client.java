@@ -1,19 +1,24 @@
-import static java.nio.channels.SelectionKey.OP_READ;
-import static java.nio.charset.StandardCharsets.UTF_8;
-
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.net.SocketAddress;
 import java.net.URL;
 import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
-import java.nio.channels.DatagramChannel;
-import java.nio.channels.SelectionKey;
-import java.nio.channels.Selector;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Scanner;
 import java.util.Set;
 
@@ -22,200 +27,509 @@ import java.util.Set;
  */
 public class Client {
 
-    static int acknowledgementCount = 0;
-
-    static long sequenceNumber = 0;
-    static List<Long> receivedPackets = new ArrayList<>();
-    static int timeout = 3000;
+    // How long to wait for the server to say anything before giving up. Packet
+    // retransmission timeouts are adaptive, see RttEstimator.
+    static int timeout = 30000;
+    static int windowSize = ReliableConnection.DEFAULT_WINDOW_SIZE;
+    static String congestionControl = "reno";
+    // How many requests of a batch may be waiting for their response on one connection.
+    static int pipelineDepth = 64;
+    // Files uploaded with -f are streamed in chunks of this size, with up to uploadDepth of them unacknowledged.
+    static int chunkSize = 1024 * 1024;
+    static int uploadDepth = 4;
+    // Requests are sent as HTTP/1.1 messages instead of binary requests.
+    static boolean http = false;
+    // Offer the server 64-bit sequence numbers, for transfers beyond 2^31 packets.
+    static boolean extendedSequenceNumbers = false;
+    // Offer the server compressed messages, such as "deflate:6" or "lz"; null for none.
+    static Compression compression = null;
+    // Offer the server a REPAIR packet per this many DATA packets, 0 for none; "-fec auto" adapts it to the loss rate.
+    static int repairBlock = 0;
+    static boolean adaptiveRepair = false;
+    // Accept packets of up to this many bytes and offer to send them, if the path carries them.
+    static int maxPacketLength = Packet.MAX_LEN;
+    // Offer the server a stream per request, so that a slow response does not hold back the others.
+    static boolean streams = false;
+
+    // Connections are kept open across commands, one per server.
+    static Map<InetSocketAddress, ReliableChannel> connections = new HashMap<>();
+    static Map<ReliableChannel, Integer> outstanding = new HashMap<>();
+    // Responses being received on each connection, in the order they started arriving; the first one is printed
+    // as it arrives, the others are held until their turn.
+    static Map<ReliableChannel, Deque<IncomingResponse>> incoming = new HashMap<>();
+    static int nextRequestId = 0;
+    // Requests sent with -v, whose responses are printed with their status line and headers.
+    static Set<Integer> verboseRequests = new HashSet<>();
+    private static final byte[] HEAD_END = "\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
 
 
     public static void main(String[] args) throws Exception {
 
+        List<String> argList = Arrays.asList(args);
+        if (argList.contains("-cc")) {
+            congestionControl = argList.get(argList.indexOf("-cc") + 1);
+        }
+        if (argList.contains("-http")) {
+            http = true;
+        }
+        if (argList.contains("-seq64")) {
+            extendedSequenceNumbers = true;
+        }
+        if (argList.contains("-compress")) {
+            compression = Compression.parse(argList.get(argList.indexOf("-compress") + 1));
+        }
+        if (argList.contains("-fec")) {
+            String fec = argList.get(argList.indexOf("-fec") + 1);
+            adaptiveRepair = fec.equals("auto");
+            repairBlock = adaptiveRepair ? ReliableConnection.DEFAULT_REPAIR_BLOCK : Integer.parseInt(fec);
+        }
+        if (argList.contains("-mtu")) {
+            maxPacketLength = Integer.parseInt(argList.get(argList.indexOf("-mtu") + 1));
+        }
+        if (argList.contains("-streams")) {
+            streams = true;
+        }
+
         // Router address
         String routerHost = "localhost";
         int routerPort = 3333;
+        SocketAddress routerAddress = new InetSocketAddress(routerHost, routerPort);
 
-        ArrayList<String> requestList;
         File file = new File("attachment");
         file.mkdir();
+        Scanner sc = new Scanner(System.in);
         while (true) {
-            String url = "";
-            String request = "";
             System.out.print("Enter command : ");
-            receivedPackets.clear();
-            sequenceNumber = 0;
-            acknowledgementCount = 0;
-            Scanner sc = new Scanner(System.in);
-            request = sc.nextLine();
+            if (!sc.hasNextLine()) {
+                break;
+            }
+            String request = sc.nextLine();
 
             if (request.isEmpty() || request.length() == 0) {
                 System.out.println("Invalid Command");
                 continue;
             }
-            String[] clientRequestArray = request.split(" ");
-            requestList = new ArrayList<>();
-            for (String s : clientRequestArray) {
-                if (s.startsWith("http://")) {
-                    url = s;
+
+            try {
+                if (request.startsWith("batch ")) {
+                    runBatch(routerAddress, request.substring("batch ".length()).trim());
+                } else {
+                    runClient(getConnection(routerAddress, serverAddress(request)), request);
+                }
+            } catch (IOException e) {
+                System.out.println("Request failed : " + e.getMessage());
+                // Pending responses can no longer be matched up, start afresh.
+                for (InetSocketAddress serverAddress : new ArrayList<>(connections.keySet())) {
+                    drop(serverAddress);
                 }
-                requestList.add(s);
             }
+        }
 
-            String serverHost = new URL(url).getHost();
-            int serverPort = new URL(url).getPort();
-//            System.out.println(serverHost);
-//            System.out.println(serverPort);
+        closeConnections();
+    }
 
-            SocketAddress routerAddress = new InetSocketAddress(routerHost, routerPort);
-            InetSocketAddress serverAddress = new InetSocketAddress(serverHost, serverPort);
+    /**
+     * This method will find the server address in the URL of a request
+     */
+    private static InetSocketAddress serverAddress(String request) throws IOException {
+        String url = "";
+        for (String s : request.split(" ")) {
+            if (s.startsWith("http://")) {
+                url = s;
+            }
+        }
+        URL parsed = new URL(url);
+        return new InetSocketAddress(parsed.getHost(), parsed.getPort());
+    }
 
-            startConnection(routerAddress, serverAddress);
-            runClient(routerAddress, serverAddress, request);
+    /**
+     * This method will turn a command into the request it stands for. Everything after -d is the body, exactly as
+     * typed, apart from a trailing -overwrite=false.
+     *
+     * @param streamedLength the length of a body streamed from a file, or -1 if there is none
+     * @param bodyTag        the identity of a streamed body, see Request.BODY_TAG, or null
+     */
+    static Request parseRequest(String command, long streamedLength, String bodyTag) throws IOException {
+        int flags = 0;
+        ByteBuffer body = null;
+        long bodyLength = 0;
+
+        String options = command;
+        int dataAt = command.indexOf(" -d ");
+        if (dataAt >= 0) {
+            options = command.substring(0, dataAt);
+            String data = command.substring(dataAt + 4);
+            if (data.endsWith(" -overwrite=false")) {
+                data = data.substring(0, data.length() - " -overwrite=false".length());
+                flags |= Request.NO_OVERWRITE;
+            }
+            body = ByteBuffer.wrap(data.getBytes(StandardCharsets.UTF_8));
+            bodyLength = body.remaining();
+        }
+        if (streamedLength >= 0) {
+            flags |= Request.STREAMED;
+            body = null;
+            bodyLength = streamedLength;
+        }
 
+        String url = null;
+        boolean post = body != null || streamedLength >= 0;
+        Map<String, String> headers = new LinkedHashMap<>();
+        headers.put("Host", "");
+        String[] words = options.split(" ");
+        for (int i = 0; i < words.length; i++) {
+            String word = words[i];
+            if (word.equals("-v")) {
+                flags |= Request.VERBOSE;
+            } else if (word.equals("-overwrite=false")) {
+                flags |= Request.NO_OVERWRITE;
+            } else if (word.equals("post")) {
+                post = true;
+            } else if ((word.equals("-h") || word.equals("-f")) && i + 1 < words.length) {
+                String value = words[++i];
+                int colon = value.indexOf(':');
+                if (word.equals("-h") && colon > 0) {
+                    headers.put(value.substring(0, colon), value.substring(colon + 1));
+                }
+            } else if (word.startsWith("http://")) {
+                url = word;
+            }
+        }
+        if (url == null) {
+            throw new IOException("No URL in the command");
         }
+
+        URL parsed = new URL(url);
+        headers.put("Host", parsed.getAuthority());
+        if (bodyTag != null)
+            headers.put(Request.BODY_TAG, bodyTag);
+        String path = parsed.getFile().isEmpty() ? "/" : parsed.getFile();
+        int method = post || path.startsWith("/post/") ? Request.POST : Request.GET;
+        return new Request(method, path, headers, flags, bodyLength, body);
+    }
+
+    /**
+     * This method will return the open connection to the server, establishing a new one if there is none or the
+     * server has closed it
+     */
+    private static ReliableChannel getConnection(SocketAddress routerAddress, InetSocketAddress serverAddress)
+            throws IOException {
+        ReliableChannel channel = connections.get(serverAddress);
+        if (channel != null && channel.isOpen()) {
+            return channel;
+        }
+        if (channel != null) {
+            drop(serverAddress);
+        }
+
+        channel = new ReliableChannel(routerAddress, serverAddress, windowSize,
+                CongestionControl.create(congestionControl), maxPacketLength);
+        channel.setExtendedSequenceNumbers(extendedSequenceNumbers);
+        channel.setCompression(compression);
+        channel.setRepair(repairBlock, adaptiveRepair);
+        channel.setStreams(streams);
+        try {
+            startConnection(channel);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        connections.put(serverAddress, channel);
+        outstanding.put(channel, 0);
+        return channel;
     }
 
     /**
-     * This method will establish connection and also parse the user request URL and set different value in
-     * Request class based on different conditions
+     * This method will establish connection with the server with the three-way handshake
      *
-     * @param routerAddress Socket Address of the router
-     * @param serverAddress Socket Address of the server
+     * @param channel reliable channel to the server
+     */
+    private static void startConnection(ReliableChannel channel) throws IOException {
+        channel.connect(timeout);
+        System.out.println("Connected to the Server.");
+    }
+
+    /**
+     * This method will send UDP request to router based on client input and wait for its response
      */
-    private static void startConnection(SocketAddress routerAddress, InetSocketAddress serverAddress) throws Exception {
+    private static void runClient(ReliableChannel channel, String msg) throws IOException {
+        List<String> words = Arrays.asList(msg.split(" "));
+        if (words.contains("-f") && words.indexOf("-f") + 1 < words.size()) {
+            runUpload(channel, msg, words.get(words.indexOf("-f") + 1));
+            return;
+        }
 
-        try (DatagramChannel channel = DatagramChannel.open()) {
-            String msg = "Hi S";
-            sequenceNumber++;
-            // SYN
-            Packet p = new Packet.Builder().setType(0).setSequenceNumber(sequenceNumber)
-                    .setPortNumber(serverAddress.getPort()).setPeerAddress(serverAddress.getAddress())
-                    .setPayload(msg.getBytes()).create();
-            //setting the server address in the setPeerAddress
-            channel.send(p.toBuffer(), routerAddress); //Sending to the router
-            System.out.println("Sending Hi from Client");
+        sendRequest(channel, parseRequest(msg, -1, null));
+        System.out.println("Request sent to the Router.");
 
-            channel.configureBlocking(false);
-            Selector selector = Selector.open();
-            channel.register(selector, OP_READ);
+        while (outstanding.get(channel) > 0) {
+            // Responses to earlier requests are printed as they arrive.
+            receiveResponse(channel);
+        }
+    }
 
-            selector.select(timeout);
+    /**
+     * This method will send every request listed in a file, one per line, keeping up to pipelineDepth requests
+     * outstanding on each server's connection, and print the responses as they arrive
+     */
+    private static void runBatch(SocketAddress routerAddress, String fileName) throws IOException {
+        List<String> requests = Files.readAllLines(Paths.get(fileName));
+        List<ReliableChannel> used = new ArrayList<>();
 
-            Set<SelectionKey> keys = selector.selectedKeys();
-            if (keys.isEmpty()) {
-                System.out.println("No response after timeout\nSending again");
-                resend(channel, p, routerAddress);
+        for (String request : requests) {
+            if (request.trim().isEmpty()) {
+                continue;
             }
+            ReliableChannel channel = getConnection(routerAddress, serverAddress(request));
+            if (!used.contains(channel)) {
+                used.add(channel);
+            }
+            if (Arrays.asList(request.split(" ")).contains("-f")) {
+                runClient(channel, request);
+                continue;
+            }
+            while (outstanding.get(channel) >= pipelineDepth) {
+                receiveResponse(channel);
+            }
+            sendRequest(channel, parseRequest(request, -1, null));
+        }
 
-            ByteBuffer buf = ByteBuffer.allocate(Packet.MAX_LEN).order(ByteOrder.BIG_ENDIAN);
-            //buf.flip();
-            Packet response = Packet.fromBuffer(buf);
-            //buf.flip();
-            String payload = new String(response.getPayload(), StandardCharsets.UTF_8);
-            System.out.println(payload + "received..!");
-            receivedPackets.add(response.getSequenceNumber());
-            keys.clear();
-
+        for (ReliableChannel channel : used) {
+            while (outstanding.get(channel) > 0) {
+                receiveResponse(channel);
+            }
         }
     }
 
     /**
-     * This method will resend request to router if timeout occurs
+     * This method will send a POST whose body is the local file named with -f, streamed in chunks of chunkSize bytes
+     * with up to uploadDepth of them unacknowledged, so that files of any size can be uploaded. If an earlier upload
+     * of the same body was interrupted, the server tells where to resume from.
      */
-    private static void resend(DatagramChannel channel, Packet p, SocketAddress routerAddress) throws IOException {
+    private static void runUpload(ReliableChannel channel, String request, String fileName) throws IOException {
+        try (FileChannel file = FileChannel.open(Paths.get(fileName), StandardOpenOption.READ)) {
+            // Chunk acknowledgements must not be mixed up with responses to earlier requests.
+            while (outstanding.get(channel) > 0) {
+                receiveResponse(channel);
+            }
 
-        channel.send(p.toBuffer(), routerAddress);
-        System.out.println(new String(p.getPayload()));
+            long size = file.size();
+            // Tells this body from any other one an interrupted upload left on the server.
+            String bodyTag = Long.toHexString(size) + "-"
+                    + Long.toHexString(Files.getLastModifiedTime(Paths.get(fileName)).toMillis());
+            int requestId = sendRequest(channel, parseRequest(request, size, bodyTag));
+            System.out.println("Request sent to the Router.");
 
-        if (new String(p.getPayload()).equals("Received")) {
-            acknowledgementCount++;
+            byte[] frame = receiveFrame(channel);
+            String body = RequestFrame.body(frame);
+            if (!body.startsWith("HTTP/1.1 100")) {
+                printResponse(channel, frame);
+                return;
+            }
+            verboseRequests.remove(requestId);
+            long offset = Long.parseLong(body.substring(body.indexOf("Offset: ") + 8).trim());
+            if (offset > 0) {
+                System.out.println("Resuming upload at byte " + offset);
+            }
+
+            int unacknowledged = 0;
+            do {
+                if (unacknowledged == uploadDepth) {
+                    receiveChunkAck(channel);
+                    unacknowledged--;
+                }
+                long length = Math.min(chunkSize, size - offset);
+                int type = offset + length == size ? RequestFrame.LAST_CHUNK : RequestFrame.CHUNK;
+                channel.send(RequestFrame.stream(requestId), RequestFrame.encodeChunk(requestId, type, offset,
+                        file.map(FileChannel.MapMode.READ_ONLY, offset, length)));
+                offset += length;
+                unacknowledged++;
+            } while (offset < size);
+
+            for (; unacknowledged > 1; unacknowledged--) {
+                receiveChunkAck(channel);
+            }
+            receiveResponse(channel);
         }
+    }
 
-        channel.configureBlocking(false);
-        Selector selector = Selector.open();
-        channel.register(selector, OP_READ);
-        selector.select(timeout);
+    /**
+     * This method will wait for the server to acknowledge a chunk of an upload
+     */
+    private static void receiveChunkAck(ReliableChannel channel) throws IOException {
+        byte[] frame = receiveFrame(channel);
+        if (RequestFrame.type(frame) != RequestFrame.CHUNK) {
+            printResponse(channel, frame);
+            throw new IOException("Upload failed, send the request again to resume it");
+        }
+    }
 
-        Set<SelectionKey> keys = selector.selectedKeys();
-        if (keys.isEmpty() && acknowledgementCount < 10) {
+    private static int sendRequest(ReliableChannel channel, Request request) throws IOException {
+        int requestId = nextRequestId++;
+        channel.send(RequestFrame.stream(requestId), http
+                ? RequestFrame.encode(requestId, RequestFrame.HTTP, request.encodeHttp())
+                : RequestFrame.encode(requestId, request.encode()));
+        outstanding.put(channel, outstanding.get(channel) + 1);
+        if (request.isVerbose())
+            verboseRequests.add(requestId);
+        return requestId;
+    }
 
-            System.out.println("No response after timeout\nSending again");
-            resend(channel, p, routerAddress);
+    /**
+     * This method will receive the next part of a response on the connection and print what is in turn: the parts
+     * of the response that started arriving first as they arrive, so that a large response is never held whole,
+     * and those of the others once it is done
+     *
+     * @return the id of the request whose response was completed, or -1 if none was
+     */
+    private static int receiveResponse(ReliableChannel channel) throws IOException {
+        MessagePart part = receivePart(channel);
+        Deque<IncomingResponse> responses = incoming.computeIfAbsent(channel, c -> new ArrayDeque<>());
+        IncomingResponse response = null;
+        for (IncomingResponse started : responses) {
+            if (!started.complete && started.stream == part.getStream()) {
+                response = started;
+                break;
+            }
+        }
+        ByteBuffer data = part.getData();
+        if (response == null) {
+            response = new IncomingResponse(part.getStream(), RequestFrame.requestId(data));
+            int type = RequestFrame.type(data);
+            data.position(data.position() + RequestFrame.HEADER_LEN);
+            int head = indexOf(data, HEAD_END);
+            if (!verboseRequests.remove(response.requestId) && type == RequestFrame.HTTP && head >= 0) {
+                // Without -v, only the body of an HTTP response is shown.
+                data.position(head + HEAD_END.length);
+            }
+            responses.add(response);
+        }
+        response.held.add(data);
+        int completed = -1;
+        if (part.isLast()) {
+            response.complete = true;
+            outstanding.put(channel, outstanding.get(channel) - 1);
+            completed = response.requestId;
+        }
 
-        } else {
-            return;
+        IncomingResponse first;
+        while ((first = responses.peek()) != null) {
+            if (!first.titled) {
+                System.out.print("\nResponse #" + first.requestId + " from Server : \n");
+                first.titled = true;
+            }
+            for (ByteBuffer held : first.held) {
+                System.out.write(held.array(), held.arrayOffset() + held.position(), held.remaining());
+            }
+            first.held.clear();
+            if (!first.complete) {
+                System.out.flush();
+                break;
+            }
+            System.out.println();
+            responses.poll();
         }
+        return completed;
     }
 
     /**
-     * This method will send UDP request to router based on client input
+     * This method will wait for the next whole message on the connection, such as the answer to a chunk of an
+     * upload, which is small
      */
-    private static void runClient(SocketAddress routerAddr, InetSocketAddress serverAddr, String msg)
-            throws IOException {
-        String dir = System.getProperty("user.dir");
-        try (DatagramChannel channel = DatagramChannel.open()) {
-            sequenceNumber++;
-            Packet p = new Packet.Builder().setType(0).setSequenceNumber(sequenceNumber)
-                    .setPortNumber(serverAddr.getPort()).setPeerAddress(serverAddr.getAddress())
-                    .setPayload(msg.getBytes()).create();
-            channel.send(p.toBuffer(), routerAddr);
-            System.out.println("Request sent to the Router.");
+    private static byte[] receiveFrame(ReliableChannel channel) throws IOException {
+        MessagePart part = receivePart(channel);
+        if (part.isLast()) {
+            ByteBuffer data = part.getData();
+            return data.position() == 0 ? data.array()
+                    : Arrays.copyOfRange(data.array(), data.position(), data.limit());
+        }
+        ByteArrayOutputStream frame = new ByteArrayOutputStream();
+        while (true) {
+            ByteBuffer data = part.getData();
+            frame.write(data.array(), data.arrayOffset() + data.position(), data.remaining());
+            if (part.isLast()) {
+                return frame.toByteArray();
+            }
+            part = receivePart(channel);
+        }
+    }
 
-            // Try to receive a packet within timeout.
-            channel.configureBlocking(false);
-            Selector selector = Selector.open();
-            channel.register(selector, OP_READ);
-            selector.select(timeout);
-
-            Set<SelectionKey> keys = selector.selectedKeys();
-            if (keys.isEmpty()) {
-                System.out.println("Timeout and no response!\nRetrying...");
-                resend(channel, p, routerAddr);
-            }
-
-            // We just want a single response.
-            ByteBuffer buf = ByteBuffer.allocate(Packet.MAX_LEN).order(ByteOrder.BIG_ENDIAN);
-            SocketAddress router = channel.receive(buf);
-            buf.flip();
-            Packet response = Packet.fromBuffer(buf);
-            //buf.flip();
-            String payload = new String(response.getPayload(), UTF_8);
-
-            if (!receivedPackets.contains(response.getSequenceNumber())) {
-
-                receivedPackets.add(response.getSequenceNumber());
-                System.out.println("\nResponse from Server : \n" + payload);
-
-                // Sending ACK for the received of the response
-                sequenceNumber++;
-                Packet pAck = new Packet.Builder().setType(0).setSequenceNumber(sequenceNumber)
-                        .setPortNumber(serverAddr.getPort()).setPeerAddress(serverAddr.getAddress())
-                        .setPayload("Received".getBytes()).create();
-                channel.send(pAck.toBuffer(), routerAddr);
-
-                // Try to receive a packet within timeout.
-                channel.configureBlocking(false);
-                selector = Selector.open();
-                channel.register(selector, OP_READ);
-                selector.select(timeout);
-
-                keys = selector.selectedKeys();
-                if (keys.isEmpty()) {
-                    resend(channel, pAck, router);
-                }
+    private static MessagePart receivePart(ReliableChannel channel) throws IOException {
+        MessagePart part = channel.receivePart(timeout);
+        if (part == null) {
+            throw new IOException(channel.isOpen() ? "Timeout and no response!" : "Server closed the connection");
+        }
+        return part;
+    }
 
-                buf.flip();
+    /**
+     * This method will return where a sequence of bytes starts in the remaining bytes of a buffer, or -1
+     */
+    private static int indexOf(ByteBuffer buffer, byte[] target) {
+        for (int i = buffer.position(); i <= buffer.limit() - target.length; i++) {
+            int matched = 0;
+            while (matched < target.length && buffer.get(i + matched) == target[matched]) {
+                matched++;
+            }
+            if (matched == target.length) {
+                return i;
+            }
+        }
+        return -1;
+    }
 
-                System.out.println("Connection terminated");
-                keys.clear();
+    private static int printResponse(ReliableChannel channel, byte[] response) throws IOException {
+        outstanding.put(channel, outstanding.get(channel) - 1);
+        int requestId = RequestFrame.requestId(response);
+        String body = RequestFrame.body(response);
+        if (!verboseRequests.remove(requestId) && RequestFrame.type(response) == RequestFrame.HTTP
+                && body.contains("\r\n\r\n")) {
+            // Without -v, only the body of an HTTP response is shown.
+            body = body.substring(body.indexOf("\r\n\r\n") + 4);
+        }
+        System.out.println("\nResponse #" + requestId + " from Server : \n" + body);
+        return requestId;
+    }
 
-                sequenceNumber++;
-                Packet pClose = new Packet.Builder().setType(0).setSequenceNumber(sequenceNumber)
-                        .setPortNumber(serverAddr.getPort()).setPeerAddress(serverAddr.getAddress())
-                        .setPayload("Ok".getBytes()).create();
-                channel.send(pClose.toBuffer(), routerAddr);
-                System.out.println("OK sent");
+    /**
+     * This method will close the connection to a server without waiting for its pending responses
+     */
+    private static void drop(InetSocketAddress serverAddress) throws IOException {
+        ReliableChannel channel = connections.remove(serverAddress);
+        outstanding.remove(channel);
+        incoming.remove(channel);
+        channel.close();
+    }
+
+    /**
+     * This method will close every open connection gracefully
+     */
+    private static void closeConnections() throws IOException {
+        for (ReliableChannel channel : connections.values()) {
+            if (channel.disconnect(timeout)) {
+                System.out.println("Connection terminated");
             }
+            channel.close();
+        }
+        connections.clear();
+        outstanding.clear();
+        incoming.clear();
+        verboseRequests.clear();
+    }
+
+    /**
+     * A response being received, and the parts of it not printed yet.
+     */
+    private static class IncomingResponse {
+        private final int stream;
+        private final int requestId;
+        private final List<ByteBuffer> held = new ArrayList<>();
+        private boolean titled;
+        private boolean complete;
+
+        IncomingResponse(int stream, int requestId) {
+            this.stream = stream;
+            this.requestId = requestId;
         }
     }
 }
@@ -0,0 +1,385 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compression encodes whole messages, before they are split into packets, once
+ * both ends of a connection agreed to it in the handshake (see
+ * {@link ReliableConnection#setCompression}). Every message then starts with
+ * the codec it was encoded with:
+ * <pre>
+ *   NONE (1 byte) | message
+ *   DEFLATE or LZ (1 byte) | original length (4 bytes) | compressed message
+ * </pre>
+ * DEFLATE is raw Deflate at a configurable level. LZ is a byte-aligned LZ77 in
+ * the manner of LZ4, with no entropy coding, several times faster than Deflate
+ * for a lower ratio. Messages below the threshold, beyond MAX_INPUT or that do
+ * not shrink are sent as they are, without being copied.
+ * <p>
+ * A Compression is immutable and thread-safe; each thread gets its own
+ * compressor.
+ */
+public class Compression {
+
+    public static final int NONE = 0;
+    public static final int DEFLATE = 1;
+    public static final int LZ = 2;
+
+    /**
+     * The codecs decode can read, as a bit per codec.
+     */
+    public static final int DECODABLE = 1 << NONE | 1 << DEFLATE | 1 << LZ;
+
+    public static final int DEFAULT_THRESHOLD = 512;
+    // Larger messages, typically mapped files, are not worth holding in memory compressed.
+    public static final int MAX_INPUT = 64 * 1024 * 1024;
+
+    /**
+     * Frames messages without ever compressing them.
+     */
+    public static final Compression UNCOMPRESSED = new Compression(NONE, 0, Integer.MAX_VALUE);
+
+    private static final int HEADER_LEN = 5;
+
+    // LZ sequences: token (literal count << 4 | match length - MIN_MATCH, each
+    // nibble 15 continued in 255-steps) | literals | offset (2 bytes) | match. The
+    // last sequence has literals only.
+    private static final int MIN_MATCH = 4;
+    private static final int MAX_OFFSET = 0xffff;
+    private static final int HASH_BITS = 14;
+
+    private static final ThreadLocal<Inflater> inflaters = ThreadLocal.withInitial(() -> new Inflater(true));
+    private static final ThreadLocal<int[]> hashTables = ThreadLocal.withInitial(() -> new int[1 << HASH_BITS]);
+
+    private final int codec;
+    private final int level;
+    private final int threshold;
+    private final ThreadLocal<Deflater> deflaters;
+
+    /**
+     * @param level     the Deflate level, 1 to 9; unused for LZ
+     * @param threshold the smallest message worth compressing, in bytes
+     */
+    public Compression(int codec, int level, int threshold) {
+        if (codec != NONE && codec != DEFLATE && codec != LZ) {
+            throw new IllegalArgumentException("Unknown codec " + codec);
+        }
+        this.codec = codec;
+        this.level = level;
+        this.threshold = threshold;
+        this.deflaters = ThreadLocal.withInitial(() -> new Deflater(level, true));
+    }
+
+    /**
+     * Returns the compression described by "deflate", "deflate:level" or "lz",
+     * each optionally followed by ":threshold" in bytes, such as "deflate:6:1024".
+     */
+    public static Compression parse(String spec) {
+        String[] fields = spec.toLowerCase().split(":");
+        switch (fields[0]) {
+            case "deflate":
+                return new Compression(DEFLATE, fields.length > 1 ? Integer.parseInt(fields[1]) : Deflater.DEFAULT_COMPRESSION,
+                        fields.length > 2 ? Integer.parseInt(fields[2]) : DEFAULT_THRESHOLD);
+            case "lz":
+                return new Compression(LZ, 0, fields.length > 1 ? Integer.parseInt(fields[1]) : DEFAULT_THRESHOLD);
+            default:
+                throw new IllegalArgumentException("Unknown compression: " + spec);
+        }
+    }
+
+    public int getCodec() {
+        return codec;
+    }
+
+    /**
+     * Returns the message made of the remaining bytes of parts, encoded. Parts are
+     * not moved; a message that is not compressed keeps them as they are, behind
+     * the codec byte.
+     */
+    public ByteBuffer[] encode(ByteBuffer[] parts) {
+        long length = 0;
+        for (ByteBuffer part : parts) {
+            length += part.remaining();
+        }
+        if (compresses(length)) {
+            byte[] input = new byte[(int) length];
+            int offset = 0;
+            for (ByteBuffer part : parts) {
+                int n = part.remaining();
+                part.duplicate().get(input, offset, n);
+                offset += n;
+            }
+            ByteBuffer compressed = compress(input);
+            if (compressed != null) {
+                return new ByteBuffer[]{compressed};
+            }
+        }
+        ByteBuffer[] framed = new ByteBuffer[parts.length + 1];
+        framed[0] = ByteBuffer.wrap(new byte[]{NONE});
+        System.arraycopy(parts, 0, framed, 1, parts.length);
+        return framed;
+    }
+
+    /**
+     * Returns a message read as it is sent, encoded. A message that is not
+     * compressed is still read as it is sent, behind the codec byte; one that is
+     * gets read whole first.
+     */
+    public MessageSource encode(MessageSource message) {
+        if (compresses(message.length())) {
+            ByteBuffer input = ByteBuffer.allocate((int) message.length());
+            message.read(input);
+            ByteBuffer compressed = compress(input.array());
+            if (compressed != null) {
+                return MessageSource.of(compressed);
+            }
+            input.flip();
+            return MessageSource.of(ByteBuffer.wrap(new byte[]{NONE}), input);
+        }
+        return MessageSource.concat(MessageSource.of(ByteBuffer.wrap(new byte[]{NONE})), message);
+    }
+
+    /**
+     * Returns the message the remaining bytes of an encoded message hold. A
+     * message that was not compressed is returned as a view of the same bytes,
+     * past the codec, without being copied. The position of message is not moved.
+     *
+     * @throws IOException if the message is not validly encoded
+     */
+    public static ByteBuffer decode(ByteBuffer message) throws IOException {
+        if (!message.hasRemaining()) {
+            throw new IOException("Empty message");
+        }
+        int codec = message.get(message.position());
+        if (codec == NONE) {
+            ByteBuffer view = message.duplicate();
+            view.position(view.position() + 1);
+            return view.slice();
+        }
+        if (message.remaining() < HEADER_LEN) {
+            throw new IOException("Compressed message shorter than its header");
+        }
+        int length = message.getInt(message.position() + 1);
+        if (length < 0 || length > MAX_INPUT) {
+            throw new IOException("Invalid compressed message length " + length);
+        }
+        byte[] input;
+        int start;
+        if (message.hasArray()) {
+            input = message.array();
+            start = message.arrayOffset() + message.position();
+        } else {
+            input = new byte[message.remaining()];
+            message.duplicate().get(input);
+            start = 0;
+        }
+        int end = start + message.remaining();
+        byte[] output = new byte[length];
+        switch (codec) {
+            case DEFLATE:
+                inflate(input, start, end, output);
+                break;
+            case LZ:
+                unlz(input, start, end, output);
+                break;
+            default:
+                throw new IOException("Unknown codec " + codec);
+        }
+        return ByteBuffer.wrap(output);
+    }
+
+    private boolean compresses(long length) {
+        return codec != NONE && length >= threshold && length <= MAX_INPUT;
+    }
+
+    /**
+     * Returns the encoded message, or null if it would not be smaller.
+     */
+    private ByteBuffer compress(byte[] input) {
+        return codec == DEFLATE ? deflate(input) : lz(input);
+    }
+
+    @Override
+    public String toString() {
+        return codec == DEFLATE ? "deflate:" + level + ":" + threshold : codec == LZ ? "lz:" + threshold : "none";
+    }
+
+    /**
+     * Returns the encoded message, or null if it would not be smaller.
+     */
+    private ByteBuffer deflate(byte[] input) {
+        Deflater deflater = deflaters.get();
+        deflater.reset();
+        deflater.setInput(input);
+        deflater.finish();
+        byte[] output = new byte[input.length];
+        int length = HEADER_LEN;
+        while (!deflater.finished() && length < output.length) {
+            length += deflater.deflate(output, length, output.length - length);
+        }
+        if (!deflater.finished()) {
+            return null;
+        }
+        return header(output, DEFLATE, input.length, length);
+    }
+
+    /**
+     * Inflates the message held by message[start..end) into output.
+     */
+    private static void inflate(byte[] message, int start, int end, byte[] output) throws IOException {
+        Inflater inflater = inflaters.get();
+        inflater.reset();
+        inflater.setInput(message, start + HEADER_LEN, end - start - HEADER_LEN);
+        try {
+            int length = 0;
+            while (length < output.length) {
+                int n = inflater.inflate(output, length, output.length - length);
+                if (n == 0 && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                length += n;
+            }
+            if (length != output.length || !inflater.finished()) {
+                throw new IOException("Deflate stream does not match its length");
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Invalid Deflate stream", e);
+        }
+    }
+
+    /**
+     * Returns the encoded message, or null if it would not be smaller.
+     */
+    private static ByteBuffer lz(byte[] input) {
+        int[] table = hashTables.get();
+        // Positions are stored plus one, so that 0 is an empty slot.
+        Arrays.fill(table, 0);
+        byte[] output = new byte[HEADER_LEN + input.length + input.length / 255 + 16];
+        int out = HEADER_LEN;
+        int anchor = 0;
+        int i = 0;
+        while (i + MIN_MATCH <= input.length) {
+            int word = readInt(input, i);
+            int hash = word * 0x9E3779B1 >>> (Integer.SIZE - HASH_BITS);
+            int candidate = table[hash] - 1;
+            table[hash] = i + 1;
+            if (candidate < 0 || i - candidate > MAX_OFFSET || readInt(input, candidate) != word) {
+                i++;
+                continue;
+            }
+            int match = MIN_MATCH;
+            while (i + match < input.length && input[candidate + match] == input[i + match]) {
+                match++;
+            }
+            out = literals(output, out, input, anchor, i - anchor, match - MIN_MATCH);
+            output[out++] = (byte) ((i - candidate) >>> 8);
+            output[out++] = (byte) (i - candidate);
+            if (match - MIN_MATCH >= 15) {
+                out = length(output, out, match - MIN_MATCH - 15);
+            }
+            i += match;
+            anchor = i;
+        }
+        out = literals(output, out, input, anchor, input.length - anchor, 0);
+        if (out >= input.length) {
+            return null;
+        }
+        return header(output, LZ, input.length, out);
+    }
+
+    /**
+     * Decodes the LZ message held by message[start..end) into output.
+     */
+    private static void unlz(byte[] message, int start, int end, byte[] output) throws IOException {
+        int in = start + HEADER_LEN;
+        int out = 0;
+        while (true) {
+            if (in >= end) {
+                throw new IOException("Truncated LZ stream");
+            }
+            int token = message[in++] & 0xff;
+            int literals = token >>> 4;
+            if (literals == 15) {
+                int b;
+                do {
+                    if (in >= end) {
+                        throw new IOException("Truncated LZ stream");
+                    }
+                    b = message[in++] & 0xff;
+                    literals += b;
+                } while (b == 255);
+            }
+            if (literals > end - in || literals > output.length - out) {
+                throw new IOException("LZ literals overrun");
+            }
+            System.arraycopy(message, in, output, out, literals);
+            in += literals;
+            out += literals;
+            if (in == end) {
+                break;
+            }
+
+            if (in + 2 > end) {
+                throw new IOException("Truncated LZ stream");
+            }
+            int offset = (message[in] & 0xff) << 8 | (message[in + 1] & 0xff);
+            in += 2;
+            int match = token & 15;
+            if (match == 15) {
+                int b;
+                do {
+                    if (in >= end) {
+                        throw new IOException("Truncated LZ stream");
+                    }
+                    b = message[in++] & 0xff;
+                    match += b;
+                } while (b == 255);
+            }
+            match += MIN_MATCH;
+            if (offset == 0 || offset > out || match > output.length - out) {
+                throw new IOException("Invalid LZ match");
+            }
+            // Byte by byte, as a match may overlap what it copies.
+            for (int from = out - offset, matchEnd = out + match; out < matchEnd; ) {
+                output[out++] = output[from++];
+            }
+        }
+        if (out != output.length) {
+            throw new IOException("LZ stream does not match its length");
+        }
+    }
+
+    /**
+     * Writes the token of a sequence and its literals.
+     */
+    private static int literals(byte[] output, int out, byte[] input, int from, int count, int matchNibble) {
+        output[out++] = (byte) (Math.min(count, 15) << 4 | Math.min(matchNibble, 15));
+        if (count >= 15) {
+            out = length(output, out, count - 15);
+        }
+        System.arraycopy(input, from, output, out, count);
+        return out + count;
+    }
+
+    private static int length(byte[] output, int out, int remainder) {
+        while (remainder >= 255) {
+            output[out++] = (byte) 255;
+            remainder -= 255;
+        }
+        output[out++] = (byte) remainder;
+        return out;
+    }
+
+    private static int readInt(byte[] b, int i) {
+        return (b[i] & 0xff) << 24 | (b[i + 1] & 0xff) << 16 | (b[i + 2] & 0xff) << 8 | (b[i + 3] & 0xff);
+    }
+
+    private static ByteBuffer header(byte[] output, int codec, int originalLength, int length) {
+        ByteBuffer encoded = ByteBuffer.wrap(output, 0, length);
+        encoded.put(0, (byte) codec).putInt(1, originalLength);
+        return encoded;
+    }
+}
@@ -0,0 +1,45 @@
+/**
+ * CongestionControl decides how many DATA packets a {@link ReliableConnection} may
+ * have in flight. Implementations are notified of acknowledgements and losses and
+ * adjust the congestion window accordingly.
+ */
+public interface CongestionControl {
+
+    /**
+     * Returns the congestion window in packets. Always at least 1.
+     */
+    int getWindow();
+
+    /**
+     * Called when an ACK acknowledges new packets.
+     *
+     * @param acked number of packets newly acknowledged
+     * @param srtt  current smoothed round-trip time in milliseconds
+     * @param now   current time in milliseconds
+     */
+    void onAck(int acked, long srtt, long now);
+
+    /**
+     * Called when a packet is retransmitted after three duplicate ACKs.
+     */
+    void onFastRetransmit(long now);
+
+    /**
+     * Called when a retransmission timer expired.
+     */
+    void onTimeout(long now);
+
+    /**
+     * Creates a congestion controller by name: "reno" or "cubic".
+     */
+    static CongestionControl create(String name) {
+        switch (name.toLowerCase()) {
+            case "reno":
+                return new RenoCongestionControl();
+            case "cubic":
+                return new CubicCongestionControl();
+            default:
+                throw new IllegalArgumentException("Unknown congestion control: " + name);
+        }
+    }
+}
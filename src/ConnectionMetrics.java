@@ -0,0 +1,74 @@
+/**
+ * ConnectionMetrics is the {@link TransportMetrics} of one connection, adding
+ * everything it counts to {@link TransportMetrics#GLOBAL}, along with the
+ * connection's current round-trip time and windows. These are read from the
+ * connection as they are, so over JMX they are a close but unsynchronized view
+ * of a connection another thread is running.
+ */
+public class ConnectionMetrics extends TransportMetrics implements ConnectionMetricsMXBean {
+
+    private final ReliableConnection connection;
+
+    public ConnectionMetrics(ReliableConnection connection) {
+        super(GLOBAL);
+        this.connection = connection;
+    }
+
+    @Override
+    public String getPeer() {
+        return connection.getPeerAddress().getHostAddress() + ":" + connection.getPeerPort();
+    }
+
+    @Override
+    public String getState() {
+        return connection.getState().name();
+    }
+
+    @Override
+    public long getSmoothedRttMillis() {
+        return connection.getSmoothedRtt();
+    }
+
+    @Override
+    public long getRetransmissionTimeoutMillis() {
+        return connection.getRetransmissionTimeout();
+    }
+
+    @Override
+    public int getCongestionWindow() {
+        return connection.getCongestionWindow();
+    }
+
+    @Override
+    public int getSendWindow() {
+        return connection.getSendWindow();
+    }
+
+    @Override
+    public int getPacketsInFlight() {
+        return connection.getPacketsInFlight();
+    }
+
+    @Override
+    public int getRepairBlock() {
+        return connection.getRepairBlock();
+    }
+
+    @Override
+    public int getPacketLength() {
+        return connection.getPacketLength();
+    }
+
+    @Override
+    public int getWindowOccupancy() {
+        int window = Math.min(getSendWindow(), getCongestionWindow());
+        return window == 0 ? 0 : getPacketsInFlight() * 100 / window;
+    }
+
+    @Override
+    public String toString() {
+        return getPeer() + " " + getState() + " srtt=" + getSmoothedRttMillis() + " rto="
+                + getRetransmissionTimeoutMillis() + " cwnd=" + getCongestionWindow() + " inFlight="
+                + getPacketsInFlight() + " " + super.toString();
+    }
+}
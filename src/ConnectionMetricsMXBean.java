@@ -0,0 +1,38 @@
+/**
+ * The counters and current state of one reliable connection, over JMX.
+ */
+public interface ConnectionMetricsMXBean extends TransportMetricsMXBean {
+
+    String getPeer();
+
+    String getState();
+
+    long getSmoothedRttMillis();
+
+    long getRetransmissionTimeoutMillis();
+
+    int getCongestionWindow();
+
+    /**
+     * The receive window the peer agreed to.
+     */
+    int getSendWindow();
+
+    int getPacketsInFlight();
+
+    /**
+     * DATA packets per REPAIR packet sent, or 0 without forward error correction.
+     */
+    int getRepairBlock();
+
+    /**
+     * Length of the largest packets currently sent, in bytes.
+     */
+    int getPacketLength();
+
+    /**
+     * Packets in flight as a percentage of what the send and congestion windows
+     * allow.
+     */
+    int getWindowOccupancy();
+}
@@ -0,0 +1,68 @@
+/**
+ * CUBIC congestion control (RFC 8312). After a loss the window grows along a cubic
+ * curve centred on the window at which the loss happened, which makes growth
+ * independent of the round-trip time. The window never grows slower than Reno
+ * would (the TCP-friendly region).
+ */
+public class CubicCongestionControl implements CongestionControl {
+
+    public static final int INITIAL_WINDOW = 4;
+
+    private static final double C = 0.4;
+    private static final double BETA = 0.7;
+
+    private double cwnd = INITIAL_WINDOW;
+    private double ssthresh = Integer.MAX_VALUE;
+    private double wMax;
+    private double k;
+    private long epochStart = -1;
+
+    @Override
+    public int getWindow() {
+        return Math.max(1, (int) cwnd);
+    }
+
+    @Override
+    public void onAck(int acked, long srtt, long now) {
+        if (cwnd < ssthresh) {
+            cwnd += acked;
+            return;
+        }
+        if (epochStart < 0) {
+            epochStart = now;
+            if (wMax < cwnd) {
+                wMax = cwnd;
+            }
+            k = Math.cbrt(wMax * (1 - BETA) / C);
+        }
+
+        double t = (now - epochStart + srtt) / 1000.0;
+        double target = C * Math.pow(t - k, 3) + wMax;
+        double friendly = wMax * BETA + 3 * (1 - BETA) / (1 + BETA) * (now - epochStart) / Math.max(1, srtt);
+        target = Math.max(target, friendly);
+
+        if (target > cwnd) {
+            cwnd += acked * (target - cwnd) / cwnd;
+        } else {
+            cwnd += acked * 0.01 / cwnd;
+        }
+    }
+
+    @Override
+    public void onFastRetransmit(long now) {
+        reduce();
+        cwnd = ssthresh;
+    }
+
+    @Override
+    public void onTimeout(long now) {
+        reduce();
+        cwnd = 1;
+    }
+
+    private void reduce() {
+        epochStart = -1;
+        wMax = cwnd;
+        ssthresh = Math.max(cwnd * BETA, 2);
+    }
+}
@@ -0,0 +1,263 @@
+import static java.nio.channels.SelectionKey.OP_READ;
+import static java.nio.channels.SelectionKey.OP_WRITE;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * EventLoop is the core both the client and the server transports run on: one
+ * {@link Selector} for all the datagram channels of a thread, timers on a
+ * {@link TimerWheel} of millisecond ticks, and a queue of tasks other threads hand to the loop. Each call to
+ * {@link #runOnce} sleeps until the next datagram, task or timer, then handles
+ * whatever is ready.
+ * <p>
+ * Received datagrams are handed to the {@link Handler} of their channel in
+ * batches of up to {@link ReliableConnection#MAX_RECEIVE_BATCH}, each batch
+ * closed by {@link Handler#onBatchEnd}. Datagrams are sent right away when the
+ * socket has room; otherwise they are copied to a queue that drains as soon as
+ * the socket is writable again, instead of being lost.
+ * <p>
+ * Apart from {@link #execute}, an EventLoop must only be used by its own thread.
+ */
+public class EventLoop implements Closeable {
+
+    // Datagrams queued per channel while its socket is full. Beyond this they are
+    // dropped, as a congested network would, and retransmitted in time.
+    public static final int MAX_QUEUED = 1024;
+
+    /**
+     * Receives the datagrams of a channel. It takes ownership of each buffer.
+     */
+    public interface Handler {
+        void onDatagram(ByteBuffer datagram, SocketAddress source, long now) throws IOException;
+
+        /**
+         * Called once the datagrams ready at once have been handed over.
+         */
+        void onBatchEnd(long now) throws IOException;
+    }
+
+    /**
+     * Work run by the loop thread at a given time.
+     */
+    public interface Task {
+        void run(long now) throws IOException;
+    }
+
+    private final Selector selector;
+    private final BufferPool pool;
+    private final TimerWheel<Timer> timers = new TimerWheel<>(1, System.currentTimeMillis());
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private final ArrayDeque<Timer> expired = new ArrayDeque<>();
+
+    /**
+     * @param pool the buffers datagrams are received into, which must hold the
+     *             largest datagram expected
+     */
+    public EventLoop(BufferPool pool) throws IOException {
+        this.selector = Selector.open();
+        this.pool = pool;
+    }
+
+    /**
+     * Starts receiving the datagrams of a channel.
+     *
+     * @return the endpoint to send datagrams through
+     */
+    public Endpoint register(DatagramChannel channel, Handler handler) throws IOException {
+        channel.configureBlocking(false);
+        Endpoint endpoint = new Endpoint(channel, handler);
+        endpoint.key = channel.register(selector, OP_READ, endpoint);
+        return endpoint;
+    }
+
+    public Timer newTimer(Task task) {
+        return new Timer(task);
+    }
+
+    /**
+     * Runs a task on the loop thread, waking the loop up if it is waiting. This is
+     * the only method other threads may call.
+     */
+    public void execute(Runnable task) {
+        tasks.add(task);
+        selector.wakeup();
+    }
+
+    /**
+     * Waits for a datagram, a task or the earliest timer, but not beyond deadline,
+     * then handles everything that is ready: datagrams, queued sends, tasks and
+     * due timers, in that order.
+     */
+    public void runOnce(long deadline) throws IOException {
+        long now = System.currentTimeMillis();
+        long wake = Math.min(deadline, timers.nextDeadline());
+        if (!tasks.isEmpty() || wake <= now) {
+            selector.selectNow();
+        } else if (wake == Long.MAX_VALUE) {
+            selector.select();
+        } else {
+            selector.select(wake - now);
+        }
+
+        now = System.currentTimeMillis();
+        for (SelectionKey key : selector.selectedKeys()) {
+            Endpoint endpoint = (Endpoint) key.attachment();
+            if (key.isValid() && key.isWritable()) {
+                endpoint.flush();
+            }
+            if (key.isValid() && key.isReadable()) {
+                endpoint.receive(now);
+            }
+        }
+        selector.selectedKeys().clear();
+
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            task.run();
+        }
+
+        // Timers that schedule themselves again before now run in the next round.
+        timers.advance(now);
+        Timer timer;
+        while ((timer = timers.poll()) != null) {
+            expired.add(timer);
+        }
+        while ((timer = expired.poll()) != null) {
+            timer.task.run(now);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        for (SelectionKey key : selector.keys()) {
+            ((Endpoint) key.attachment()).clear();
+        }
+        selector.close();
+    }
+
+    /**
+     * A datagram channel run by the loop.
+     */
+    public class Endpoint {
+        private final DatagramChannel channel;
+        private final Handler handler;
+        private final ArrayDeque<Queued> queue = new ArrayDeque<>();
+        private SelectionKey key;
+        private long dropped;
+
+        private Endpoint(DatagramChannel channel, Handler handler) {
+            this.channel = channel;
+            this.handler = handler;
+        }
+
+        /**
+         * Sends the datagram between the buffer's position and limit, or queues a
+         * copy of it if the socket is full. The buffer is not kept.
+         */
+        public void send(ByteBuffer datagram, SocketAddress target) throws IOException {
+            if (queue.isEmpty() && channel.send(datagram, target) > 0) {
+                return;
+            }
+            if (queue.size() >= MAX_QUEUED) {
+                dropped++;
+                return;
+            }
+            ByteBuffer copy = pool.acquire();
+            copy.put(datagram).flip();
+            queue.add(new Queued(copy, target));
+            key.interestOps(OP_READ | OP_WRITE);
+        }
+
+        /**
+         * Returns how many datagrams were dropped because the send queue was full.
+         */
+        public long getDropped() {
+            return dropped;
+        }
+
+        private void flush() throws IOException {
+            Queued next;
+            while ((next = queue.peek()) != null) {
+                if (channel.send(next.datagram, next.target) == 0) {
+                    return;
+                }
+                queue.poll();
+                pool.release(next.datagram);
+            }
+            key.interestOps(OP_READ);
+        }
+
+        private void receive(long now) throws IOException {
+            int received = 0;
+            while (received < ReliableConnection.MAX_RECEIVE_BATCH) {
+                ByteBuffer buf = pool.acquire();
+                SocketAddress source = channel.receive(buf);
+                if (source == null) {
+                    pool.release(buf);
+                    break;
+                }
+                buf.flip();
+                received++;
+                handler.onDatagram(buf, source, now);
+            }
+            // Whatever is left keeps the key ready for the next round.
+            if (received > 0) {
+                handler.onBatchEnd(now);
+            }
+        }
+
+        private void clear() {
+            for (Queued queued : queue) {
+                pool.release(queued.datagram);
+            }
+            queue.clear();
+        }
+    }
+
+    /**
+     * A task run once its deadline has passed. Scheduling it again moves the
+     * deadline; it is run at most once per deadline.
+     */
+    public class Timer extends TimerWheel.Timeout {
+        private final Task task;
+
+        private Timer(Task task) {
+            this.task = task;
+        }
+
+        /**
+         * Runs the task at deadline instead of any earlier deadline, or never for
+         * Long.MAX_VALUE.
+         */
+        public void schedule(long deadline) {
+            if (deadline == Long.MAX_VALUE) {
+                cancel();
+            } else if (!isScheduled() || deadline != getDeadline()) {
+                timers.schedule(this, deadline);
+            }
+        }
+
+        public void cancel() {
+            timers.cancel(this);
+        }
+    }
+
+    private static class Queued {
+        private final ByteBuffer datagram;
+        private final SocketAddress target;
+
+        Queued(ByteBuffer datagram, SocketAddress target) {
+            this.datagram = datagram;
+            this.target = target;
+        }
+    }
+}
@@ -0,0 +1,281 @@
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * FileIndex keeps the tree of files the server serves in memory, so that listings
+ * and existence checks never walk the disk. It is built once, then kept current
+ * by a {@link WatchService} on every directory of the tree and by
+ * {@link #update}, which the server calls for its own writes so that they are
+ * visible at once.
+ * <p>
+ * Entries are keyed by their path relative to the root, with '/' as separator.
+ * Part files of uploads in progress are left out. As before the index existed,
+ * files found in subdirectories are made inaccessible, since only the top-level
+ * directory is served. FileIndex is thread-safe.
+ */
+public class FileIndex implements Closeable {
+
+    private final Path root;
+    private final WatchService watcher;
+    // Replaced as a whole when the tree is scanned again, so that readers never see it half built.
+    private volatile Map<String, Entry> entries = new ConcurrentHashMap<>();
+    // The index being built by such a scan, which the server's own updates also go to.
+    private volatile Map<String, Entry> rebuilding;
+    private final Map<WatchKey, Path> watched = new ConcurrentHashMap<>();
+    private final Thread thread;
+    // The sorted names are gathered once per version of the index, which every change bumps.
+    private final AtomicLong version = new AtomicLong();
+    private volatile Listing listing;
+
+    public FileIndex(Path root) throws IOException {
+        this.root = root.toAbsolutePath().normalize();
+        this.watcher = this.root.getFileSystem().newWatchService();
+        scan(this.root, entries);
+        this.thread = new Thread(this::watch, "file-index");
+        this.thread.setDaemon(true);
+    }
+
+    /**
+     * Starts following changes to the tree.
+     */
+    public void start() {
+        thread.start();
+    }
+
+    /**
+     * Returns the entry of a path relative to the root, or null if there is none.
+     */
+    public Entry get(String path) {
+        return entries.get(path);
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     * Returns the version of the index, which changes whenever the tree does, so
+     * that callers can keep what they derive from it until then.
+     */
+    public long getVersion() {
+        return version.get();
+    }
+
+    /**
+     * Returns the distinct names of every file and directory of the tree, sorted.
+     */
+    public List<String> list() {
+        long current = version.get();
+        Listing cached = listing;
+        if (cached != null && cached.version == current) {
+            return cached.names;
+        }
+        TreeSet<String> distinct = new TreeSet<>();
+        for (Entry entry : entries.values()) {
+            distinct.add(entry.getName());
+        }
+        List<String> names = Collections.unmodifiableList(new ArrayList<>(distinct));
+        listing = new Listing(current, names);
+        return names;
+    }
+
+    /**
+     * Reads the metadata of a file again, or forgets it if it is gone.
+     */
+    public void update(Path file) {
+        Path path = root.resolve(file).normalize();
+        Map<String, Entry> next = rebuilding;
+        try {
+            BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+            put(entries, path, attributes);
+            if (next != null) {
+                put(next, path, attributes);
+            }
+        } catch (IOException e) {
+            remove(entries, path);
+            if (next != null) {
+                remove(next, path);
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        watcher.close();
+    }
+
+    private void watch() {
+        for (; ; ) {
+            WatchKey key;
+            try {
+                key = watcher.take();
+            } catch (InterruptedException | ClosedWatchServiceException e) {
+                return;
+            }
+            Path dir = watched.get(key);
+            for (WatchEvent<?> event : key.pollEvents()) {
+                if (event.kind() == OVERFLOW || dir == null) {
+                    // Events were lost, start over on a fresh index and swap it in once complete.
+                    Map<String, Entry> fresh = new ConcurrentHashMap<>();
+                    rebuilding = fresh;
+                    scan(root, fresh);
+                    entries = fresh;
+                    rebuilding = null;
+                    version.incrementAndGet();
+                    continue;
+                }
+                Path child = dir.resolve((Path) event.context());
+                if (event.kind() == ENTRY_DELETE) {
+                    remove(entries, child);
+                } else if (event.kind() == ENTRY_CREATE && Files.isDirectory(child)) {
+                    scan(child, entries);
+                } else if (event.kind() == ENTRY_CREATE) {
+                    update(child);
+                    lockDown(child);
+                } else {
+                    update(child);
+                }
+            }
+            if (!key.reset()) {
+                watched.remove(key);
+            }
+        }
+    }
+
+    /**
+     * Indexes and watches a directory and everything below it, into index. Parts of
+     * the tree that cannot be read are left out.
+     */
+    private void scan(Path start, Map<String, Entry> index) {
+        try {
+            Files.walkFileTree(start, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attributes) throws IOException {
+                    watched.put(dir.register(watcher, ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY), dir);
+                    put(index, dir, attributes);
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) {
+                    put(index, file, attributes);
+                    lockDown(file);
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFileFailed(Path file, IOException e) {
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        } catch (IOException e) {
+            remove(index, start);
+        }
+    }
+
+    private void put(Map<String, Entry> index, Path path, BasicFileAttributes attributes) {
+        String name = path.getFileName().toString();
+        if (path.equals(root) || name.endsWith(Upload.PART_SUFFIX) || name.endsWith(Upload.TAG_SUFFIX)) {
+            return;
+        }
+        String key = key(path);
+        index.put(key, new Entry(key, attributes.size(), attributes.lastModifiedTime().toMillis(),
+                attributes.isDirectory()));
+        version.incrementAndGet();
+    }
+
+    /**
+     * Forgets a path and, if it was a directory, everything below it.
+     */
+    private void remove(Map<String, Entry> index, Path path) {
+        String key = key(path);
+        Entry entry = index.remove(key);
+        if (entry != null && entry.isDirectory()) {
+            index.keySet().removeIf(k -> k.startsWith(key + "/"));
+        }
+        version.incrementAndGet();
+    }
+
+    private void lockDown(Path file) {
+        if (key(file).indexOf('/') >= 0 && !Files.isDirectory(file)) {
+            file.toFile().setExecutable(false);
+            file.toFile().setReadable(false);
+            file.toFile().setWritable(false);
+        }
+    }
+
+    private String key(Path path) {
+        return root.relativize(path).toString().replace('\\', '/');
+    }
+
+    private static class Listing {
+        private final long version;
+        private final List<String> names;
+
+        Listing(long version, List<String> names) {
+            this.version = version;
+            this.names = names;
+        }
+    }
+
+    /**
+     * A file or directory of the tree.
+     */
+    public static class Entry {
+        private final String path;
+        private final long size;
+        private final long lastModified;
+        private final boolean directory;
+
+        Entry(String path, long size, long lastModified, boolean directory) {
+            this.path = path;
+            this.size = size;
+            this.lastModified = lastModified;
+            this.directory = directory;
+        }
+
+        /**
+         * Returns the path relative to the root.
+         */
+        public String getPath() {
+            return path;
+        }
+
+        public String getName() {
+            return path.substring(path.lastIndexOf('/') + 1);
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        public long getLastModified() {
+            return lastModified;
+        }
+
+        public boolean isDirectory() {
+            return directory;
+        }
+    }
+}
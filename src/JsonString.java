@@ -0,0 +1,247 @@
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * JsonString is the remaining bytes of buffers, UTF-8 text such as the content
+ * of a file, as a JSON string: in quotes, with quotes, backslashes and control
+ * characters escaped. It is a {@link MessageSource}, escaped as it is read, so
+ * that a file of any size is sent as a JSON string a packet at a time, straight
+ * from its memory-mapped chunks.
+ * <p>
+ * Bytes that are not well-formed UTF-8, such as those of a binary file, are
+ * replaced with U+FFFD, a maximal ill-formed subsequence at a time, so that the
+ * string is always valid JSON. The length is found by escaping the content once
+ * up front, into a small scratch buffer.
+ */
+public class JsonString implements MessageSource {
+
+    /**
+     * The largest buffer {@link #encode} returns.
+     */
+    public static final int CHUNK_SIZE = 64 * 1024;
+
+    private static final byte[] HEX = "0123456789abcdef".getBytes();
+    private static final byte[] REPLACEMENT = {(byte) 0xef, (byte) 0xbf, (byte) 0xbd};
+    private static final int SCRATCH_SIZE = 8 * 1024;
+
+    private final ByteBuffer[] content;
+    private final long length;
+    // The content buffer being escaped; those before it are done.
+    private int part;
+    private boolean opened;
+    private boolean closed;
+    // The bytes of an escape sequence, or of a character, that did not fit in the last buffer read into.
+    private final byte[] pending = new byte[6];
+    private int pendingStart;
+    private int pendingEnd;
+
+    /**
+     * The buffers are not moved and must not change until the string is read.
+     */
+    public JsonString(ByteBuffer... content) {
+        this.content = duplicates(content);
+        JsonString measure = new JsonString(duplicates(content), 0);
+        ByteBuffer scratch = ByteBuffer.allocate(SCRATCH_SIZE);
+        long length = 0;
+        do {
+            scratch.clear();
+            measure.read(scratch);
+            length += scratch.position();
+        } while (!scratch.hasRemaining());
+        this.length = length;
+    }
+
+    private JsonString(ByteBuffer[] content, long length) {
+        this.content = content;
+        this.length = length;
+    }
+
+    /**
+     * Returns the remaining bytes of content as a JSON string, copied into buffers
+     * of at most CHUNK_SIZE bytes, for a string that is kept rather than sent once.
+     */
+    public static ByteBuffer[] encode(ByteBuffer... content) {
+        JsonString string = new JsonString(content);
+        List<ByteBuffer> chunks = new ArrayList<>();
+        for (long left = string.length; left > 0; left -= CHUNK_SIZE) {
+            ByteBuffer chunk = ByteBuffer.allocate((int) Math.min(CHUNK_SIZE, left));
+            string.read(chunk);
+            chunk.flip();
+            chunks.add(chunk);
+        }
+        return chunks.toArray(new ByteBuffer[0]);
+    }
+
+    @Override
+    public long length() {
+        return length;
+    }
+
+    @Override
+    public void read(ByteBuffer buf) {
+        while (buf.hasRemaining()) {
+            if (pendingStart < pendingEnd) {
+                int n = Math.min(buf.remaining(), pendingEnd - pendingStart);
+                buf.put(pending, pendingStart, n);
+                pendingStart += n;
+                continue;
+            }
+            if (!opened) {
+                opened = true;
+                buf.put((byte) '"');
+                continue;
+            }
+            while (part < content.length && !content[part].hasRemaining()) {
+                part++;
+            }
+            if (part == content.length) {
+                if (!closed) {
+                    closed = true;
+                    buf.put((byte) '"');
+                }
+                return;
+            }
+            ByteBuffer src = content[part];
+            int b = src.get(src.position()) & 0xff;
+            if (b >= 0x20 && b < 0x80 && b != '"' && b != '\\') {
+                putRun(src, buf);
+            } else if (b < 0x80) {
+                src.get();
+                escape(b);
+            } else {
+                int sequence = sequence();
+                if (sequence > 0) {
+                    for (int i = 0; i < sequence; i++) {
+                        pending[i] = (byte) next();
+                    }
+                    pendingEnd = sequence;
+                } else {
+                    for (int i = 0; i < -sequence; i++) {
+                        next();
+                    }
+                    System.arraycopy(REPLACEMENT, 0, pending, 0, REPLACEMENT.length);
+                    pendingEnd = REPLACEMENT.length;
+                }
+                pendingStart = 0;
+            }
+        }
+    }
+
+    /**
+     * Copies the run of ASCII characters that need no escaping at the position of
+     * src, as much of it as fits in buf.
+     */
+    private static void putRun(ByteBuffer src, ByteBuffer buf) {
+        int end = src.position() + Math.min(src.remaining(), buf.remaining());
+        int i = src.position() + 1;
+        while (i < end) {
+            int b = src.get(i);
+            if (b < 0x20 || b == '"' || b == '\\') {
+                break;
+            }
+            i++;
+        }
+        int limit = src.limit();
+        src.limit(i);
+        buf.put(src);
+        src.limit(limit);
+    }
+
+    /**
+     * Makes the escape sequence of a quote, a backslash or a control character
+     * pending.
+     */
+    private void escape(int c) {
+        pending[0] = '\\';
+        pendingStart = 0;
+        pendingEnd = 2;
+        switch (c) {
+            case '"':
+            case '\\':
+                pending[1] = (byte) c;
+                break;
+            case '\n':
+                pending[1] = 'n';
+                break;
+            case '\r':
+                pending[1] = 'r';
+                break;
+            case '\t':
+                pending[1] = 't';
+                break;
+            default:
+                pending[1] = 'u';
+                pending[2] = '0';
+                pending[3] = '0';
+                pending[4] = HEX[c >> 4];
+                pending[5] = HEX[c & 0xf];
+                pendingEnd = 6;
+                break;
+        }
+    }
+
+    /**
+     * Returns the length of the UTF-8 sequence that starts at the next byte, a
+     * lead byte, if it is well-formed; otherwise minus the length of its longest
+     * well-formed start, at least 1, to be replaced as a whole.
+     */
+    private int sequence() {
+        int lead = peek(0);
+        int length;
+        int low = 0x80;
+        int high = 0xbf;
+        if (lead >= 0xc2 && lead <= 0xdf) {
+            length = 2;
+        } else if (lead >= 0xe0 && lead <= 0xef) {
+            length = 3;
+            // No overlong forms, and no surrogates.
+            low = lead == 0xe0 ? 0xa0 : low;
+            high = lead == 0xed ? 0x9f : high;
+        } else if (lead >= 0xf0 && lead <= 0xf4) {
+            length = 4;
+            // No overlong forms, and nothing beyond U+10FFFF.
+            low = lead == 0xf0 ? 0x90 : low;
+            high = lead == 0xf4 ? 0x8f : high;
+        } else {
+            return -1;
+        }
+        for (int i = 1; i < length; i++) {
+            int b = peek(i);
+            if (b < low || b > high) {
+                return -i;
+            }
+            low = 0x80;
+            high = 0xbf;
+        }
+        return length;
+    }
+
+    /**
+     * Returns the byte ahead of the next one of the content, or -1 past its end.
+     */
+    private int peek(int ahead) {
+        for (int i = part; i < content.length; i++) {
+            if (ahead < content[i].remaining()) {
+                return content[i].get(content[i].position() + ahead) & 0xff;
+            }
+            ahead -= content[i].remaining();
+        }
+        return -1;
+    }
+
+    private int next() {
+        while (!content[part].hasRemaining()) {
+            part++;
+        }
+        return content[part].get() & 0xff;
+    }
+
+    private static ByteBuffer[] duplicates(ByteBuffer[] buffers) {
+        ByteBuffer[] duplicates = new ByteBuffer[buffers.length];
+        for (int i = 0; i < buffers.length; i++) {
+            duplicates[i] = buffers[i].duplicate();
+        }
+        return duplicates;
+    }
+}
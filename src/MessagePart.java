@@ -0,0 +1,38 @@
+import java.nio.ByteBuffer;
+
+/**
+ * MessagePart is a piece of a received message, see
+ * {@link ReliableConnection#pollPart(long)}. A message arrives as one or more parts,
+ * in order, the last one marked as such. The messages of a stream never
+ * interleave, but the parts of messages on different streams may.
+ */
+public class MessagePart {
+
+    private final int stream;
+    private final ByteBuffer data;
+    private final boolean last;
+
+    public MessagePart(int stream, ByteBuffer data, boolean last) {
+        this.stream = stream;
+        this.data = data;
+        this.last = last;
+    }
+
+    /**
+     * Returns the stream of the message, 0 unless both sides agreed to streams.
+     */
+    public int getStream() {
+        return stream;
+    }
+
+    /**
+     * Returns the bytes of the part, in a heap buffer of its own.
+     */
+    public ByteBuffer getData() {
+        return data;
+    }
+
+    public boolean isLast() {
+        return last;
+    }
+}
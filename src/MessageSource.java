@@ -0,0 +1,126 @@
+import java.nio.ByteBuffer;
+
+/**
+ * MessageSource is a message for {@link ReliableConnection#send(int, MessageSource, long)}
+ * whose bytes are read as the window lets each fragment out, straight into the
+ * packet buffers. A message that only exists in an encoded form of the data it
+ * is made from, such as a file escaped as a JSON string, is thus produced a
+ * packet at a time and never held whole.
+ * <p>
+ * The length of a message is known before it is read, as the fragments of a
+ * message are counted when it starts. A MessageSource is read once.
+ */
+public interface MessageSource {
+
+    /**
+     * Returns the number of bytes of the message.
+     */
+    long length();
+
+    /**
+     * Writes the next bytes of the message into buf, until buf is full or the
+     * message ends.
+     */
+    void read(ByteBuffer buf);
+
+    /**
+     * Returns the message made of the remaining bytes of buffers, in order. The
+     * buffers are not moved and must not change until the message is sent.
+     */
+    static MessageSource of(ByteBuffer... buffers) {
+        return new Buffers(buffers);
+    }
+
+    /**
+     * Returns the message made of several messages, one after the other.
+     */
+    static MessageSource concat(MessageSource... sources) {
+        return new Concatenation(sources);
+    }
+
+    /**
+     * The remaining bytes of buffers.
+     */
+    class Buffers implements MessageSource {
+        private final ByteBuffer[] buffers;
+        private final long length;
+        private int next;
+
+        Buffers(ByteBuffer[] buffers) {
+            // Duplicates, so that reading never moves the caller's buffers.
+            this.buffers = new ByteBuffer[buffers.length];
+            long length = 0;
+            for (int i = 0; i < buffers.length; i++) {
+                this.buffers[i] = buffers[i].duplicate();
+                length += this.buffers[i].remaining();
+            }
+            this.length = length;
+        }
+
+        @Override
+        public long length() {
+            return length;
+        }
+
+        @Override
+        public void read(ByteBuffer buf) {
+            while (buf.hasRemaining() && next < buffers.length) {
+                ByteBuffer src = buffers[next];
+                if (src.remaining() <= buf.remaining()) {
+                    buf.put(src);
+                    next++;
+                } else {
+                    int limit = src.limit();
+                    src.limit(src.position() + buf.remaining());
+                    buf.put(src);
+                    src.limit(limit);
+                }
+            }
+        }
+    }
+
+    /**
+     * Messages one after the other.
+     */
+    class Concatenation implements MessageSource {
+        private final MessageSource[] sources;
+        private final long length;
+        private int next;
+        // Bytes of sources[next] read so far.
+        private long read;
+
+        Concatenation(MessageSource[] sources) {
+            this.sources = sources.clone();
+            long length = 0;
+            for (MessageSource source : sources) {
+                length += source.length();
+            }
+            this.length = length;
+        }
+
+        @Override
+        public long length() {
+            return length;
+        }
+
+        @Override
+        public void read(ByteBuffer buf) {
+            while (buf.hasRemaining() && next < sources.length) {
+                MessageSource source = sources[next];
+                int start = buf.position();
+                int limit = buf.limit();
+                buf.limit((int) Math.min(limit, start + source.length() - read));
+                source.read(buf);
+                buf.limit(limit);
+                if (buf.position() == start && read < source.length()) {
+                    throw new IllegalStateException("Message ended before its length");
+                }
+                read += buf.position() - start;
+                if (read == source.length()) {
+                    next++;
+                    read = 0;
+                }
+            }
+        }
+    }
+}
@@ -1,8 +1,6 @@
 import java.io.IOException;
-import java.net.Inet4Address;
 import java.net.InetAddress;
 import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
 
 /**
  * Packet represents a simulated network packet. As we don't have unsigned types
@@ -11,7 +9,95 @@ import java.nio.ByteOrder;
 public class Packet {
 
     public static final int MIN_LEN = 11;
+    /**
+     * The largest packet every endpoint accepts. Connections may agree on larger
+     * ones, see {@link ReliableConnection#setMaxPacketLength}.
+     */
     public static final int MAX_LEN = 110 + 1024;
+    public static final int MAX_PAYLOAD_LEN = MAX_LEN - MIN_LEN;
+    /**
+     * The largest UDP payload over IPv4, and so the largest packet of all.
+     */
+    public static final int MAX_DATAGRAM_LEN = 65507;
+
+    /**
+     * Carries application data. The sequence number identifies the packet in the
+     * sender's window. If both sides agreed to streams, the payload starts with the
+     * 1-byte ID of the stream the data belongs to.
+     */
+    public static final int DATA = 0;
+
+    /**
+     * Acknowledges data. The sequence number is the cumulative acknowledgement (the
+     * next sequence number expected in order) and the payload lists the runs of
+     * packets received out of order as selective acknowledgement blocks of a
+     * 4-byte first sequence number and a 4-byte end, exclusive.
+     */
+    public static final int ACK = 1;
+
+    /**
+     * Opens a connection. The sequence number is the sender's initial sequence
+     * number and the payload carries the connection options.
+     */
+    public static final int SYN = 2;
+
+    /**
+     * Accepts a connection. The sequence number is the server's initial sequence
+     * number; the payload starts with the 4-byte acknowledgement of the client's
+     * SYN, followed by the options the server agreed to.
+     */
+    public static final int SYN_ACK = 3;
+
+    /**
+     * Reports a gap: the sequence number is the first packet the receiver is
+     * missing, which the sender should retransmit right away.
+     */
+    public static final int NAK = 4;
+
+    /**
+     * Closes the sender's direction of the connection. It takes a sequence number
+     * after the last DATA packet and is acknowledged like one. The payload carries
+     * the sender's 4-byte cumulative acknowledgement.
+     */
+    public static final int FIN = 5;
+
+    /**
+     * Lets the receiver rebuild a lost DATA packet without a retransmission. The
+     * sequence number is the first of a block of consecutive DATA packets and the
+     * payload is their {@link Parity}. It takes no sequence number of its own and
+     * is not acknowledged.
+     */
+    public static final int REPAIR = 6;
+
+    /**
+     * Checks that packets of its length reach the receiver, which answers with a
+     * PROBE_ACK. The payload starts with the 4-byte length of the packet and is
+     * padded with zeros up to it. It takes no sequence number.
+     */
+    public static final int PROBE = 7;
+
+    /**
+     * Answers a PROBE that arrived whole. The payload is its 4-byte length.
+     */
+    public static final int PROBE_ACK = 8;
+
+    /**
+     * Retransmits part of a DATA packet larger than the path carries any more. The
+     * sequence number is the DATA packet's and the payload is a 1-byte part index,
+     * 1-byte part count and the 2-byte length of every part but the last, followed
+     * by the part, which starts at index times that length into the DATA payload.
+     * The receiver handles the DATA packet once it has all its parts.
+     */
+    public static final int DATA_PART = 9;
+
+    /**
+     * Grants the peer more credit on streams, see
+     * {@link ReliableConnection#setStreamCredit}. It takes a sequence number and
+     * is acknowledged like a DATA packet. The payload lists a 1-byte stream ID and
+     * the 8-byte total of message data the sender accepts on that stream so far,
+     * for every stream whose credit changed.
+     */
+    public static final int CREDIT = 10;
 
     private final int type;
     private final long sequenceNumber;
@@ -60,10 +146,10 @@ public class Packet {
      * Writes a raw presentation of the packet to byte buffer. The order of the
      * buffer should be set as BigEndian.
      */
-    private void write(ByteBuffer buf) {
+    public void write(ByteBuffer buf) {
         buf.put((byte) type);
         buf.putInt((int) sequenceNumber);
-        buf.put(peerAddress.getAddress());
+        buf.putInt(PacketView.toBits(peerAddress));
         buf.putShort((short) peerPort);
         buf.put(payload);
     }
@@ -73,19 +159,15 @@ public class Packet {
      * flipped and ready for get operations.
      */
     public ByteBuffer toBuffer() {
-        ByteBuffer buf = ByteBuffer.allocate(MAX_LEN).order(ByteOrder.BIG_ENDIAN);
-        write(buf);
-        buf.flip();
-        return buf;
+        return ByteBuffer.wrap(toBytes());
     }
 
     /**
      * Returns a raw representation of the packet.
      */
     public byte[] toBytes() {
-        ByteBuffer buf = toBuffer();
-        byte[] raw = new byte[buf.remaining()];
-        buf.get(raw);
+        byte[] raw = new byte[MIN_LEN + payload.length];
+        write(ByteBuffer.wrap(raw));
         return raw;
     }
 
@@ -94,7 +176,7 @@ public class Packet {
      */
     public static Packet fromBuffer(ByteBuffer buf) throws IOException {
 
-        if (buf.limit() < MIN_LEN || buf.limit() > MAX_LEN) {
+        if (buf.limit() < MIN_LEN || buf.limit() > MAX_DATAGRAM_LEN) {
             throw new IOException("Invalid length");
         }
 
@@ -102,9 +184,7 @@ public class Packet {
 
         builder.setType(Byte.toUnsignedInt(buf.get()));
         builder.setSequenceNumber(Integer.toUnsignedLong(buf.getInt()));
-
-        byte[] host = new byte[]{buf.get(), buf.get(), buf.get(), buf.get()};
-        builder.setPeerAddress(Inet4Address.getByAddress(host));
+        builder.setPeerAddress(PacketView.toAddress(buf.getInt()));
         builder.setPortNumber(Short.toUnsignedInt(buf.getShort()));
 
         byte[] payload = new byte[buf.remaining()];
@@ -118,10 +198,7 @@ public class Packet {
      * fromBytes creates a packet from the given array of bytes.
      */
     public static Packet fromBytes(byte[] bytes) throws IOException {
-        ByteBuffer buf = ByteBuffer.allocate(MAX_LEN).order(ByteOrder.BIG_ENDIAN);
-        buf.put(bytes);
-        buf.flip();
-        return fromBuffer(buf);
+        return fromBuffer(ByteBuffer.wrap(bytes));
     }
 
     @Override
@@ -0,0 +1,150 @@
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+
+/**
+ * PacketView reads the header fields of a raw packet directly from the ByteBuffer
+ * it was received into, without creating a {@link Packet}. The buffer must hold
+ * exactly one packet between index 0 and its limit, in the layout written by
+ * {@link Packet}:
+ * <pre>
+ *   type (1 byte) | sequence number (4 bytes) | peer address (4 bytes) | peer port (2 bytes) | payload
+ * </pre>
+ * A view is a flyweight: call {@link #wrap} to point it at another buffer.
+ */
+public class PacketView {
+
+    public static final int TYPE_OFFSET = 0;
+    public static final int SEQUENCE_OFFSET = 1;
+    public static final int ADDRESS_OFFSET = 5;
+    public static final int PORT_OFFSET = 9;
+    public static final int PAYLOAD_OFFSET = Packet.MIN_LEN;
+
+    private static final int ADDRESS_CACHE_SIZE = 256;
+    private static final CachedAddress[] addressCache = new CachedAddress[ADDRESS_CACHE_SIZE];
+
+    private ByteBuffer buf;
+
+    /**
+     * Returns true if the buffer's limit is a valid packet length.
+     */
+    public static boolean isValid(ByteBuffer buf) {
+        return buf.limit() >= Packet.MIN_LEN && buf.limit() <= Packet.MAX_DATAGRAM_LEN;
+    }
+
+    public PacketView wrap(ByteBuffer buf) {
+        this.buf = buf;
+        return this;
+    }
+
+    public int getType() {
+        return Byte.toUnsignedInt(buf.get(TYPE_OFFSET));
+    }
+
+    public long getSequenceNumber() {
+        return Integer.toUnsignedLong(buf.getInt(SEQUENCE_OFFSET));
+    }
+
+    /**
+     * Returns the sequence number as the 64-bit one closest to reference, see
+     * {@link #unwrap}.
+     */
+    public long getSequenceNumber(long reference) {
+        return unwrap(buf.getInt(SEQUENCE_OFFSET), reference);
+    }
+
+    /**
+     * Returns the peer IPv4 address as a big-endian int.
+     */
+    public int getPeerAddressBits() {
+        return buf.getInt(ADDRESS_OFFSET);
+    }
+
+    public InetAddress getPeerAddress() {
+        return toAddress(getPeerAddressBits());
+    }
+
+    public int getPeerPort() {
+        return Short.toUnsignedInt(buf.getShort(PORT_OFFSET));
+    }
+
+    public int getPayloadLength() {
+        return buf.limit() - PAYLOAD_OFFSET;
+    }
+
+    /**
+     * Returns a read-only slice of the payload sharing the packet's buffer.
+     */
+    public ByteBuffer payload() {
+        ByteBuffer dup = buf.asReadOnlyBuffer();
+        dup.position(PAYLOAD_OFFSET);
+        return dup.slice();
+    }
+
+    /**
+     * Writes a packet header at the start of buf and leaves the position at
+     * {@link #PAYLOAD_OFFSET}, ready for the payload.
+     */
+    public static void writeHeader(ByteBuffer buf, int type, long sequenceNumber, int peerAddressBits,
+                                   int peerPort) {
+        buf.clear();
+        buf.put((byte) type);
+        buf.putInt((int) sequenceNumber);
+        buf.putInt(peerAddressBits);
+        buf.putShort((short) peerPort);
+    }
+
+    /**
+     * Returns the 64-bit sequence number closest to reference whose low 32 bits are
+     * serial. This is RFC 1982 serial number arithmetic: serial comes after
+     * reference if it is less than 2^31 ahead of it modulo 2^32, and before it
+     * otherwise, so 32-bit sequence numbers keep their order across wraparound as
+     * long as the numbers in play are less than 2^31 apart.
+     */
+    public static long unwrap(int serial, long reference) {
+        return reference + (serial - (int) reference);
+    }
+
+    /**
+     * Returns the big-endian int form of an IPv4 address.
+     */
+    public static int toBits(InetAddress address) {
+        byte[] b = address.getAddress();
+        return (b[0] & 0xff) << 24 | (b[1] & 0xff) << 16 | (b[2] & 0xff) << 8 | (b[3] & 0xff);
+    }
+
+    /**
+     * Returns the InetAddress for an IPv4 address, reusing the instance handed out
+     * last time for the same address.
+     */
+    public static InetAddress toAddress(int bits) {
+        int slot = (bits ^ bits >>> 8 ^ bits >>> 16 ^ bits >>> 24) & (ADDRESS_CACHE_SIZE - 1);
+        CachedAddress cached = addressCache[slot];
+        if (cached != null && cached.bits == bits) {
+            return cached.address;
+        }
+        byte[] host = new byte[]{(byte) (bits >>> 24), (byte) (bits >>> 16), (byte) (bits >>> 8), (byte) bits};
+        try {
+            cached = new CachedAddress(bits, InetAddress.getByAddress(host));
+        } catch (UnknownHostException e) {
+            // Cannot happen for a 4-byte address.
+            throw new IllegalStateException(e);
+        }
+        addressCache[slot] = cached;
+        return cached.address;
+    }
+
+    /**
+     * An immutable address cache entry, so that racing threads always see a
+     * matching pair.
+     */
+    private static class CachedAddress {
+        private final int bits;
+        private final InetAddress address;
+
+        CachedAddress(int bits, InetAddress address) {
+            this.bits = bits;
+            this.address = address;
+        }
+    }
+}
@@ -0,0 +1,112 @@
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Parity is the XOR of the payloads of a block of consecutive DATA packets, sent
+ * as the payload of a {@link Packet#REPAIR} packet:
+ * <pre>
+ *   count (1 byte) | XOR of the payload lengths (2 bytes) | XOR of the payloads
+ * </pre>
+ * Shorter payloads count as padded with zeros. A receiver that has every packet
+ * of the block but one loads the parity and adds the packets it has: what is
+ * left is the payload of the missing one, and its length.
+ * <p>
+ * A Parity is not thread-safe.
+ */
+public class Parity {
+
+    public static final int HEADER_LEN = 3;
+    public static final int MAX_COUNT = 255;
+
+    private final ByteBuffer data;
+    private long first;
+    private int count;
+    private int lengths;
+    // Bytes of data in use; everything beyond is zero.
+    private int length;
+
+    /**
+     * @param maxPayloadLength the largest payload of the packets of a block
+     */
+    public Parity(int maxPayloadLength) {
+        this.data = ByteBuffer.allocate(maxPayloadLength);
+    }
+
+    public long getFirst() {
+        return first;
+    }
+
+    public int getCount() {
+        return count;
+    }
+
+    /**
+     * Adds the payload of the DATA packet with the given sequence number, which is
+     * the first of the block if the block is empty.
+     */
+    public void add(long sequenceNumber, ByteBuffer datagram, int offset, int payloadLength) {
+        if (count == 0) {
+            first = sequenceNumber;
+        }
+        count++;
+        lengths ^= payloadLength;
+        length = Math.max(length, payloadLength);
+        int i = 0;
+        for (; i + Long.BYTES <= payloadLength; i += Long.BYTES) {
+            data.putLong(i, data.getLong(i) ^ datagram.getLong(offset + i));
+        }
+        for (; i < payloadLength; i++) {
+            data.put(i, (byte) (data.get(i) ^ datagram.get(offset + i)));
+        }
+    }
+
+    /**
+     * Writes the parity of the block as the payload of a REPAIR packet.
+     */
+    public void write(ByteBuffer datagram) {
+        datagram.put((byte) count).putShort((short) lengths).put(data.array(), 0, length);
+    }
+
+    /**
+     * Replaces the block with the parity in the payload of a REPAIR packet, whose
+     * first packet has the given sequence number.
+     *
+     * @return false if the payload is not a valid parity
+     */
+    public boolean read(ByteBuffer datagram, long sequenceNumber) {
+        clear();
+        int parityLength = datagram.limit() - PacketView.PAYLOAD_OFFSET - HEADER_LEN;
+        if (parityLength < 0 || parityLength > data.capacity()) {
+            return false;
+        }
+        first = sequenceNumber;
+        count = Byte.toUnsignedInt(datagram.get(PacketView.PAYLOAD_OFFSET));
+        lengths = Short.toUnsignedInt(datagram.getShort(PacketView.PAYLOAD_OFFSET + 1));
+        length = parityLength;
+        ByteBuffer parity = datagram.duplicate();
+        parity.position(PacketView.PAYLOAD_OFFSET + HEADER_LEN);
+        parity.get(data.array(), 0, parityLength);
+        return count > 0;
+    }
+
+    /**
+     * Writes the payload left once every packet but one has been added to a read
+     * parity: the payload of the missing packet.
+     *
+     * @return false if the parity does not add up to a payload
+     */
+    public boolean writeMissing(ByteBuffer datagram) {
+        if (lengths > length || lengths > datagram.remaining()) {
+            return false;
+        }
+        datagram.put(data.array(), 0, lengths);
+        return true;
+    }
+
+    public void clear() {
+        Arrays.fill(data.array(), 0, length, (byte) 0);
+        count = 0;
+        lengths = 0;
+        length = 0;
+    }
+}
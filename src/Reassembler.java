@@ -0,0 +1,210 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Reassembler collects the fragments produced by {@link Segmenter} and hands
+ * each message back as a series of {@link MessagePart}s of up to
+ * {@link #PART_SIZE} bytes, as soon as its fragments are in order, so that a
+ * message of any size is never held whole. The messages of a stream are handed
+ * back in the order they were sent, each stream independently of the others.
+ * <p>
+ * A fragment is copied out of its pooled packet buffer as soon as it is in turn.
+ * Fragments that arrive ahead of their turn, out of order within their message
+ * or of a message that is not the next one of its stream, wait in their packet
+ * buffers. There are at most maxHeld of them and maxPartials messages in
+ * progress; beyond that, the peer is not following the protocol.
+ */
+public class Reassembler {
+
+    public static final int PART_SIZE = 64 * 1024;
+
+    private final BufferPool pool;
+    private final int maxHeld;
+    private final int maxPartials;
+    // Messages in progress, by stream and message id, see key.
+    private final Map<Long, PartialMessage> partials = new HashMap<>();
+    // The id of the message each stream hands back next.
+    private final int[] nextMessageIds = new int[ReliableConnection.MAX_STREAMS];
+    private int held;
+
+    /**
+     * @param maxHeld     the most fragments that may wait for their turn at once
+     * @param maxPartials the most messages that may be in progress at once
+     */
+    public Reassembler(BufferPool pool, int maxHeld, int maxPartials) {
+        this.pool = pool;
+        this.maxHeld = maxHeld;
+        this.maxPartials = maxPartials;
+    }
+
+    /**
+     * Adds the fragment carried by a DATA packet, whose fragment header starts at
+     * fragmentOffset, and appends the parts it completes to parts. The reassembler
+     * takes ownership of the packet buffer and releases it to the pool.
+     *
+     * @param stream the stream of the fragment, 0 without streams
+     * @throws IOException if the fragment header is malformed, or the peer exceeds
+     *                     the bounds of the reassembler
+     */
+    public void accept(ByteBuffer datagram, int stream, int fragmentOffset, Deque<MessagePart> parts)
+            throws IOException {
+        int dataOffset = fragmentOffset + Segmenter.HEADER_LEN;
+        if (datagram.limit() < dataOffset) {
+            pool.release(datagram);
+            throw new IOException("Fragment shorter than its header");
+        }
+        int messageId = datagram.getInt(fragmentOffset);
+        int index = datagram.getInt(fragmentOffset + 4);
+        int count = datagram.getInt(fragmentOffset + 8);
+        if (count <= 0 || index < 0 || index >= count) {
+            pool.release(datagram);
+            throw new IOException("Invalid fragment " + index + "/" + count + " of message " + messageId);
+        }
+        // Message ids wrap around, so they are compared by their difference.
+        int ahead = messageId - nextMessageIds[stream];
+        if (ahead < 0) {
+            // Of a message handed back already.
+            pool.release(datagram);
+            return;
+        }
+
+        PartialMessage partial = partials.get(key(stream, messageId));
+        if (partial == null) {
+            if (ahead == 0 && count == 1) {
+                // The common small message, copied once and handed back right away.
+                byte[] message = new byte[datagram.limit() - dataOffset];
+                datagram.position(dataOffset);
+                datagram.get(message);
+                pool.release(datagram);
+                parts.add(new MessagePart(stream, ByteBuffer.wrap(message), true));
+                nextMessageIds[stream]++;
+                deliver(partials.get(key(stream, nextMessageIds[stream])), parts);
+                return;
+            }
+            if (partials.size() >= maxPartials) {
+                pool.release(datagram);
+                throw new IOException("More than " + maxPartials + " messages in progress");
+            }
+            partial = new PartialMessage(stream, messageId, count, dataOffset);
+            partials.put(key(stream, messageId), partial);
+        } else if (partial.count != count) {
+            pool.release(datagram);
+            throw new IOException("Fragment count changed for message " + messageId);
+        }
+
+        if (index < partial.next || partial.fragments.containsKey(index)) {
+            pool.release(datagram);
+            return;
+        }
+        boolean inTurn = ahead == 0 && index == partial.next;
+        if (!inTurn && held >= maxHeld) {
+            pool.release(datagram);
+            throw new IOException("More than " + maxHeld + " fragments out of order");
+        }
+        partial.fragments.put(index, datagram);
+        held++;
+        if (ahead == 0) {
+            deliver(partial, parts);
+        }
+    }
+
+    /**
+     * Releases the buffers of every fragment still waiting.
+     */
+    public void clear() {
+        for (PartialMessage partial : partials.values()) {
+            for (ByteBuffer fragment : partial.fragments.values()) {
+                pool.release(fragment);
+            }
+        }
+        partials.clear();
+        held = 0;
+    }
+
+    /**
+     * Hands back the data of the next message of a stream for as long as its
+     * fragments are in order, going on with the messages after it as each is done.
+     */
+    private void deliver(PartialMessage partial, Deque<MessagePart> parts) {
+        while (partial != null) {
+            ByteBuffer fragment;
+            while ((fragment = partial.fragments.remove(partial.next)) != null) {
+                held--;
+                append(partial, fragment, parts);
+            }
+            if (partial.next < partial.count) {
+                return;
+            }
+            partials.remove(key(partial.stream, partial.id));
+            int next = ++nextMessageIds[partial.stream];
+            partial = partials.get(key(partial.stream, next));
+        }
+    }
+
+    /**
+     * Copies the data of the next fragment of a message into its current part,
+     * handing back every part it fills.
+     */
+    private void append(PartialMessage partial, ByteBuffer fragment, Deque<MessagePart> parts) {
+        int length = fragment.limit() - partial.dataOffset;
+        fragment.position(partial.dataOffset);
+        boolean last = ++partial.next == partial.count;
+        while (fragment.hasRemaining()) {
+            if (partial.part == null) {
+                // Fragments after this one are no longer than it.
+                long left = fragment.remaining() + (long) (partial.count - partial.next) * length;
+                partial.part = new byte[(int) Math.min(PART_SIZE, left)];
+            }
+            int n = Math.min(fragment.remaining(), partial.part.length - partial.partLength);
+            fragment.get(partial.part, partial.partLength, n);
+            partial.partLength += n;
+            if (partial.partLength == partial.part.length && (!last || fragment.hasRemaining())) {
+                handBack(partial, false, parts);
+            }
+        }
+        pool.release(fragment);
+        if (last) {
+            handBack(partial, true, parts);
+        }
+    }
+
+    private static void handBack(PartialMessage partial, boolean last, Deque<MessagePart> parts) {
+        byte[] data = partial.part == null ? new byte[0]
+                : partial.partLength == partial.part.length ? partial.part
+                : Arrays.copyOf(partial.part, partial.partLength);
+        parts.add(new MessagePart(partial.stream, ByteBuffer.wrap(data), last));
+        partial.part = null;
+        partial.partLength = 0;
+    }
+
+    private static long key(int stream, int messageId) {
+        return (long) stream << Integer.SIZE | (messageId & 0xffffffffL);
+    }
+
+    /**
+     * A message in progress: the fragments waiting for their turn, and the part
+     * being filled with the data of those handed back.
+     */
+    private static class PartialMessage {
+        private final int stream;
+        private final int id;
+        private final int count;
+        private final int dataOffset;
+        private final Map<Integer, ByteBuffer> fragments = new HashMap<>();
+        // The index of the fragment whose data comes next.
+        private int next;
+        private byte[] part;
+        private int partLength;
+
+        PartialMessage(int stream, int id, int count, int dataOffset) {
+            this.stream = stream;
+            this.id = id;
+            this.count = count;
+            this.dataOffset = dataOffset;
+        }
+    }
+}
@@ -0,0 +1,318 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * ReliableChannel is the client side of the transport: a single DatagramChannel
+ * talking to one server through the router, with a {@link ReliableConnection}
+ * providing Selective-Repeat delivery on top of it. The channel runs on an
+ * {@link EventLoop} of its own, driven by whichever call is waiting.
+ */
+public class ReliableChannel implements Closeable {
+
+    // Kernel buffers of the socket, large enough to absorb a full window between two wakeups.
+    public static final int SOCKET_BUFFER_SIZE = 1024 * 1024;
+    private static final List<ByteBuffer> PLAIN = Collections.emptyList();
+
+    private final DatagramChannel channel;
+    private final SocketAddress routerAddress;
+    private final BufferPool pool;
+    private final EventLoop loop;
+    private final EventLoop.Timer timer;
+    private final ReliableConnection connection;
+    // Packets received by the current pump.
+    private int received;
+    // The parts of the compressed messages being gathered by receivePart, by stream;
+    // PLAIN for a stream in the middle of an uncompressed message.
+    private final Map<Integer, List<ByteBuffer>> decoding = new HashMap<>();
+
+    public ReliableChannel(SocketAddress routerAddress, InetSocketAddress serverAddress, int windowSize,
+                           CongestionControl congestion) throws IOException {
+        this(routerAddress, serverAddress, windowSize, congestion, Packet.MAX_LEN);
+    }
+
+    /**
+     * @param maxPacketLength the largest packet to accept and offer to send, see
+     *                        {@link ReliableConnection#setMaxPacketLength}
+     */
+    public ReliableChannel(SocketAddress routerAddress, InetSocketAddress serverAddress, int windowSize,
+                           CongestionControl congestion, int maxPacketLength) throws IOException {
+        this.routerAddress = routerAddress;
+        // About as much memory pooled as with the default packet length.
+        this.pool = new BufferPool(maxPacketLength,
+                Math.max(windowSize, (int) ((long) BufferPool.DEFAULT_MAX_POOLED * Packet.MAX_LEN / maxPacketLength)),
+                false);
+        int socketBuffer = (int) Math.min(Integer.MAX_VALUE,
+                Math.max(SOCKET_BUFFER_SIZE, (long) windowSize * maxPacketLength));
+        this.channel = DatagramChannel.open();
+        this.channel.setOption(StandardSocketOptions.SO_RCVBUF, socketBuffer);
+        this.channel.setOption(StandardSocketOptions.SO_SNDBUF, socketBuffer);
+        this.loop = new EventLoop(pool);
+        EventLoop.Endpoint endpoint = loop.register(channel, new EventLoop.Handler() {
+            @Override
+            public void onDatagram(ByteBuffer datagram, SocketAddress source, long now) throws IOException {
+                if (!PacketView.isValid(datagram)) {
+                    pool.release(datagram);
+                    return;
+                }
+                connection.onPacket(datagram, now);
+                received++;
+            }
+
+            @Override
+            public void onBatchEnd(long now) throws IOException {
+                connection.flush();
+            }
+        });
+        this.connection = new ReliableConnection(serverAddress.getAddress(), serverAddress.getPort(),
+                datagram -> endpoint.send(datagram, this.routerAddress), pool, windowSize, congestion);
+        this.connection.setMaxPacketLength(maxPacketLength);
+        this.timer = loop.newTimer(connection::onTimer);
+    }
+
+    /**
+     * Offers the server 64-bit sequence numbers, see
+     * {@link ReliableConnection#setExtendedSequenceNumbers}. Must be called before
+     * connect.
+     */
+    public void setExtendedSequenceNumbers(boolean offer) {
+        connection.setExtendedSequenceNumbers(offer);
+    }
+
+    /**
+     * Offers the server compressed messages, see
+     * {@link ReliableConnection#setCompression}. Must be called before connect.
+     */
+    public void setCompression(Compression compression) {
+        connection.setCompression(compression);
+    }
+
+    /**
+     * Offers the server forward error correction, see
+     * {@link ReliableConnection#setRepair}. Must be called before connect.
+     */
+    public void setRepair(int blockSize, boolean adaptive) {
+        connection.setRepair(blockSize, adaptive);
+    }
+
+    /**
+     * Offers the server independent streams, see
+     * {@link ReliableConnection#setStreams}. Must be called before connect.
+     */
+    public void setStreams(boolean offer) {
+        connection.setStreams(offer);
+    }
+
+    /**
+     * Opens the connection with the three-way handshake.
+     *
+     * @throws IOException if the server did not answer within timeoutMillis
+     */
+    public void connect(long timeoutMillis) throws IOException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        connection.connect(System.currentTimeMillis());
+        while (connection.getState() != ReliableConnection.State.ESTABLISHED) {
+            if (pump(deadline) < 0) {
+                throw new IOException("No response from server");
+            }
+        }
+    }
+
+    /**
+     * Returns true while the connection is established and the server has not
+     * closed it.
+     */
+    public boolean isOpen() {
+        return connection.getState() == ReliableConnection.State.ESTABLISHED && !connection.isPeerFinished();
+    }
+
+    /**
+     * Queues a message for the server. Packets leave immediately as far as the
+     * window allows; the rest go out as acknowledgements come back.
+     */
+    public void send(byte[] message) throws IOException {
+        send(new ByteBuffer[]{ByteBuffer.wrap(message)});
+    }
+
+    /**
+     * Queues a message made of the remaining bytes of several buffers, which are
+     * read as the packets go out, see {@link ReliableConnection#send(ByteBuffer[], long)}.
+     * The message is compressed first if the server agreed to it.
+     */
+    public void send(ByteBuffer[] message) throws IOException {
+        send(0, message);
+    }
+
+    /**
+     * Queues a message on a stream, see {@link ReliableConnection#send(int, ByteBuffer[], long)}.
+     */
+    public void send(int stream, ByteBuffer[] message) throws IOException {
+        Compression compression = connection.getCompression();
+        connection.send(stream, compression == null ? message : compression.encode(message),
+                System.currentTimeMillis());
+    }
+
+    /**
+     * Waits for the next complete message from the server. Large messages may take
+     * longer than timeoutMillis in total; the wait only gives up once no packet at
+     * all has arrived for that long.
+     *
+     * @return the bytes of the message, or null if the server went quiet for
+     * timeoutMillis or closed the connection
+     */
+    public ByteBuffer receive(long timeoutMillis) throws IOException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        byte[] message;
+        while ((message = connection.poll(System.currentTimeMillis())) == null) {
+            if (connection.isPeerFinished()) {
+                return null;
+            }
+            int received = pump(deadline);
+            if (received < 0) {
+                return null;
+            }
+            if (received > 0) {
+                deadline = System.currentTimeMillis() + timeoutMillis;
+            }
+        }
+        ByteBuffer data = ByteBuffer.wrap(message);
+        return connection.getCompression() == null ? data : Compression.decode(data);
+    }
+
+    /**
+     * Waits for the next part of a message from the server, see
+     * {@link ReliableConnection#pollPart(long)}, so that a large response need not be
+     * held whole. Uncompressed messages are handed over part by part as they
+     * arrive; a compressed one is gathered and handed over whole once decoded.
+     * Must not be mixed with {@link #receive(long)}.
+     *
+     * @return the part, or null if the server went quiet for timeoutMillis or
+     * closed the connection
+     */
+    public MessagePart receivePart(long timeoutMillis) throws IOException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (true) {
+            MessagePart part;
+            while ((part = connection.pollPart(System.currentTimeMillis())) == null) {
+                if (connection.isPeerFinished()) {
+                    return null;
+                }
+                int received = pump(deadline);
+                if (received < 0) {
+                    return null;
+                }
+                if (received > 0) {
+                    deadline = System.currentTimeMillis() + timeoutMillis;
+                }
+            }
+            if (connection.getCompression() == null) {
+                return part;
+            }
+            part = decode(part);
+            if (part != null) {
+                return part;
+            }
+        }
+    }
+
+    /**
+     * Strips the codec of an uncompressed message from its first part, or gathers
+     * the parts of a compressed one until it can be decoded.
+     *
+     * @return the part to hand over, or null while a compressed message is gathered
+     */
+    private MessagePart decode(MessagePart part) throws IOException {
+        int stream = part.getStream();
+        ByteBuffer data = part.getData();
+        List<ByteBuffer> compressed = decoding.get(stream);
+        if (compressed == null) {
+            if (!data.hasRemaining()) {
+                throw new IOException("Empty message");
+            }
+            if (data.get(data.position()) == Compression.NONE) {
+                data.position(data.position() + 1);
+                if (!part.isLast()) {
+                    decoding.put(stream, PLAIN);
+                }
+                return part;
+            }
+            compressed = new ArrayList<>();
+            decoding.put(stream, compressed);
+        } else if (compressed == PLAIN) {
+            if (part.isLast()) {
+                decoding.remove(stream);
+            }
+            return part;
+        }
+        compressed.add(data);
+        long length = 0;
+        for (ByteBuffer buffer : compressed) {
+            length += buffer.remaining();
+        }
+        // Only messages of up to MAX_INPUT bytes are compressed, and only if that makes them shorter.
+        if (length > Compression.MAX_INPUT) {
+            throw new IOException("Compressed message longer than " + Compression.MAX_INPUT + " bytes");
+        }
+        if (!part.isLast()) {
+            return null;
+        }
+        decoding.remove(stream);
+        ByteBuffer message = ByteBuffer.allocate((int) length);
+        for (ByteBuffer buffer : compressed) {
+            message.put(buffer);
+        }
+        message.flip();
+        return new MessagePart(stream, Compression.decode(message), true);
+    }
+
+    /**
+     * Closes the connection: sends our FIN after everything queued, waits for the
+     * server's FIN and lingers in TIME_WAIT.
+     *
+     * @return false if the close did not complete within timeoutMillis
+     */
+    public boolean disconnect(long timeoutMillis) throws IOException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        connection.shutdown(System.currentTimeMillis());
+        while (connection.getState() != ReliableConnection.State.CLOSED) {
+            if (pump(deadline) < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Runs the loop once: waits for packets or the next retransmission timer,
+     * whichever comes first, and feeds the results to the connection.
+     *
+     * @return the number of packets received, or -1 once the deadline has passed
+     */
+    private int pump(long deadline) throws IOException {
+        if (System.currentTimeMillis() >= deadline) {
+            return -1;
+        }
+        // Whatever the caller did since the last round may have moved the timer.
+        timer.schedule(connection.nextTimeout());
+        received = 0;
+        loop.runOnce(deadline);
+        timer.schedule(connection.nextTimeout());
+        return received;
+    }
+
+    @Override
+    public void close() throws IOException {
+        connection.close();
+        loop.close();
+        channel.close();
+    }
+}
@@ -0,0 +1,1724 @@
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * ReliableConnection implements the Selective-Repeat protocol for a single peer on
+ * top of {@link Packet} sequence numbers. Up to windowSize DATA packets can be in
+ * flight at once, each with its own retransmission timer on a {@link TimerWheel},
+ * so that timers expiring in the same tick are retransmitted together. The receiving side
+ * buffers packets that arrive out of order and delivers them strictly in sequence.
+ * <p>
+ * Applications exchange whole messages of any size: they are split into DATA
+ * packets by {@link Segmenter} and put back together by {@link Reassembler}.
+ * <p>
+ * If both sides agree, every message is sent on one of {@link #MAX_STREAMS}
+ * streams. Streams take turns a DATA packet at a time, so a large message never
+ * holds back the messages of other streams, and DATA packets name their stream so
+ * that the receiver reassembles each stream on its own as soon as its packets
+ * arrive: messages are delivered in order within a stream, but a lost packet only
+ * delays the stream it belongs to. All streams share the window and congestion
+ * control of the connection, but each has a credit of its own: the receiver
+ * grants a number of bytes per stream and raises it with CREDIT packets as the
+ * application takes in the stream's data, so a bulk stream read slowly holds
+ * back neither the window nor the other streams.
+ * <p>
+ * The retransmission timeout adapts to the measured round-trip time
+ * ({@link RttEstimator}) and a pluggable {@link CongestionControl} limits the
+ * number of packets in flight below the window size. Three duplicate ACKs trigger
+ * a fast retransmit of the oldest unacknowledged packet.
+ * <p>
+ * A connection is opened with a three-way handshake (SYN, SYN-ACK, ACK) in which
+ * both sides pick a random initial sequence number and exchange their receive
+ * window and the options they offer, and is closed by a FIN in each direction. The side that closes first
+ * lingers in TIME_WAIT for two retransmission timeouts so it can acknowledge a
+ * retransmitted FIN. A receiver that sees a gap sends a NAK for the first
+ * missing packet.
+ * <p>
+ * If both sides agree, DATA packets are protected by forward error correction:
+ * after each block of them, a {@link Packet#REPAIR} packet carries their
+ * {@link Parity}, from which the receiver rebuilds any one packet of the block
+ * that was lost without waiting for a retransmission.
+ * <p>
+ * Packets are {@link Packet#MAX_LEN} bytes at most unless both sides accept
+ * larger ones. Larger packets are then only used once a PROBE of their length
+ * has made it to the peer, searching for the largest one the path carries, and
+ * dropped again if one of them goes unacknowledged for too long; fragments
+ * already sized for them then go out in DATA_PART packets.
+ * <p>
+ * The connection does no I/O itself: packets are written through a
+ * {@link PacketSink} and incoming packets and timer ticks are fed in by the
+ * owner, so the same code drives both the client and the server. Packets live in
+ * buffers from a {@link BufferPool}: outgoing DATA packets are encoded once and
+ * kept until acknowledged, and received packets are read in place through a
+ * {@link PacketView}. Each connection counts its traffic, retransmissions and
+ * round-trip times in its {@link ConnectionMetrics}.
+ * <p>
+ * Owners feed in every packet that is ready at once, up to
+ * {@link #MAX_RECEIVE_BATCH}, before calling {@link #flush}: DATA packets are
+ * acknowledged by a single selective ACK per batch rather than one ACK each.
+ */
+public class ReliableConnection {
+
+    /**
+     * Destination for the packets produced by a connection.
+     */
+    public interface PacketSink {
+        /**
+         * Sends the packet between the buffer's position and limit. The buffer still
+         * belongs to the connection and must not be kept.
+         */
+        void send(ByteBuffer datagram) throws IOException;
+    }
+
+    /**
+     * Connection states, named after their TCP counterparts.
+     */
+    public enum State {
+        CLOSED,
+        LISTEN,
+        SYN_SENT,
+        SYN_RECEIVED,
+        ESTABLISHED,
+        /**
+         * We sent our FIN first and wait for it to be acknowledged and for the peer's
+         * FIN.
+         */
+        FIN_WAIT,
+        /**
+         * The peer sent its FIN; we may still send before sending ours.
+         */
+        CLOSE_WAIT,
+        /**
+         * We sent our FIN after the peer's and wait for it to be acknowledged.
+         */
+        LAST_ACK,
+        TIME_WAIT
+    }
+
+    public static final int DEFAULT_WINDOW_SIZE = 32;
+    public static final int MAX_RETRIES = 10;
+    public static final int DUPLICATE_ACK_THRESHOLD = 3;
+    // Owners hand over at most this many received packets between two onTimer
+    // calls, which bounds how long an acknowledgement is held back.
+    public static final int MAX_RECEIVE_BATCH = 256;
+
+    // Handshake options, encoded after the fixed part of SYN and SYN-ACK payloads as
+    // code (1 byte) | length (1 byte) | value. Unknown options are skipped.
+    private static final int OPTION_WINDOW = 1;
+    // Empty option offering the epoch trailer, see setExtendedSequenceNumbers.
+    private static final int OPTION_EXTENDED_SEQUENCE = 2;
+    private static final int EPOCH_LEN = 4;
+    // The codecs the sender decodes, a bit per codec, see setCompression.
+    private static final int OPTION_COMPRESSION = 3;
+    // Empty option offering REPAIR packets, see setRepair.
+    private static final int OPTION_REPAIR = 4;
+
+    public static final int MIN_REPAIR_BLOCK = 2;
+    public static final int MAX_REPAIR_BLOCK = 64;
+    public static final int DEFAULT_REPAIR_BLOCK = 8;
+    // The largest packet the sender accepts, see setMaxPacketLength.
+    private static final int OPTION_MAX_PACKET = 5;
+    // A PROBE is sent this many times, a retransmission timeout apart, before its length is taken to be too large.
+    private static final int PROBE_ATTEMPTS = 3;
+    // The search for the largest packet stops once it is known within this many bytes.
+    private static final int PROBE_RESOLUTION = 256;
+    // A packet larger than MAX_LEN that times out this many times suggests the path no longer carries it.
+    private static final int BLACK_HOLE_TIMEOUTS = 3;
+    private static final int PART_HEADER_LEN = 4;
+    // Option offering the stream ID of DATA packets, see setStreams, with the 4-byte
+    // credit the sender grants every stream to begin with.
+    private static final int OPTION_STREAMS = 6;
+    private static final int STREAM_ID_LEN = 1;
+    private static final int CREDIT_LEN = STREAM_ID_LEN + 8;
+
+    public static final int DEFAULT_STREAM_CREDIT = 1024 * 1024;
+    // Enough for any fragment, so that a stream never waits for credit it cannot get.
+    public static final int MIN_STREAM_CREDIT = 2 * Packet.MAX_DATAGRAM_LEN;
+
+    public static final int MAX_STREAMS = 1 << (STREAM_ID_LEN * Byte.SIZE);
+    // An adaptive repair block grows by one after this many blocks with no loss left to retransmit.
+    private static final int REPAIR_GROWTH_BLOCKS = 8;
+
+    private final InetAddress peerAddress;
+    private final int peerAddressBits;
+    private final int peerPort;
+    private final PacketSink sink;
+    private final BufferPool pool;
+    private final int windowSize;
+    private final RttEstimator rtt = new RttEstimator();
+    private final CongestionControl congestion;
+    private final PacketView view = new PacketView();
+    private final ConnectionMetrics metrics = new ConnectionMetrics(this);
+
+    private State state = State.CLOSED;
+    private long timeWaitDeadline;
+    private boolean offerExtended;
+    private boolean extended;
+    private int maxPacketLength = Packet.MAX_LEN;
+    private int peerMaxPacketLength = Packet.MAX_LEN;
+    // The largest packet the path is known to carry, used for messages from now on.
+    private int packetLength = Packet.MAX_LEN;
+    // The search for a larger packetLength: the length of the PROBE in flight (0
+    // if none) and the smallest length known not to make it.
+    private int probeLength;
+    private int probeAttempts;
+    private long probeDeadline = Long.MAX_VALUE;
+    private int probeCeiling = Integer.MAX_VALUE;
+    private Compression compression;
+    // The codecs the peer decodes, or -1 until both sides agreed to compression.
+    private int peerCodecs = -1;
+    private boolean offerStreams;
+    private boolean streams;
+    private int streamCredit = DEFAULT_STREAM_CREDIT;
+    private int peerStreamCredit;
+    private int offerRepair;
+    private boolean adaptiveRepair;
+    private boolean repair;
+
+    // Sequence numbers are counted in 64 bits from the 32-bit initial sequence
+    // number and only their low 32 bits go on the wire; the sequence numbers
+    // received are unwrapped against ours (see PacketView.unwrap).
+    //
+    // Sender side: sendBase is the oldest unacknowledged packet, nextSequenceNumber
+    // the next one to be sent. The SYN (or SYN-ACK) takes the initial sequence
+    // number and the FIN the one after the last DATA packet.
+    private final long initialSequenceNumber = Integer.toUnsignedLong(ThreadLocalRandom.current().nextInt());
+    private long sendBase = initialSequenceNumber;
+    private long nextSequenceNumber = initialSequenceNumber;
+    private int sendWindow;
+    private final SequenceWindow<Outstanding> unacked;
+    // One per slot of unacked, reused by every packet that takes the slot.
+    private final Outstanding[] outstanding;
+    // The retransmission deadline of every unacknowledged packet.
+    private final TimerWheel<Outstanding> timers = new TimerWheel<>(1, System.currentTimeMillis());
+    private final Deque<Outstanding> expired = new ArrayDeque<>();
+    // Messages waiting to be sent, a queue per stream, and the streams with any,
+    // which take turns a packet at a time.
+    private final SendStream[] sendStreams = new SendStream[MAX_STREAMS];
+    private final Deque<SendStream> readyStreams = new ArrayDeque<>();
+    // Streams with messages left but no credit for their next packet.
+    private int blockedStreams;
+    // The block of DATA packets sent since the last REPAIR packet, once agreed.
+    private Parity parity;
+    private int repairBlock;
+    private int cleanRepairBlocks;
+    private long repairBlockShrunkAt;
+    // Message IDs run per connection, or per stream once streams are agreed.
+    private int nextMessageId;
+    private long lastCumulativeAck = initialSequenceNumber;
+    private int duplicateAcks;
+    private boolean finQueued;
+    private long finSequenceNumber = -1;
+
+    // Receiver side: everything below expectedSequenceNumber has been delivered.
+    private long peerInitialSequenceNumber = -1;
+    private long expectedSequenceNumber;
+    private long nakSentFor = -1;
+    private boolean ackPending;
+    private boolean peerFinReceived;
+    private final SequenceWindow<ByteBuffer> outOfOrder;
+    // DATA packets being put back together from DATA_PART packets, created on the first one.
+    private SequenceWindow<PartialData> partial;
+    private final Reassembler reassembler;
+    private final Deque<MessagePart> delivered = new ArrayDeque<>();
+    // Per stream, once streams are agreed: the message data received, the data the
+    // application took, and the credit granted, along with the streams whose
+    // credit was raised since the last CREDIT packet.
+    private long[] received;
+    private long[] consumed;
+    private long[] granted;
+    private final BitSet pendingCredits = new BitSet();
+    // Messages being gathered by poll, by stream.
+    private final Map<Integer, Gathered> gathered = new HashMap<>();
+    private long maxMessageLength = Integer.MAX_VALUE - 8;
+    // Copies of the DATA packets delivered last, for the REPAIR packets still to come.
+    private SequenceWindow<ByteBuffer> recent;
+    private Parity rebuilding;
+
+    public ReliableConnection(InetAddress peerAddress, int peerPort, PacketSink sink, BufferPool pool,
+                              int windowSize, CongestionControl congestion) {
+        this.peerAddress = peerAddress;
+        this.peerAddressBits = PacketView.toBits(peerAddress);
+        this.peerPort = peerPort;
+        this.sink = sink;
+        this.pool = pool;
+        this.windowSize = windowSize;
+        this.sendWindow = windowSize;
+        this.unacked = new SequenceWindow<>(windowSize);
+        this.outstanding = new Outstanding[unacked.capacity()];
+        for (int i = 0; i < outstanding.length; i++) {
+            outstanding[i] = new Outstanding();
+        }
+        this.outOfOrder = new SequenceWindow<>(windowSize);
+        this.congestion = congestion;
+        // Only the packets of the receive window can be held out of order, and each
+        // stream has at most one message in progress besides theirs.
+        this.reassembler = new Reassembler(pool, windowSize, windowSize + MAX_STREAMS);
+    }
+
+    public InetAddress getPeerAddress() {
+        return peerAddress;
+    }
+
+    public int getPeerPort() {
+        return peerPort;
+    }
+
+    public State getState() {
+        return state;
+    }
+
+    public ConnectionMetrics getMetrics() {
+        return metrics;
+    }
+
+    public long getSmoothedRtt() {
+        return rtt.getSmoothedRtt();
+    }
+
+    public long getRetransmissionTimeout() {
+        return rtt.getTimeout();
+    }
+
+    public int getCongestionWindow() {
+        return congestion.getWindow();
+    }
+
+    /**
+     * Returns the receive window the peer agreed to, in packets.
+     */
+    public int getSendWindow() {
+        return sendWindow;
+    }
+
+    public int getPacketsInFlight() {
+        return unacked.size();
+    }
+
+    /**
+     * Returns the length of the largest packets we currently send.
+     */
+    public int getPacketLength() {
+        return packetLength;
+    }
+
+    /**
+     * Returns the DATA packets per REPAIR packet we currently send, or 0 if the peer
+     * did not agree to them.
+     */
+    public int getRepairBlock() {
+        return repair ? repairBlock : 0;
+    }
+
+    /**
+     * Returns the initial sequence number of the peer's SYN, or -1 before one was
+     * received.
+     */
+    public long getPeerInitialSequenceNumber() {
+        return peerInitialSequenceNumber;
+    }
+
+    /**
+     * Offers the peer to close every packet after the handshake with an epoch: the
+     * high 32 bits of its 64-bit sequence number. Both sides must offer it for it to
+     * be used. It makes sequence numbers unambiguous beyond the 2^31 packets serial
+     * arithmetic can tell apart, so that a packet delayed by a whole wraparound
+     * cannot be taken for a current one. It costs 4 bytes per packet, taken from
+     * the data of DATA packets. Must be called before connect or listen.
+     */
+    public void setExtendedSequenceNumbers(boolean offer) {
+        offerExtended = offer;
+    }
+
+    /**
+     * Returns true if the peer agreed to the epoch trailer.
+     */
+    public boolean isExtendedSequenceNumbers() {
+        return extended;
+    }
+
+    /**
+     * Offers the peer forward error correction: a REPAIR packet after every block of
+     * blockSize DATA packets, so that one lost packet per block is rebuilt by the
+     * receiver rather than retransmitted. Both sides must offer it for it to be
+     * used; each side then picks its own block size. A retransmission the peer asks
+     * for is held back until a round trip after the REPAIR packet of its block.
+     * <p>
+     * If adaptive, the block size starts at blockSize and follows the loss rate: it
+     * is halved, at most once per round trip, whenever a lost packet still has to be
+     * retransmitted, and grows by one after every {@value #REPAIR_GROWTH_BLOCKS}
+     * blocks without, between {@value #MIN_REPAIR_BLOCK} and
+     * {@value #MAX_REPAIR_BLOCK}. It costs {@value Parity#HEADER_LEN} bytes of the
+     * data of every DATA packet. Must be called before connect or listen.
+     *
+     * @param blockSize DATA packets per REPAIR packet, or 0 not to offer it
+     */
+    public void setRepair(int blockSize, boolean adaptive) {
+        if (blockSize != 0 && (blockSize < MIN_REPAIR_BLOCK || blockSize > MAX_REPAIR_BLOCK)) {
+            throw new IllegalArgumentException("Repair block must be between " + MIN_REPAIR_BLOCK + " and "
+                    + MAX_REPAIR_BLOCK + ": " + blockSize);
+        }
+        offerRepair = blockSize;
+        adaptiveRepair = adaptive;
+        repairBlock = blockSize;
+    }
+
+    /**
+     * Offers the peer a stream ID in every DATA packet, so that each stream is
+     * reassembled and delivered independently of the others. Both sides must offer
+     * it for it to be used. It costs 1 byte per DATA packet. Must be called before
+     * connect or listen.
+     */
+    public void setStreams(boolean offer) {
+        offerStreams = offer;
+    }
+
+    /**
+     * Sets how many bytes of message data the peer may send on a stream beyond
+     * what the application has taken, {@link #DEFAULT_STREAM_CREDIT} by default.
+     * Must be called before connect or listen.
+     */
+    public void setStreamCredit(int credit) {
+        if (credit < MIN_STREAM_CREDIT) {
+            throw new IllegalArgumentException("Stream credit must be at least " + MIN_STREAM_CREDIT + ": " + credit);
+        }
+        streamCredit = credit;
+    }
+
+    /**
+     * Returns true if the peer agreed to stream IDs.
+     */
+    public boolean isStreams() {
+        return streams;
+    }
+
+    /**
+     * Lets the peer send packets of up to maxPacketLength bytes, up to
+     * {@link Packet#MAX_DATAGRAM_LEN}, and offers to send it packets as large as it
+     * accepts in turn. The buffers of the pool, which the owner receives into, must
+     * hold them. Packets larger than {@link Packet#MAX_LEN} are only sent once a
+     * PROBE shows the path carries them; until the first PROBE is answered or times
+     * out, messages of more than one packet wait for it. Must be called before
+     * connect or listen.
+     */
+    public void setMaxPacketLength(int maxPacketLength) {
+        if (maxPacketLength < Packet.MAX_LEN || maxPacketLength > Packet.MAX_DATAGRAM_LEN
+                || maxPacketLength > pool.getBufferSize()) {
+            throw new IllegalArgumentException("Packet length must be between " + Packet.MAX_LEN + " and "
+                    + Math.min(Packet.MAX_DATAGRAM_LEN, pool.getBufferSize()) + ": " + maxPacketLength);
+        }
+        this.maxPacketLength = maxPacketLength;
+    }
+
+    /**
+     * Offers the peer to start every message with the codec it is encoded with, and
+     * to encode ours with the given compression. Both sides must offer it for it to
+     * be used; messages are encoded and decoded by the application, see
+     * {@link #getCompression}. Must be called before connect or listen.
+     */
+    public void setCompression(Compression compression) {
+        this.compression = compression;
+    }
+
+    /**
+     * Returns the compression to encode messages to the peer with, which is
+     * {@link Compression#UNCOMPRESSED} if the peer cannot decode the codec offered,
+     * or null if messages are not encoded at all. Every received message must be
+     * decoded with {@link Compression#decode} unless this returns null.
+     */
+    public Compression getCompression() {
+        if (peerCodecs < 0) {
+            return null;
+        }
+        return (peerCodecs & 1 << compression.getCodec()) != 0 ? compression : Compression.UNCOMPRESSED;
+    }
+
+    /**
+     * Starts an active open by sending a SYN.
+     */
+    public void connect(long now) throws IOException {
+        if (state != State.CLOSED) {
+            throw new IllegalStateException("Cannot connect in state " + state);
+        }
+        state = State.SYN_SENT;
+        sendHandshake(Packet.SYN, now);
+    }
+
+    /**
+     * Waits for a SYN from the peer (passive open).
+     */
+    public void listen() {
+        if (state != State.CLOSED) {
+            throw new IllegalStateException("Cannot listen in state " + state);
+        }
+        state = State.LISTEN;
+    }
+
+    /**
+     * Closes our direction of the connection: a FIN is sent once every queued
+     * message is out. Messages from the peer are still received.
+     */
+    public void shutdown(long now) throws IOException {
+        switch (state) {
+            case CLOSED:
+            case LISTEN:
+            case SYN_SENT:
+                state = State.CLOSED;
+                break;
+            default:
+                finQueued = true;
+                fillWindow(now);
+                break;
+        }
+    }
+
+    /**
+     * Queues a message for reliable delivery and sends as much of it as the window
+     * allows.
+     */
+    public void send(byte[] message, long now) throws IOException {
+        send(new ByteBuffer[]{ByteBuffer.wrap(message)}, now);
+    }
+
+    /**
+     * Queues a message made of the remaining bytes of several buffers, in order.
+     * The buffers are only read as the window lets each fragment out, so a large
+     * message, such as a memory-mapped file, is never copied as a whole; they must
+     * not change until the message is sent.
+     */
+    public void send(ByteBuffer[] message, long now) throws IOException {
+        send(0, message, now);
+    }
+
+    /**
+     * Queues a message on a stream, see {@link #send(ByteBuffer[], long)}. Messages
+     * of the same stream are delivered in the order they were sent; the stream is
+     * ignored unless both ends agreed to streams.
+     */
+    public void send(int stream, ByteBuffer[] message, long now) throws IOException {
+        send(stream, MessageSource.of(message), now);
+    }
+
+    /**
+     * Queues a message on a stream whose bytes are read as its fragments are sent,
+     * see {@link #send(int, ByteBuffer[], long)}.
+     */
+    public void send(int stream, MessageSource message, long now) throws IOException {
+        if (stream < 0 || stream >= MAX_STREAMS) {
+            throw new IllegalArgumentException("Stream must be between 0 and " + (MAX_STREAMS - 1) + ": " + stream);
+        }
+        if (finQueued) {
+            throw new IllegalStateException("Connection is shut down");
+        }
+        // Without streams, or before they are agreed, every message keeps its place on the connection.
+        int id = streams ? stream : 0;
+        SendStream queue = sendStreams[id];
+        if (queue == null) {
+            queue = new SendStream(id, peerStreamCredit);
+            sendStreams[id] = queue;
+        }
+        if (queue.messages.isEmpty() && !queue.blocked) {
+            readyStreams.add(queue);
+        }
+        queue.messages.add(new OutgoingMessage(message));
+        fillWindow(now);
+    }
+
+    /**
+     * Returns the next part of a message received from the peer, or null if none is
+     * ready. Unlike {@link #poll(long)}, a message of any size is handed over in
+     * parts of up to {@link Reassembler#PART_SIZE} bytes, as soon as they are in
+     * order. Taking data from a stream may grant the peer more credit on it.
+     */
+    public MessagePart pollPart(long now) throws IOException {
+        MessagePart part = delivered.poll();
+        if (part != null && streams) {
+            consume(part.getStream(), part.getData().remaining(), now);
+        }
+        return part;
+    }
+
+    /**
+     * Returns the next complete message received from the peer, or null if none is
+     * ready. The parts of a message are gathered here, so it must not be mixed
+     * with {@link #pollPart(long)}.
+     *
+     * @throws IOException if a message is longer than the maximum message length
+     */
+    public byte[] poll(long now) throws IOException {
+        MessagePart message = pollMessage(now);
+        return message == null ? null : message.getData().array();
+    }
+
+    /**
+     * Returns the next complete message received from the peer as a single part,
+     * along with its stream, or null if none is ready, see {@link #poll(long)}.
+     */
+    public MessagePart pollMessage(long now) throws IOException {
+        MessagePart part;
+        while ((part = pollPart(now)) != null) {
+            Gathered message = gathered.get(part.getStream());
+            if (message == null && part.isLast()) {
+                return part;
+            }
+            if (message == null) {
+                message = new Gathered();
+                gathered.put(part.getStream(), message);
+            }
+            message.length += part.getData().remaining();
+            if (message.length > maxMessageLength) {
+                gathered.remove(part.getStream());
+                throw new IOException("Message longer than " + maxMessageLength + " bytes");
+            }
+            message.parts.add(part.getData());
+            if (part.isLast()) {
+                gathered.remove(part.getStream());
+                ByteBuffer whole = ByteBuffer.allocate((int) message.length);
+                for (ByteBuffer data : message.parts) {
+                    whole.put(data);
+                }
+                whole.flip();
+                return new MessagePart(part.getStream(), whole, true);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Sets the longest message {@link #poll(long)} will gather, Integer.MAX_VALUE - 8
+     * bytes by default.
+     */
+    public void setMaxMessageLength(long maxMessageLength) {
+        this.maxMessageLength = Math.min(maxMessageLength, Integer.MAX_VALUE - 8);
+    }
+
+    /**
+     * Returns true when every queued message has been sent and acknowledged.
+     */
+    public boolean isIdle() {
+        return readyStreams.isEmpty() && blockedStreams == 0 && unacked.isEmpty();
+    }
+
+    /**
+     * Returns true once the peer has closed its direction and every message it sent
+     * has been delivered.
+     */
+    public boolean isPeerFinished() {
+        return peerFinReceived;
+    }
+
+    /**
+     * Handles a packet received from the peer. The connection takes ownership of the
+     * buffer and releases it to the pool when it is done with it.
+     */
+    public void onPacket(ByteBuffer datagram, long now) throws IOException {
+        metrics.onPacketReceived(datagram.limit());
+        int type = view.wrap(datagram).getType();
+        long seq;
+        if (type == Packet.SYN || type == Packet.SYN_ACK) {
+            seq = view.getSequenceNumber();
+        } else if (extended) {
+            if (datagram.limit() < PacketView.PAYLOAD_OFFSET + EPOCH_LEN) {
+                pool.release(datagram);
+                return;
+            }
+            int epochOffset = datagram.limit() - EPOCH_LEN;
+            seq = (long) datagram.getInt(epochOffset) << 32 | view.getSequenceNumber();
+            datagram.limit(epochOffset);
+        } else {
+            seq = view.getSequenceNumber(type == Packet.DATA || type == Packet.FIN || type == Packet.CREDIT
+                    || type == Packet.REPAIR || type == Packet.DATA_PART ? expectedSequenceNumber : sendBase);
+        }
+        switch (type) {
+            case Packet.DATA:
+            case Packet.FIN:
+            case Packet.CREDIT:
+                onData(datagram, seq, now);
+                return;
+            case Packet.ACK:
+                acknowledge(seq, datagram, true, now);
+                break;
+            case Packet.NAK:
+                onNak(seq, now);
+                break;
+            case Packet.REPAIR:
+                onRepair(datagram, seq, now);
+                break;
+            case Packet.DATA_PART:
+                onDataPart(datagram, seq, now);
+                break;
+            case Packet.PROBE:
+                onProbe(datagram);
+                break;
+            case Packet.PROBE_ACK:
+                onProbeAck(datagram, now);
+                break;
+            case Packet.SYN:
+                onSyn(datagram, now);
+                break;
+            case Packet.SYN_ACK:
+                onSynAck(datagram, now);
+                break;
+            default:
+                break;
+        }
+        pool.release(datagram);
+    }
+
+    /**
+     * Sends the acknowledgement of the DATA packets received since the last
+     * flush, if any.
+     */
+    public void flush() throws IOException {
+        if (ackPending) {
+            sendAck();
+        }
+    }
+
+    /**
+     * Flushes, then retransmits every packet whose timer has expired, all at once.
+     * Any expiry backs off the retransmission timeout and is reported to the
+     * congestion controller once. Also ends TIME_WAIT.
+     *
+     * @throws IOException if a packet has been retransmitted {@link #MAX_RETRIES} times
+     *                     without being acknowledged
+     */
+    public void onTimer(long now) throws IOException {
+        flush();
+        if (state == State.TIME_WAIT && now >= timeWaitDeadline) {
+            state = State.CLOSED;
+        }
+        long timeout = rtt.getTimeout();
+        timers.advance(now);
+        Outstanding o;
+        while ((o = timers.poll()) != null) {
+            // Deadlines are set at send time; a backoff since then postpones them.
+            if (now - o.sentAt < timeout) {
+                timers.schedule(o, o.sentAt + timeout);
+                continue;
+            }
+            if (o.retries >= MAX_RETRIES) {
+                throw new IOException("No acknowledgement from " + peerAddress + ":" + peerPort
+                        + " for packet #" + o.sequenceNumber);
+            }
+            o.retries++;
+            o.sentAt = now;
+            if (o.retries == BLACK_HOLE_TIMEOUTS && o.datagram.limit() > Packet.MAX_LEN) {
+                onBlackHole(o.datagram.limit(), now);
+            }
+            transmit(o);
+            metrics.onRetransmit();
+            expired.add(o);
+        }
+        if (!expired.isEmpty()) {
+            shrinkRepairBlock(now);
+            metrics.onTimeout();
+            rtt.backoff();
+            congestion.onTimeout(now);
+            timeout = rtt.getTimeout();
+            while ((o = expired.poll()) != null) {
+                timers.schedule(o, now + timeout);
+            }
+        }
+        if (now >= probeDeadline) {
+            onProbeTimeout(now);
+        }
+    }
+
+    /**
+     * Returns the time at which the next retransmission timer expires (or TIME_WAIT
+     * ends), or Long.MAX_VALUE if there is nothing to wait for.
+     */
+    public long nextTimeout() {
+        long next = state == State.TIME_WAIT ? timeWaitDeadline : Long.MAX_VALUE;
+        return Math.min(Math.min(next, probeDeadline), timers.nextDeadline());
+    }
+
+    /**
+     * Releases every buffer held by the connection. It must not be used afterwards.
+     */
+    public void close() {
+        for (long seq = unacked.next(sendBase, nextSequenceNumber); seq < nextSequenceNumber;
+             seq = unacked.next(seq + 1, nextSequenceNumber)) {
+            removeAcknowledged(seq);
+        }
+        long receiveEnd = expectedSequenceNumber + windowSize;
+        for (long seq = outOfOrder.next(expectedSequenceNumber, receiveEnd); seq < receiveEnd;
+             seq = outOfOrder.next(seq + 1, receiveEnd)) {
+            pool.release(outOfOrder.remove(seq));
+        }
+        if (partial != null) {
+            for (long seq = partial.next(expectedSequenceNumber, receiveEnd); seq < receiveEnd;
+                 seq = partial.next(seq + 1, receiveEnd)) {
+                pool.release(partial.remove(seq).datagram);
+            }
+        }
+        if (recent != null) {
+            long recentStart = expectedSequenceNumber - recent.capacity();
+            for (long seq = recent.next(recentStart, expectedSequenceNumber); seq < expectedSequenceNumber;
+                 seq = recent.next(seq + 1, expectedSequenceNumber)) {
+                pool.release(recent.remove(seq));
+            }
+        }
+        reassembler.clear();
+        gathered.clear();
+        for (SendStream stream : sendStreams) {
+            if (stream != null) {
+                stream.messages.clear();
+            }
+        }
+        readyStreams.clear();
+        blockedStreams = 0;
+        state = State.CLOSED;
+    }
+
+    private boolean canSend() {
+        return state == State.ESTABLISHED || state == State.CLOSE_WAIT;
+    }
+
+    private void fillWindow(long now) throws IOException {
+        if (!canSend()) {
+            return;
+        }
+        if (probeLength == 0 && nextProbeLength() > 0) {
+            probeLength = nextProbeLength();
+            probeAttempts = 0;
+            sendProbe(now);
+        }
+        while (!pendingCredits.isEmpty() && hasRoom()) {
+            sendCredit(now);
+        }
+        while (!readyStreams.isEmpty() && hasRoom()) {
+            SendStream stream = readyStreams.peek();
+            OutgoingMessage message = stream.messages.peek();
+            if (message.fragmentCount == 0) {
+                // Fragments are sized when the message starts, as their count cannot change afterwards.
+                int data = fragmentData(packetLength);
+                // Messages of several packets wait for the first PROBE's first attempt.
+                if (message.length > data && probeLength != 0 && probeCeiling == Integer.MAX_VALUE
+                        && probeAttempts == 1) {
+                    break;
+                }
+                message.start(streams ? stream.nextMessageId++ : nextMessageId++, data);
+            }
+            if (streams) {
+                long length = Math.min(message.fragmentData,
+                        message.length - (long) message.nextFragment * message.fragmentData);
+                if (stream.sent + length > stream.credit) {
+                    // Back in turn once a CREDIT packet raises the stream's credit.
+                    readyStreams.poll();
+                    stream.blocked = true;
+                    blockedStreams++;
+                    continue;
+                }
+                stream.sent += length;
+            }
+            ByteBuffer datagram = pool.acquire();
+            PacketView.writeHeader(datagram, Packet.DATA, nextSequenceNumber, peerAddressBits, peerPort);
+            if (streams) {
+                datagram.put((byte) stream.id);
+            }
+            Segmenter.writeFragment(datagram, message.id, message.nextFragment, message.fragmentCount,
+                    message.source, message.fragmentData);
+            if (repair) {
+                parity.add(nextSequenceNumber, datagram, PacketView.PAYLOAD_OFFSET,
+                        datagram.position() - PacketView.PAYLOAD_OFFSET);
+            }
+            seal(datagram, nextSequenceNumber);
+            if (++message.nextFragment == message.fragmentCount) {
+                stream.messages.poll();
+            }
+            readyStreams.poll();
+            if (!stream.messages.isEmpty()) {
+                readyStreams.add(stream);
+            }
+            Outstanding o = track(datagram, now);
+            if (repair) {
+                o.repairSentAt = Long.MAX_VALUE;
+                if (parity.getCount() >= repairBlock) {
+                    sendRepair(now);
+                }
+            }
+        }
+        // Whatever is sent last is protected right away rather than when more comes.
+        if (repair && parity.getCount() > 0 && readyStreams.isEmpty()) {
+            sendRepair(now);
+        }
+        if (finQueued && readyStreams.isEmpty() && blockedStreams == 0 && pendingCredits.isEmpty()
+                && finSequenceNumber < 0 && hasRoom()) {
+            finSequenceNumber = nextSequenceNumber;
+            ByteBuffer fin = pool.acquire();
+            PacketView.writeHeader(fin, Packet.FIN, nextSequenceNumber, peerAddressBits, peerPort);
+            fin.putInt((int) expectedSequenceNumber);
+            seal(fin, nextSequenceNumber);
+            track(fin, now);
+            state = state == State.CLOSE_WAIT ? State.LAST_ACK : State.FIN_WAIT;
+        }
+    }
+
+    private boolean hasRoom() {
+        return nextSequenceNumber < sendBase + sendWindow && unacked.size() < congestion.getWindow();
+    }
+
+    /**
+     * Counts data the application took from a stream, and grants the peer more
+     * credit on it once half of the credit granted has been taken.
+     */
+    private void consume(int stream, int length, long now) throws IOException {
+        consumed[stream] += length;
+        if (granted[stream] - consumed[stream] <= streamCredit / 2) {
+            granted[stream] = consumed[stream] + streamCredit;
+            pendingCredits.set(stream);
+            fillWindow(now);
+        }
+    }
+
+    /**
+     * Sends the credit of as many streams whose credit was raised as a CREDIT
+     * packet holds.
+     */
+    private void sendCredit(long now) throws IOException {
+        // A block of DATA packets protected by a REPAIR packet never spans another packet.
+        if (repair && parity.getCount() > 0) {
+            sendRepair(now);
+        }
+        ByteBuffer credit = pool.acquire();
+        PacketView.writeHeader(credit, Packet.CREDIT, nextSequenceNumber, peerAddressBits, peerPort);
+        int end = Packet.MAX_LEN - (extended ? EPOCH_LEN : 0);
+        for (int stream = pendingCredits.nextSetBit(0); stream >= 0 && credit.position() + CREDIT_LEN <= end;
+             stream = pendingCredits.nextSetBit(stream + 1)) {
+            credit.put((byte) stream).putLong(granted[stream]);
+            pendingCredits.clear(stream);
+        }
+        seal(credit, nextSequenceNumber);
+        track(credit, now);
+    }
+
+    /**
+     * Raises the credit of the streams a CREDIT packet lists, and puts those that
+     * waited for it back in turn.
+     */
+    private void onCredit(ByteBuffer datagram) {
+        if (!streams) {
+            return;
+        }
+        for (int i = PacketView.PAYLOAD_OFFSET; i + CREDIT_LEN <= datagram.limit(); i += CREDIT_LEN) {
+            int id = Byte.toUnsignedInt(datagram.get(i));
+            SendStream stream = sendStreams[id];
+            if (stream == null) {
+                stream = new SendStream(id, peerStreamCredit);
+                sendStreams[id] = stream;
+            }
+            // Credits only grow, so a CREDIT packet overtaken by a later one changes nothing.
+            stream.credit = Math.max(stream.credit, datagram.getLong(i + STREAM_ID_LEN));
+            if (stream.blocked) {
+                stream.blocked = false;
+                blockedStreams--;
+                readyStreams.add(stream);
+            }
+        }
+    }
+
+    /**
+     * Sends a packet that takes the next sequence number and keeps it until it is
+     * acknowledged.
+     */
+    private Outstanding track(ByteBuffer datagram, long now) throws IOException {
+        // The slot is free: every packet in flight is within the window of the one sent next.
+        Outstanding o = outstanding[unacked.slot(nextSequenceNumber)];
+        o.reset(nextSequenceNumber, datagram, now);
+        unacked.put(nextSequenceNumber, o);
+        timers.schedule(o, now + rtt.getTimeout());
+        nextSequenceNumber++;
+        transmit(o);
+        return o;
+    }
+
+    /**
+     * Sends the REPAIR packet of the block of DATA packets sent since the last one,
+     * and adapts the block size.
+     */
+    private void sendRepair(long now) throws IOException {
+        long first = parity.getFirst();
+        int count = parity.getCount();
+        for (long seq = unacked.next(Math.max(first, sendBase), first + count); seq < first + count;
+             seq = unacked.next(seq + 1, first + count)) {
+            unacked.get(seq).repairSentAt = now;
+        }
+        ByteBuffer datagram = pool.acquire();
+        PacketView.writeHeader(datagram, Packet.REPAIR, first, peerAddressBits, peerPort);
+        parity.write(datagram);
+        parity.clear();
+        seal(datagram, first);
+        if (adaptiveRepair && count >= repairBlock && ++cleanRepairBlocks >= REPAIR_GROWTH_BLOCKS) {
+            cleanRepairBlocks = 0;
+            repairBlock = Math.min(MAX_REPAIR_BLOCK, repairBlock + 1);
+        }
+        metrics.onRepairSent();
+        try {
+            transmit(datagram);
+        } finally {
+            pool.release(datagram);
+        }
+    }
+
+    /**
+     * Halves an adaptive repair block after a loss the REPAIR packets did not make
+     * up for, at most once per round trip.
+     */
+    private void shrinkRepairBlock(long now) {
+        if (repair && adaptiveRepair && now - repairBlockShrunkAt >= rtt.getSmoothedRtt()) {
+            repairBlockShrunkAt = now;
+            cleanRepairBlocks = 0;
+            repairBlock = Math.max(MIN_REPAIR_BLOCK, repairBlock / 2);
+        }
+    }
+
+    /**
+     * Returns the message data a DATA packet of the given length carries, leaving
+     * room for the stream ID, the epoch trailer and the header of a REPAIR packet,
+     * if agreed.
+     */
+    private int fragmentData(int packetLength) {
+        return packetLength - Packet.MIN_LEN - (streams ? STREAM_ID_LEN : 0) - Segmenter.HEADER_LEN
+                - (extended ? EPOCH_LEN : 0) - (repair ? Parity.HEADER_LEN : 0);
+    }
+
+    /**
+     * Returns the length of the next PROBE of the search for the largest packet the
+     * path carries, or 0 once the search is over: first the largest both sides
+     * accept, then halfway between the largest known to make it and the smallest
+     * known not to.
+     */
+    private int nextProbeLength() {
+        int limit = Math.min(maxPacketLength, peerMaxPacketLength);
+        if (probeCeiling > limit) {
+            return limit > packetLength ? limit : 0;
+        }
+        return probeCeiling - packetLength > PROBE_RESOLUTION ? (packetLength + probeCeiling) >>> 1 : 0;
+    }
+
+    private void sendProbe(long now) throws IOException {
+        ByteBuffer datagram = pool.acquire();
+        PacketView.writeHeader(datagram, Packet.PROBE, nextSequenceNumber, peerAddressBits, peerPort);
+        datagram.putInt(probeLength);
+        // Zeros rather than whatever the buffer held before.
+        int end = probeLength - (extended ? EPOCH_LEN : 0);
+        while (datagram.position() + Long.BYTES <= end) {
+            datagram.putLong(0);
+        }
+        while (datagram.position() < end) {
+            datagram.put((byte) 0);
+        }
+        seal(datagram, nextSequenceNumber);
+        probeAttempts++;
+        probeDeadline = now + rtt.getTimeout();
+        try {
+            transmit(datagram);
+        } finally {
+            pool.release(datagram);
+        }
+    }
+
+    private void onProbeTimeout(long now) throws IOException {
+        if (probeAttempts < PROBE_ATTEMPTS) {
+            sendProbe(now);
+            return;
+        }
+        probeCeiling = probeLength;
+        probeLength = 0;
+        probeDeadline = Long.MAX_VALUE;
+        fillWindow(now);
+    }
+
+    /**
+     * Copies a DATA_PART into the DATA packet it is part of, and handles that packet
+     * once it is complete.
+     */
+    private void onDataPart(ByteBuffer datagram, long seq, long now) throws IOException {
+        if (state == State.CLOSED || state == State.LISTEN || state == State.SYN_SENT
+                || datagram.limit() < PacketView.PAYLOAD_OFFSET + PART_HEADER_LEN) {
+            return;
+        }
+        if (seq < expectedSequenceNumber || seq >= expectedSequenceNumber + windowSize || outOfOrder.contains(seq)) {
+            // Already received whole; acknowledge it again like a duplicate DATA packet.
+            ackPending = true;
+            return;
+        }
+        int index = datagram.get(PacketView.PAYLOAD_OFFSET) & 0xff;
+        int count = datagram.get(PacketView.PAYLOAD_OFFSET + 1) & 0xff;
+        int size = datagram.getShort(PacketView.PAYLOAD_OFFSET + 2) & 0xffff;
+        int length = datagram.limit() - PacketView.PAYLOAD_OFFSET - PART_HEADER_LEN;
+        int end = PacketView.PAYLOAD_OFFSET + index * size + length;
+        if (count > Long.SIZE || index >= count || (index < count - 1 ? length != size : length > size)
+                || end > pool.getBufferSize()) {
+            return;
+        }
+        if (partial == null) {
+            partial = new SequenceWindow<>(windowSize);
+        }
+        PartialData data = partial.get(seq);
+        if (data == null) {
+            data = new PartialData(pool.acquire(), count, size);
+            ByteBuffer header = datagram.duplicate();
+            header.limit(PacketView.PAYLOAD_OFFSET);
+            data.datagram.put(header).put(PacketView.TYPE_OFFSET, (byte) Packet.DATA);
+            partial.put(seq, data);
+        } else if (data.count != count || data.size != size) {
+            // Split anew at a packet length that changed since.
+            data.count = count;
+            data.size = size;
+            data.received = 0;
+        }
+        ByteBuffer part = datagram.duplicate();
+        part.position(PacketView.PAYLOAD_OFFSET + PART_HEADER_LEN);
+        data.datagram.position(PacketView.PAYLOAD_OFFSET + index * size);
+        data.datagram.put(part);
+        data.received |= 1L << index;
+        if (index == count - 1) {
+            data.length = end;
+        }
+        if (data.received != (count == Long.SIZE ? -1L : (1L << count) - 1)) {
+            return;
+        }
+        partial.remove(seq);
+        data.datagram.limit(data.length);
+        data.datagram.position(0);
+        view.wrap(data.datagram);
+        onData(data.datagram, seq, now);
+    }
+
+    private void onProbe(ByteBuffer datagram) throws IOException {
+        if (state == State.CLOSED || state == State.LISTEN || datagram.limit() < PacketView.PAYLOAD_OFFSET + 4) {
+            return;
+        }
+        int length = datagram.limit() + (extended ? EPOCH_LEN : 0);
+        if (datagram.getInt(PacketView.PAYLOAD_OFFSET) != length) {
+            return;
+        }
+        ByteBuffer ack = pool.acquire();
+        PacketView.writeHeader(ack, Packet.PROBE_ACK, expectedSequenceNumber, peerAddressBits, peerPort);
+        ack.putInt(length);
+        seal(ack, expectedSequenceNumber);
+        try {
+            transmit(ack);
+        } finally {
+            pool.release(ack);
+        }
+    }
+
+    private void onProbeAck(ByteBuffer datagram, long now) throws IOException {
+        if (probeLength == 0 || datagram.limit() < PacketView.PAYLOAD_OFFSET + 4
+                || datagram.getInt(PacketView.PAYLOAD_OFFSET) != probeLength) {
+            return;
+        }
+        packetLength = probeLength;
+        probeLength = 0;
+        probeDeadline = Long.MAX_VALUE;
+        fillWindow(now);
+    }
+
+    /**
+     * Falls back to packets every path carries after one of the given length timed
+     * out too often, and searches again below that length. Messages already
+     * started keep their fragments: like TCP on a smaller path MTU, every packet in
+     * flight that is now too large is retransmitted in parts right away rather than
+     * each waiting for its own timeouts.
+     */
+    private void onBlackHole(int length, long now) throws IOException {
+        if (packetLength == Packet.MAX_LEN) {
+            return;
+        }
+        packetLength = Packet.MAX_LEN;
+        probeCeiling = Math.min(probeCeiling, length);
+        probeLength = 0;
+        probeDeadline = Long.MAX_VALUE;
+        for (long seq = unacked.next(sendBase, nextSequenceNumber); seq < nextSequenceNumber;
+             seq = unacked.next(seq + 1, nextSequenceNumber)) {
+            Outstanding o = unacked.get(seq);
+            // Those sent now are retransmitted by the caller.
+            if (o.datagram.limit() > packetLength && o.sentAt != now) {
+                o.sentAt = now;
+                transmit(o);
+                metrics.onRetransmit();
+            }
+        }
+    }
+
+    /**
+     * Closes a packet written after the handshake with the epoch of its sequence
+     * number, if the peer agreed to it, and flips it for sending.
+     */
+    private void seal(ByteBuffer datagram, long sequenceNumber) {
+        if (extended) {
+            datagram.putInt((int) (sequenceNumber >>> 32));
+        }
+        datagram.flip();
+    }
+
+    /**
+     * Sends a packet that takes a sequence number, in DATA_PART packets if it is a
+     * fragment sized before a fallback to packets the path carries.
+     */
+    private void transmit(Outstanding o) throws IOException {
+        ByteBuffer datagram = o.datagram;
+        if (datagram.limit() <= packetLength) {
+            transmit(datagram);
+            return;
+        }
+        int trailer = extended ? EPOCH_LEN : 0;
+        int length = datagram.limit() - trailer - PacketView.PAYLOAD_OFFSET;
+        int room = packetLength - trailer - PacketView.PAYLOAD_OFFSET - PART_HEADER_LEN;
+        int count = (length + room - 1) / room;
+        for (int i = 0, offset = 0; i < count; i++, offset += room) {
+            ByteBuffer part = pool.acquire();
+            PacketView.writeHeader(part, Packet.DATA_PART, o.sequenceNumber, peerAddressBits, peerPort);
+            part.put((byte) i).put((byte) count).putShort((short) room);
+            ByteBuffer src = datagram.duplicate();
+            src.limit(PacketView.PAYLOAD_OFFSET + Math.min(length, offset + room));
+            src.position(PacketView.PAYLOAD_OFFSET + offset);
+            part.put(src);
+            seal(part, o.sequenceNumber);
+            try {
+                transmit(part);
+            } finally {
+                pool.release(part);
+            }
+        }
+    }
+
+    private void transmit(ByteBuffer datagram) throws IOException {
+        datagram.position(0);
+        metrics.onPacketSent(datagram.remaining());
+        sink.send(datagram);
+    }
+
+    private void sendHandshake(int type, long now) throws IOException {
+        ByteBuffer datagram = pool.acquire();
+        PacketView.writeHeader(datagram, type, initialSequenceNumber, peerAddressBits, peerPort);
+        if (type == Packet.SYN_ACK) {
+            datagram.putInt((int) expectedSequenceNumber);
+        }
+        datagram.put((byte) OPTION_WINDOW).put((byte) 4).putInt(windowSize);
+        if (type == Packet.SYN ? offerExtended : extended) {
+            datagram.put((byte) OPTION_EXTENDED_SEQUENCE).put((byte) 0);
+        }
+        if (type == Packet.SYN ? compression != null : peerCodecs >= 0) {
+            datagram.put((byte) OPTION_COMPRESSION).put((byte) 1).put((byte) Compression.DECODABLE);
+        }
+        if (type == Packet.SYN ? offerRepair > 0 : repair) {
+            datagram.put((byte) OPTION_REPAIR).put((byte) 0);
+        }
+        if (maxPacketLength > Packet.MAX_LEN && (type == Packet.SYN || peerMaxPacketLength > Packet.MAX_LEN)) {
+            datagram.put((byte) OPTION_MAX_PACKET).put((byte) 4).putInt(maxPacketLength);
+        }
+        if (type == Packet.SYN ? offerStreams : streams) {
+            datagram.put((byte) OPTION_STREAMS).put((byte) 4).putInt(streamCredit);
+        }
+        datagram.flip();
+        track(datagram, now);
+        sendBase = initialSequenceNumber;
+    }
+
+    /**
+     * Applies the options of a SYN or SYN-ACK starting at offset.
+     */
+    private void readOptions(ByteBuffer datagram, int offset) {
+        while (offset + 2 <= datagram.limit()) {
+            int code = Byte.toUnsignedInt(datagram.get(offset));
+            int length = Byte.toUnsignedInt(datagram.get(offset + 1));
+            offset += 2;
+            if (offset + length > datagram.limit()) {
+                break;
+            }
+            if (code == OPTION_WINDOW && length == 4) {
+                sendWindow = Math.max(1, Math.min(windowSize, datagram.getInt(offset)));
+            } else if (code == OPTION_EXTENDED_SEQUENCE && length == 0) {
+                extended = offerExtended;
+            } else if (code == OPTION_COMPRESSION && length == 1 && compression != null) {
+                peerCodecs = Byte.toUnsignedInt(datagram.get(offset));
+            } else if (code == OPTION_MAX_PACKET && length == 4) {
+                peerMaxPacketLength = Math.max(Packet.MAX_LEN,
+                        Math.min(Packet.MAX_DATAGRAM_LEN, datagram.getInt(offset)));
+            } else if (code == OPTION_STREAMS && length == 4 && offerStreams) {
+                streams = true;
+                peerStreamCredit = datagram.getInt(offset);
+                for (SendStream stream : sendStreams) {
+                    if (stream != null) {
+                        stream.credit = peerStreamCredit;
+                    }
+                }
+                received = new long[MAX_STREAMS];
+                consumed = new long[MAX_STREAMS];
+                granted = new long[MAX_STREAMS];
+                Arrays.fill(granted, streamCredit);
+            } else if (code == OPTION_REPAIR && length == 0 && offerRepair > 0) {
+                repair = true;
+                parity = new Parity(maxPacketLength - Packet.MIN_LEN);
+                rebuilding = new Parity(maxPacketLength - Packet.MIN_LEN);
+                recent = new SequenceWindow<>(Math.max(windowSize, MAX_REPAIR_BLOCK));
+            }
+            offset += length;
+        }
+    }
+
+    private void onSyn(ByteBuffer datagram, long now) throws IOException {
+        long seq = view.getSequenceNumber();
+        if (state == State.LISTEN) {
+            peerInitialSequenceNumber = seq;
+            expectedSequenceNumber = seq + 1;
+            readOptions(datagram, PacketView.PAYLOAD_OFFSET);
+            state = State.SYN_RECEIVED;
+            sendHandshake(Packet.SYN_ACK, now);
+        } else if (state == State.SYN_RECEIVED && seq == peerInitialSequenceNumber) {
+            // Our SYN-ACK was lost; answer the retransmitted SYN right away.
+            Outstanding synAck = unacked.get(initialSequenceNumber);
+            if (synAck != null) {
+                synAck.retries++;
+                synAck.sentAt = now;
+                timers.schedule(synAck, now + rtt.getTimeout());
+                transmit(synAck.datagram);
+                metrics.onRetransmit();
+            }
+        }
+    }
+
+    private void onSynAck(ByteBuffer datagram, long now) throws IOException {
+        if (state == State.SYN_SENT) {
+            if (datagram.limit() < PacketView.PAYLOAD_OFFSET + 4
+                    || datagram.getInt(PacketView.PAYLOAD_OFFSET) != (int) (initialSequenceNumber + 1)) {
+                return;
+            }
+            peerInitialSequenceNumber = view.getSequenceNumber();
+            expectedSequenceNumber = peerInitialSequenceNumber + 1;
+            readOptions(datagram, PacketView.PAYLOAD_OFFSET + 4);
+
+            Outstanding syn = unacked.remove(initialSequenceNumber);
+            if (syn != null) {
+                timers.cancel(syn);
+                if (syn.retries == 0) {
+                    rtt.sample(now - syn.sentAt);
+                    metrics.onRttSample(now - syn.sentAt);
+                }
+                pool.release(syn.datagram);
+            }
+            sendBase = nextSequenceNumber;
+            lastCumulativeAck = nextSequenceNumber;
+            state = State.ESTABLISHED;
+            sendAck();
+            fillWindow(now);
+        } else if (view.getSequenceNumber() == peerInitialSequenceNumber) {
+            // Our ACK of the SYN-ACK was lost.
+            sendAck();
+        }
+    }
+
+    private void onData(ByteBuffer datagram, long seq, long now) throws IOException {
+        if (state == State.CLOSED || state == State.LISTEN || state == State.SYN_SENT) {
+            pool.release(datagram);
+            return;
+        }
+        if (state == State.SYN_RECEIVED) {
+            // The ACK of our SYN-ACK was lost, but the peer is clearly established.
+            state = State.ESTABLISHED;
+        }
+
+        if (view.getType() == Packet.FIN && datagram.limit() >= PacketView.PAYLOAD_OFFSET + 4) {
+            // Like a TCP FIN, ours carries a cumulative acknowledgement, so the
+            // peer's FIN also acknowledges our FIN if the separate ACK was lost.
+            acknowledge(PacketView.unwrap(datagram.getInt(PacketView.PAYLOAD_OFFSET), sendBase), datagram, false, now);
+        }
+        if (seq >= expectedSequenceNumber && seq < expectedSequenceNumber + windowSize
+                && !outOfOrder.contains(seq)) {
+            if (partial != null && partial.contains(seq)) {
+                pool.release(partial.remove(seq).datagram);
+            }
+            // With streams, a packet out of order goes to its stream right away, as a
+            // copy: the window keeps the packet itself until the gap before it is filled.
+            boolean early = streams && seq != expectedSequenceNumber
+                    && datagram.get(PacketView.TYPE_OFFSET) == Packet.DATA;
+            if (datagram.get(PacketView.TYPE_OFFSET) == Packet.CREDIT) {
+                // Credits only grow, so they apply at once, in any order.
+                onCredit(datagram);
+            }
+            if (early) {
+                ByteBuffer copy = pool.acquire();
+                ByteBuffer source = datagram.duplicate();
+                source.position(0);
+                copy.put(source).flip();
+                accept(copy);
+            }
+            outOfOrder.put(seq, datagram);
+            ByteBuffer next;
+            while ((next = outOfOrder.remove(expectedSequenceNumber)) != null) {
+                expectedSequenceNumber++;
+                if (view.wrap(next).getType() == Packet.FIN) {
+                    pool.release(next);
+                    onPeerFin(now);
+                    continue;
+                }
+                if (view.getType() == Packet.CREDIT) {
+                    pool.release(next);
+                    continue;
+                }
+                if (recent != null) {
+                    keepForRepair(next, expectedSequenceNumber - 1);
+                }
+                if (streams && next != datagram) {
+                    // Went to its stream when it arrived.
+                    pool.release(next);
+                    continue;
+                }
+                accept(next);
+            }
+        } else {
+            if (seq < expectedSequenceNumber + windowSize) {
+                metrics.onDuplicate();
+            }
+            pool.release(datagram);
+        }
+        // Duplicates below the window are acknowledged again in case our previous
+        // ACK was lost; packets beyond the window are dropped and only re-ACKed.
+        // The whole batch is acknowledged at once, see flush.
+        ackPending = true;
+
+        if (!outOfOrder.isEmpty() && nakSentFor != expectedSequenceNumber) {
+            nakSentFor = expectedSequenceNumber;
+            sendControl(Packet.NAK, expectedSequenceNumber);
+        }
+        fillWindow(now);
+    }
+
+    /**
+     * Hands a DATA packet to the reassembler, and delivers the parts of messages it
+     * completes in their stream's order.
+     */
+    private void accept(ByteBuffer datagram) throws IOException {
+        if (!streams) {
+            reassembler.accept(datagram, 0, PacketView.PAYLOAD_OFFSET, delivered);
+            return;
+        }
+        if (datagram.limit() < PacketView.PAYLOAD_OFFSET + STREAM_ID_LEN) {
+            pool.release(datagram);
+            throw new IOException("Fragment shorter than its header");
+        }
+        int stream = Byte.toUnsignedInt(datagram.get(PacketView.PAYLOAD_OFFSET));
+        received[stream] += Math.max(0, datagram.limit() - PacketView.PAYLOAD_OFFSET - STREAM_ID_LEN
+                - Segmenter.HEADER_LEN);
+        if (received[stream] > granted[stream]) {
+            pool.release(datagram);
+            throw new IOException("More data on stream " + stream + " than its credit");
+        }
+        reassembler.accept(datagram, stream, PacketView.PAYLOAD_OFFSET + STREAM_ID_LEN, delivered);
+    }
+
+    /**
+     * Keeps a copy of a DATA packet delivered in order, in place of the packet a
+     * window earlier.
+     */
+    private void keepForRepair(ByteBuffer datagram, long seq) {
+        ByteBuffer copy = recent.remove(seq);
+        if (copy == null) {
+            copy = pool.acquire();
+        }
+        copy.clear();
+        ByteBuffer packet = datagram.duplicate();
+        packet.position(0);
+        copy.put(packet).flip();
+        recent.put(seq, copy);
+    }
+
+    /**
+     * Rebuilds the one DATA packet of the block of a REPAIR packet that is missing,
+     * if all the others were received, and handles it as if it had arrived.
+     */
+    private void onRepair(ByteBuffer datagram, long first, long now) throws IOException {
+        if (recent == null || !rebuilding.read(datagram, first)) {
+            return;
+        }
+        long end = first + rebuilding.getCount();
+        if (end <= expectedSequenceNumber || end > expectedSequenceNumber + windowSize
+                || first < expectedSequenceNumber - recent.capacity()) {
+            rebuilding.clear();
+            return;
+        }
+        long missing = -1;
+        for (long seq = first; seq < end; seq++) {
+            ByteBuffer packet = received(seq);
+            if (packet == null && missing >= 0) {
+                // Two or more lost: the retransmissions have to do.
+                rebuilding.clear();
+                return;
+            }
+            if (packet == null) {
+                missing = seq;
+            } else {
+                rebuilding.add(seq, packet, PacketView.PAYLOAD_OFFSET, packet.limit() - PacketView.PAYLOAD_OFFSET);
+            }
+        }
+        if (missing < 0) {
+            rebuilding.clear();
+            return;
+        }
+        ByteBuffer rebuilt = pool.acquire();
+        PacketView.writeHeader(rebuilt, Packet.DATA, missing, peerAddressBits, peerPort);
+        boolean valid = rebuilding.writeMissing(rebuilt);
+        rebuilding.clear();
+        if (!valid) {
+            pool.release(rebuilt);
+            return;
+        }
+        rebuilt.flip();
+        metrics.onPacketRepaired();
+        view.wrap(rebuilt);
+        onData(rebuilt, missing, now);
+    }
+
+    /**
+     * Returns the DATA packet with the given sequence number if it was received and
+     * is still held, or null.
+     */
+    private ByteBuffer received(long seq) {
+        if (seq >= expectedSequenceNumber) {
+            return outOfOrder.contains(seq) ? outOfOrder.get(seq) : null;
+        }
+        ByteBuffer packet = recent.get(seq);
+        return packet != null && packet.getInt(PacketView.SEQUENCE_OFFSET) == (int) seq ? packet : null;
+    }
+
+    private void onPeerFin(long now) {
+        peerFinReceived = true;
+        if (state == State.ESTABLISHED) {
+            state = State.CLOSE_WAIT;
+        } else if (state == State.FIN_WAIT && isFinAcked()) {
+            enterTimeWait(now);
+        }
+    }
+
+    private boolean isFinAcked() {
+        return finSequenceNumber >= 0 && !unacked.contains(finSequenceNumber);
+    }
+
+    private void enterTimeWait(long now) {
+        state = State.TIME_WAIT;
+        timeWaitDeadline = now + 2 * rtt.getTimeout();
+    }
+
+    /**
+     * Removes every packet below cumulative, and the packets in the selective
+     * acknowledgement blocks if the datagram is an ACK, from the unacknowledged
+     * set. Anything outside the packets in flight is stale and ignored.
+     */
+    private void acknowledge(long cumulative, ByteBuffer datagram, boolean isAck, long now) throws IOException {
+        int acked = 0;
+        Outstanding newest = null;
+
+        long end = Math.min(cumulative, nextSequenceNumber);
+        for (long seq = unacked.next(sendBase, end); seq < end; seq = unacked.next(seq + 1, end)) {
+            newest = removeAcknowledged(seq);
+            acked++;
+        }
+        for (int i = PacketView.PAYLOAD_OFFSET; isAck && i + 8 <= datagram.limit(); i += 8) {
+            long blockStart = Math.max(sendBase, PacketView.unwrap(datagram.getInt(i), sendBase));
+            long blockEnd = Math.min(nextSequenceNumber, PacketView.unwrap(datagram.getInt(i + 4), sendBase));
+            for (long seq = unacked.next(blockStart, blockEnd); seq < blockEnd;
+                 seq = unacked.next(seq + 1, blockEnd)) {
+                Outstanding o = removeAcknowledged(seq);
+                acked++;
+                if (newest == null || o.sequenceNumber > newest.sequenceNumber) {
+                    newest = o;
+                }
+            }
+        }
+        sendBase = unacked.next(sendBase, nextSequenceNumber);
+
+        // Karn's algorithm: a retransmitted packet gives an ambiguous sample.
+        if (newest != null && newest.retries == 0) {
+            rtt.sample(now - newest.sentAt);
+            metrics.onRttSample(now - newest.sentAt);
+        }
+        if (acked > 0) {
+            congestion.onAck(acked, rtt.getSmoothedRtt(), now);
+        }
+
+        if (cumulative > lastCumulativeAck) {
+            lastCumulativeAck = cumulative;
+            duplicateAcks = 0;
+        } else if (isAck && !unacked.isEmpty() && (++duplicateAcks == DUPLICATE_ACK_THRESHOLD
+                || repair && duplicateAcks > DUPLICATE_ACK_THRESHOLD)) {
+            // A retransmission held back for a REPAIR packet is tried again on later
+            // duplicates, in case the REPAIR packet did not make up for the loss.
+            retransmitLost(unacked.get(sendBase), now);
+        }
+
+        if (state == State.SYN_RECEIVED && !unacked.contains(initialSequenceNumber)) {
+            state = State.ESTABLISHED;
+        } else if (state == State.LAST_ACK && isFinAcked()) {
+            state = State.CLOSED;
+        } else if (state == State.FIN_WAIT && isFinAcked() && peerFinReceived) {
+            enterTimeWait(now);
+        }
+        fillWindow(now);
+    }
+
+    private Outstanding removeAcknowledged(long seq) {
+        Outstanding o = unacked.remove(seq);
+        timers.cancel(o);
+        pool.release(o.datagram);
+        return o;
+    }
+
+    private void onNak(long seq, long now) throws IOException {
+        if (seq >= sendBase && seq < nextSequenceNumber && unacked.contains(seq)) {
+            retransmitLost(unacked.get(seq), now);
+        }
+    }
+
+    /**
+     * Retransmits a packet the peer reported missing, unless it was already sent
+     * again within the last round trip, or the REPAIR packet of its block may still
+     * rebuild it.
+     */
+    private void retransmitLost(Outstanding o, long now) throws IOException {
+        if (now - Math.max(o.sentAt, o.repairSentAt) < rtt.getSmoothedRtt()) {
+            return;
+        }
+        shrinkRepairBlock(now);
+        o.retries++;
+        o.sentAt = now;
+        timers.schedule(o, now + rtt.getTimeout());
+        transmit(o);
+        metrics.onFastRetransmit();
+        congestion.onFastRetransmit(now);
+    }
+
+    private void sendAck() throws IOException {
+        ackPending = false;
+        ByteBuffer ack = pool.acquire();
+        PacketView.writeHeader(ack, Packet.ACK, expectedSequenceNumber, peerAddressBits, peerPort);
+        // Runs of packets received out of order, as [start, end) blocks.
+        long end = expectedSequenceNumber + windowSize;
+        long blockStart = outOfOrder.next(expectedSequenceNumber, end);
+        while (blockStart < end && ack.remaining() >= 8 + (extended ? EPOCH_LEN : 0)) {
+            long blockEnd = outOfOrder.nextMissing(blockStart, end);
+            ack.putInt((int) blockStart).putInt((int) blockEnd);
+            blockStart = outOfOrder.next(blockEnd, end);
+        }
+        seal(ack, expectedSequenceNumber);
+        try {
+            transmit(ack);
+        } finally {
+            pool.release(ack);
+        }
+    }
+
+    private void sendControl(int type, long sequenceNumber) throws IOException {
+        ByteBuffer datagram = pool.acquire();
+        PacketView.writeHeader(datagram, type, sequenceNumber, peerAddressBits, peerPort);
+        seal(datagram, sequenceNumber);
+        try {
+            transmit(datagram);
+        } finally {
+            pool.release(datagram);
+        }
+    }
+
+    /**
+     * The messages of a stream waiting to be sent, and the credit the peer granted
+     * the stream.
+     */
+    private static class SendStream {
+        private final int id;
+        private final Deque<OutgoingMessage> messages = new ArrayDeque<>();
+        private int nextMessageId;
+        // Bytes of message data sent on the stream, and how many the peer accepts so far.
+        private long sent;
+        private long credit;
+        private boolean blocked;
+
+        SendStream(int id, long credit) {
+            this.id = id;
+            this.credit = credit;
+        }
+    }
+
+    /**
+     * The parts of a message received so far, see pollMessage.
+     */
+    private static class Gathered {
+        private final List<ByteBuffer> parts = new ArrayList<>();
+        private long length;
+    }
+
+    /**
+     * A message waiting to be sent, and how far along it is.
+     */
+    private static class OutgoingMessage {
+        private int id;
+        private final MessageSource source;
+        private final long length;
+        private int fragmentData;
+        // 0 until the first fragment is sent.
+        private int fragmentCount;
+        private int nextFragment;
+
+        OutgoingMessage(MessageSource source) {
+            this.source = source;
+            this.length = source.length();
+        }
+
+        void start(int id, int fragmentData) {
+            this.id = id;
+            this.fragmentData = fragmentData;
+            this.fragmentCount = Segmenter.fragmentCount(length, fragmentData);
+        }
+    }
+
+    /**
+     * A DATA packet being rebuilt from the DATA_PART packets it was sent in.
+     */
+    private static class PartialData {
+        private final ByteBuffer datagram;
+        private int count;
+        private int size;
+        // A bit per part received.
+        private long received;
+        private int length;
+
+        PartialData(ByteBuffer datagram, int count, int size) {
+            this.datagram = datagram;
+            this.count = count;
+            this.size = size;
+        }
+    }
+
+    /**
+     * A packet that has been sent but not yet acknowledged.
+     */
+    private static class Outstanding extends TimerWheel.Timeout {
+        private long sequenceNumber;
+        private ByteBuffer datagram;
+        private long sentAt;
+        private int retries;
+        // When the REPAIR packet of its block was sent, Long.MAX_VALUE until it is.
+        private long repairSentAt;
+
+        void reset(long sequenceNumber, ByteBuffer datagram, long sentAt) {
+            this.sequenceNumber = sequenceNumber;
+            this.datagram = datagram;
+            this.sentAt = sentAt;
+            this.retries = 0;
+            this.repairSentAt = 0;
+        }
+    }
+}
@@ -0,0 +1,41 @@
+/**
+ * TCP Reno congestion control: slow start up to ssthresh, then additive increase
+ * of one packet per round trip; the window is halved on fast retransmit and
+ * collapses to one packet on timeout.
+ */
+public class RenoCongestionControl implements CongestionControl {
+
+    public static final int INITIAL_WINDOW = 4;
+    public static final int MIN_SSTHRESH = 2;
+
+    private double cwnd = INITIAL_WINDOW;
+    private double ssthresh = Integer.MAX_VALUE;
+
+    @Override
+    public int getWindow() {
+        return Math.max(1, (int) cwnd);
+    }
+
+    @Override
+    public void onAck(int acked, long srtt, long now) {
+        for (int i = 0; i < acked; i++) {
+            if (cwnd < ssthresh) {
+                cwnd += 1;
+            } else {
+                cwnd += 1 / cwnd;
+            }
+        }
+    }
+
+    @Override
+    public void onFastRetransmit(long now) {
+        ssthresh = Math.max(cwnd / 2, MIN_SSTHRESH);
+        cwnd = ssthresh;
+    }
+
+    @Override
+    public void onTimeout(long now) {
+        ssthresh = Math.max(cwnd / 2, MIN_SSTHRESH);
+        cwnd = 1;
+    }
+}
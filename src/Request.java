@@ -0,0 +1,316 @@
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Request is an HTTP request as the client sends it and the server handles it:
+ * a method, a path, headers, flags and a body. The client builds it from the
+ * command line once; the server decodes it in a single pass over its bytes, and
+ * the body travels as it is, whatever bytes it holds.
+ * <p>
+ * It is encoded either in binary, as the body of a {@link RequestFrame#REQUEST}
+ * frame:
+ * <pre>
+ *   method (1 byte) | flags (1 byte) | body length (8 bytes)
+ *   | path length (2 bytes) | path | header count (2 bytes)
+ *   | { name length (2 bytes) | name | value length (2 bytes) | value }...
+ *   | body
+ * </pre>
+ * with strings in UTF-8, or as a plain HTTP/1.1 request message, as the body of
+ * an {@link RequestFrame#HTTP} frame. In HTTP the flags are carried by headers:
+ * Content-Length for the body length, "Expect: 100-continue" for a streamed body
+ * and "Overwrite: F" to append to an existing file. A streamed body is not part
+ * of the request but follows it in chunks, see {@link Upload}; its
+ * {@link #BODY_TAG} header tells an interrupted upload of the same body from
+ * another one.
+ */
+public class Request {
+
+    public static final int GET = 0;
+    public static final int POST = 1;
+
+    /**
+     * The response should start with its status line and headers.
+     */
+    public static final int VERBOSE = 1;
+
+    /**
+     * A POST appends to an existing file instead of replacing it.
+     */
+    public static final int NO_OVERWRITE = 2;
+
+    /**
+     * The body follows the request in chunks.
+     */
+    public static final int STREAMED = 4;
+
+    /**
+     * The header naming a streamed body, such as the size and modification time
+     * of the file it is read from, so that only an upload of the same body resumes
+     * where an earlier one stopped.
+     */
+    public static final String BODY_TAG = "Body-Tag";
+
+    private static final String[] METHODS = {"GET", "POST"};
+    private static final int MAX_STRING_LEN = 0xffff;
+
+    private final int method;
+    private final String path;
+    private final Map<String, String> headers;
+    private final int flags;
+    private final long bodyLength;
+    private final ByteBuffer body;
+    private final boolean http;
+
+    /**
+     * @param body the body, or null if it is streamed
+     */
+    public Request(int method, String path, Map<String, String> headers, int flags, long bodyLength,
+                   ByteBuffer body) {
+        this(method, path, headers, flags, bodyLength, body, false);
+    }
+
+    private Request(int method, String path, Map<String, String> headers, int flags, long bodyLength,
+                    ByteBuffer body, boolean http) {
+        this.method = method;
+        this.path = path;
+        this.headers = Collections.unmodifiableMap(new LinkedHashMap<>(headers));
+        this.flags = flags;
+        this.bodyLength = bodyLength;
+        this.body = body;
+        this.http = http;
+    }
+
+    public int getMethod() {
+        return method;
+    }
+
+    public String getMethodName() {
+        return METHODS[method];
+    }
+
+    public String getPath() {
+        return path;
+    }
+
+    /**
+     * Returns the headers in the order they were sent, Host included.
+     */
+    public Map<String, String> getHeaders() {
+        return headers;
+    }
+
+    public String getHost() {
+        return headers.getOrDefault("Host", "");
+    }
+
+    public String getUrl() {
+        return "http://" + getHost() + path;
+    }
+
+    public boolean isVerbose() {
+        return (flags & VERBOSE) != 0;
+    }
+
+    public boolean isOverwrite() {
+        return (flags & NO_OVERWRITE) == 0;
+    }
+
+    public boolean isStreamed() {
+        return (flags & STREAMED) != 0;
+    }
+
+    /**
+     * Returns true if the request came as an HTTP/1.1 message, and wants an
+     * HTTP/1.1 response.
+     */
+    public boolean isHttp() {
+        return http;
+    }
+
+    /**
+     * Returns the {@link #BODY_TAG} of a streamed body, or null if the client sent
+     * none.
+     */
+    public String getBodyTag() {
+        return headers.get(BODY_TAG);
+    }
+
+    public long getBodyLength() {
+        return bodyLength;
+    }
+
+    /**
+     * Returns the body, or null if it is streamed.
+     */
+    public ByteBuffer getBody() {
+        return body == null ? null : body.duplicate();
+    }
+
+    /**
+     * Encodes the request in binary. The body is not copied: the result is the
+     * encoded head followed by the body.
+     */
+    public ByteBuffer[] encode() {
+        byte[] pathBytes = bytes(path);
+        int length = 1 + 1 + 8 + 2 + pathBytes.length + 2;
+        byte[][] headerBytes = new byte[headers.size() * 2][];
+        int i = 0;
+        for (Map.Entry<String, String> header : headers.entrySet()) {
+            headerBytes[i] = bytes(header.getKey());
+            headerBytes[i + 1] = bytes(header.getValue());
+            length += 2 + headerBytes[i].length + 2 + headerBytes[i + 1].length;
+            i += 2;
+        }
+
+        ByteBuffer head = ByteBuffer.allocate(length);
+        head.put((byte) method).put((byte) flags).putLong(bodyLength);
+        head.putShort((short) pathBytes.length).put(pathBytes);
+        head.putShort((short) headers.size());
+        for (byte[] string : headerBytes) {
+            head.putShort((short) string.length).put(string);
+        }
+        head.flip();
+        return body == null ? new ByteBuffer[]{head} : new ByteBuffer[]{head, getBody()};
+    }
+
+    /**
+     * Encodes the request as an HTTP/1.1 message. The body is not copied: the
+     * result is the request line and headers followed by the body.
+     */
+    public ByteBuffer[] encodeHttp() {
+        StringBuilder head = new StringBuilder();
+        head.append(getMethodName()).append(' ').append(path).append(" HTTP/1.1\r\n");
+        for (Map.Entry<String, String> header : headers.entrySet()) {
+            head.append(header.getKey()).append(": ").append(header.getValue()).append("\r\n");
+        }
+        head.append("Content-Length: ").append(bodyLength).append("\r\n");
+        if (isStreamed())
+            head.append("Expect: 100-continue\r\n");
+        if (!isOverwrite())
+            head.append("Overwrite: F\r\n");
+        head.append("\r\n");
+        ByteBuffer headBuffer = ByteBuffer.wrap(head.toString().getBytes(UTF_8));
+        return body == null ? new ByteBuffer[]{headBuffer} : new ByteBuffer[]{headBuffer, getBody()};
+    }
+
+    /**
+     * Decodes a binary request. The body is not copied.
+     */
+    public static Request decode(ByteBuffer buf) throws IOException {
+        try {
+            int method = buf.get();
+            int flags = buf.get();
+            long bodyLength = buf.getLong();
+            String path = string(buf);
+            Map<String, String> headers = new LinkedHashMap<>();
+            for (int count = buf.getShort() & 0xffff; count > 0; count--) {
+                String name = string(buf);
+                headers.put(name, string(buf));
+            }
+            if (method != GET && method != POST) {
+                throw new IOException("Unknown method " + method);
+            }
+            return new Request(method, path, headers, flags, bodyLength, body(buf, flags, bodyLength), false);
+        } catch (RuntimeException e) {
+            throw new IOException("Malformed request", e);
+        }
+    }
+
+    /**
+     * Decodes an HTTP/1.1 request message, scanning its head once. The body is
+     * not copied.
+     */
+    public static Request decodeHttp(ByteBuffer buf) throws IOException {
+        String line = line(buf);
+        int methodEnd = line.indexOf(' ');
+        int pathEnd = line.lastIndexOf(' ');
+        if (methodEnd < 0 || pathEnd <= methodEnd || !line.startsWith("HTTP/1.", pathEnd + 1)) {
+            throw new IOException("Malformed request line: " + line);
+        }
+        String methodName = line.substring(0, methodEnd);
+        int method = methodName.equals("GET") ? GET : methodName.equals("POST") ? POST : -1;
+        if (method < 0) {
+            throw new IOException("Unsupported method " + methodName);
+        }
+        String path = line.substring(methodEnd + 1, pathEnd);
+
+        // Every response of the HTTP mode is a full HTTP message.
+        int flags = VERBOSE;
+        long bodyLength = 0;
+        Map<String, String> headers = new LinkedHashMap<>();
+        while (!(line = line(buf)).isEmpty()) {
+            int colon = line.indexOf(':');
+            if (colon <= 0) {
+                throw new IOException("Malformed header: " + line);
+            }
+            String name = line.substring(0, colon).trim();
+            String value = line.substring(colon + 1).trim();
+            if (name.equalsIgnoreCase("Content-Length")) {
+                try {
+                    bodyLength = Long.parseLong(value);
+                } catch (NumberFormatException e) {
+                    throw new IOException("Malformed Content-Length: " + value);
+                }
+            } else if (name.equalsIgnoreCase("Expect") && value.equalsIgnoreCase("100-continue")) {
+                flags |= STREAMED;
+            } else if (name.equalsIgnoreCase("Overwrite") && value.equalsIgnoreCase("F")) {
+                flags |= NO_OVERWRITE;
+            } else {
+                headers.put(name, value);
+            }
+        }
+        return new Request(method, path, headers, flags, bodyLength, body(buf, flags, bodyLength), true);
+    }
+
+    @Override
+    public String toString() {
+        return getMethodName() + " " + getUrl();
+    }
+
+    private static ByteBuffer body(ByteBuffer buf, int flags, long bodyLength) throws IOException {
+        if ((flags & STREAMED) != 0) {
+            return null;
+        }
+        if (buf.remaining() != bodyLength) {
+            throw new IOException("Body of " + buf.remaining() + " bytes, expected " + bodyLength);
+        }
+        return buf.slice();
+    }
+
+    private static byte[] bytes(String string) {
+        byte[] bytes = string.getBytes(UTF_8);
+        if (bytes.length > MAX_STRING_LEN) {
+            throw new IllegalArgumentException("String longer than " + MAX_STRING_LEN + " bytes");
+        }
+        return bytes;
+    }
+
+    private static String string(ByteBuffer buf) {
+        int length = buf.getShort() & 0xffff;
+        String string = new String(buf.array(), buf.arrayOffset() + buf.position(), length, UTF_8);
+        buf.position(buf.position() + length);
+        return string;
+    }
+
+    /**
+     * Reads a line of the head, ending with CRLF or a bare LF.
+     */
+    private static String line(ByteBuffer buf) throws IOException {
+        int start = buf.position();
+        while (buf.hasRemaining()) {
+            if (buf.get() == '\n') {
+                int end = buf.position() - 1;
+                if (end > start && buf.get(end - 1) == '\r') {
+                    end--;
+                }
+                return new String(buf.array(), buf.arrayOffset() + start, end - start, UTF_8);
+            }
+        }
+        throw new IOException("Request head not terminated");
+    }
+}
@@ -0,0 +1,164 @@
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * RequestFrame tags every request and response message with a request id and a
+ * frame type:
+ * <pre>
+ *   request id (4 bytes) | type (1 byte) | body
+ * </pre>
+ * The server echoes the id of the request in its response, so a client can have
+ * several requests outstanding on one connection and match the responses as
+ * they arrive. A request, its chunks and its response all travel on the
+ * transport stream given by {@link #stream}, so that each request is delivered
+ * independently of the others.
+ * <p>
+ * A POST can stream its body as a series of {@link #CHUNK} frames ending with a
+ * {@link #LAST_CHUNK}, all carrying the id of the request. The body of a chunk is
+ * the offset of its data in the upload followed by the data:
+ * <pre>
+ *   offset (8 bytes) | data
+ * </pre>
+ * The server answers every CHUNK with a CHUNK frame whose body is just the offset
+ * the upload has reached, and the LAST_CHUNK with the response to the request.
+ * <p>
+ * The body of a REQUEST is a binary {@link Request}, answered with a REQUEST
+ * frame. A client may instead send its requests as HTTP/1.1 messages in
+ * {@link #HTTP} frames, which are answered with HTTP/1.1 responses.
+ */
+public class RequestFrame {
+
+    public static final int HEADER_LEN = 5;
+    public static final int CHUNK_HEADER_LEN = HEADER_LEN + 8;
+
+    /**
+     * A request, or the response to one.
+     */
+    public static final int REQUEST = 0;
+
+    /**
+     * A piece of an upload, or its acknowledgement.
+     */
+    public static final int CHUNK = 1;
+
+    /**
+     * The final piece of an upload.
+     */
+    public static final int LAST_CHUNK = 2;
+
+    /**
+     * An HTTP/1.1 request or response message.
+     */
+    public static final int HTTP = 3;
+
+    private RequestFrame() {
+    }
+
+    /**
+     * Returns the {@link ReliableConnection} stream of a request.
+     */
+    public static int stream(int requestId) {
+        return Math.floorMod(requestId, ReliableConnection.MAX_STREAMS);
+    }
+
+    public static byte[] encode(int requestId, byte[] body) {
+        return ByteBuffer.allocate(HEADER_LEN + body.length).putInt(requestId).put((byte) REQUEST).put(body).array();
+    }
+
+    /**
+     * Frames a body made of several buffers without copying it: the result is the
+     * header followed by the body buffers, for {@link ReliableConnection#send(ByteBuffer[], long)}.
+     */
+    public static ByteBuffer[] encode(int requestId, ByteBuffer... body) {
+        return encode(requestId, REQUEST, body);
+    }
+
+    public static ByteBuffer[] encode(int requestId, int type, ByteBuffer... body) {
+        ByteBuffer[] frame = new ByteBuffer[body.length + 1];
+        frame[0] = (ByteBuffer) ByteBuffer.allocate(HEADER_LEN).putInt(requestId).put((byte) type).flip();
+        System.arraycopy(body, 0, frame, 1, body.length);
+        return frame;
+    }
+
+    /**
+     * Frames a body that is read as it is sent, see {@link MessageSource}.
+     */
+    public static MessageSource encode(int requestId, int type, MessageSource body) {
+        return MessageSource.concat(MessageSource.of(encode(requestId, type)), body);
+    }
+
+    /**
+     * Frames a chunk of an upload, or its acknowledgement when there is no data.
+     */
+    public static ByteBuffer[] encodeChunk(int requestId, int type, long offset, ByteBuffer... data) {
+        ByteBuffer[] frame = new ByteBuffer[data.length + 1];
+        frame[0] = (ByteBuffer) ByteBuffer.allocate(CHUNK_HEADER_LEN).putInt(requestId).put((byte) type)
+                .putLong(offset).flip();
+        System.arraycopy(data, 0, frame, 1, data.length);
+        return frame;
+    }
+
+    public static int requestId(byte[] frame) throws IOException {
+        if (frame.length < HEADER_LEN) {
+            throw new IOException("Frame shorter than its header");
+        }
+        return ByteBuffer.wrap(frame).getInt();
+    }
+
+    public static int type(byte[] frame) {
+        return frame[HEADER_LEN - 1];
+    }
+
+    /**
+     * Returns the request ID of a frame that starts at the position of the buffer,
+     * such as the first part of a message.
+     */
+    public static int requestId(ByteBuffer frame) throws IOException {
+        if (frame.remaining() < HEADER_LEN) {
+            throw new IOException("Frame shorter than its header");
+        }
+        return frame.getInt(frame.position());
+    }
+
+    public static int type(ByteBuffer frame) {
+        return frame.get(frame.position() + HEADER_LEN - 1);
+    }
+
+    /**
+     * Decodes the body of the frame as UTF-8 text.
+     */
+    public static String body(byte[] frame) {
+        return new String(frame, HEADER_LEN, frame.length - HEADER_LEN, UTF_8);
+    }
+
+    /**
+     * Returns the body of a frame that starts at the position of the buffer,
+     * without copying it.
+     */
+    public static ByteBuffer bodyBuffer(ByteBuffer frame) {
+        return slice(frame, HEADER_LEN);
+    }
+
+    public static long chunkOffset(ByteBuffer frame) throws IOException {
+        if (frame.remaining() < CHUNK_HEADER_LEN) {
+            throw new IOException("Chunk shorter than its header");
+        }
+        return frame.getLong(frame.position() + HEADER_LEN);
+    }
+
+    /**
+     * Returns the data of a chunk that starts at the position of the buffer,
+     * without copying it.
+     */
+    public static ByteBuffer chunkData(ByteBuffer frame) {
+        return slice(frame, CHUNK_HEADER_LEN);
+    }
+
+    private static ByteBuffer slice(ByteBuffer frame, int offset) {
+        ByteBuffer view = frame.duplicate();
+        view.position(view.position() + offset);
+        return view.slice();
+    }
+}
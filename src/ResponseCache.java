@@ -0,0 +1,148 @@
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * ResponseCache keeps the "data" payload of hot files in memory, their content
+ * already escaped as a JSON string (see {@link JsonString#encode}), ready to be
+ * spliced into responses, so that repeated GETs of them touch neither the disk
+ * nor the encoder. It is bounded by the total size of the payloads it holds and
+ * evicts the least recently used file first; payloads bigger than an eighth of
+ * the bound are not cached.
+ * <p>
+ * Every entry remembers the size and modification time of the file it was read
+ * from, and a lookup with different ones counts as an invalidation: the file
+ * changed on disk. Writes by the server itself invalidate the file explicitly.
+ * The cached buffers are read-only and shared by every response that sends
+ * them. ResponseCache is thread-safe.
+ */
+public class ResponseCache {
+
+    private final long maxBytes;
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long bytes;
+    private long hits;
+    private long misses;
+    private long evictions;
+    private long invalidations;
+
+    public ResponseCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Returns the largest payload the cache takes.
+     */
+    public long getMaxEntrySize() {
+        return maxBytes / 8;
+    }
+
+    /**
+     * Returns the cached payload of a file if the file is still what it was made
+     * from, positioned at its start, or null.
+     */
+    public synchronized ByteBuffer[] get(String path, long size, long lastModified) {
+        Entry entry = entries.get(path);
+        if (entry != null && (entry.size != size || entry.lastModified != lastModified)) {
+            remove(path);
+            invalidations++;
+            entry = null;
+        }
+        if (entry == null) {
+            misses++;
+            return null;
+        }
+        hits++;
+        ByteBuffer[] payload = new ByteBuffer[entry.payload.length];
+        for (int i = 0; i < payload.length; i++) {
+            payload[i] = entry.payload[i].duplicate();
+        }
+        return payload;
+    }
+
+    /**
+     * Caches the payload of a file of the given size and modification time,
+     * evicting the least recently used files to make room. A payload bigger than
+     * {@link #getMaxEntrySize()} is not cached.
+     */
+    public synchronized void put(String path, long size, long lastModified, ByteBuffer[] payload) {
+        Entry entry = new Entry(size, lastModified, payload);
+        if (entry.length > getMaxEntrySize()) {
+            return;
+        }
+        remove(path);
+        entries.put(path, entry);
+        bytes += entry.length;
+
+        Iterator<Map.Entry<String, Entry>> eldest = entries.entrySet().iterator();
+        while (bytes > maxBytes && eldest.hasNext()) {
+            bytes -= eldest.next().getValue().length;
+            eldest.remove();
+            evictions++;
+        }
+    }
+
+    /**
+     * Drops the payload of a file the server has just written.
+     */
+    public synchronized void invalidate(String path) {
+        if (remove(path)) {
+            invalidations++;
+        }
+    }
+
+    private boolean remove(String path) {
+        Entry entry = entries.remove(path);
+        if (entry == null) {
+            return false;
+        }
+        bytes -= entry.length;
+        return true;
+    }
+
+    public synchronized long getBytes() {
+        return bytes;
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    public synchronized long getInvalidations() {
+        return invalidations;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("%d files, %d bytes, hits=%d misses=%d evictions=%d invalidations=%d", entries.size(),
+                bytes, hits, misses, evictions, invalidations);
+    }
+
+    private static class Entry {
+        private final long size;
+        private final long lastModified;
+        private final ByteBuffer[] payload;
+        private final long length;
+
+        Entry(long size, long lastModified, ByteBuffer[] payload) {
+            this.size = size;
+            this.lastModified = lastModified;
+            this.payload = new ByteBuffer[payload.length];
+            long length = 0;
+            for (int i = 0; i < payload.length; i++) {
+                this.payload[i] = payload[i].asReadOnlyBuffer();
+                length += payload[i].remaining();
+            }
+            this.length = length;
+        }
+    }
+}
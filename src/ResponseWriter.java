@@ -0,0 +1,198 @@
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * ResponseWriter encodes a response straight into UTF-8 bytes, without building
+ * intermediate Strings, and keeps track of its length as it goes, so that a
+ * Content-Length never takes a second pass over the body.
+ * <p>
+ * Text is written either as is or as a JSON string, quoted and escaped, into
+ * scratch buffers of at most SCRATCH_SIZE bytes. Buffers can be spliced in
+ * without being copied, and a {@link MessageSource}, such as the content of a
+ * file as a {@link JsonString}, without being read until the response is sent:
+ * the response is handed out as a list of buffers, ready for
+ * {@link ReliableConnection#send(ByteBuffer[], long)}, or as a MessageSource.
+ */
+public class ResponseWriter {
+
+    private static final int INITIAL_CAPACITY = 256;
+    private static final int SCRATCH_SIZE = 64 * 1024;
+    private static final byte[] HEX = "0123456789abcdef".getBytes();
+
+    private final List<ByteBuffer> parts = new ArrayList<>();
+    // What comes before parts, once a MessageSource has been written.
+    private final List<MessageSource> sources = new ArrayList<>();
+    private ByteBuffer current = ByteBuffer.allocate(INITIAL_CAPACITY);
+    private long length;
+
+    /**
+     * Writes text as is.
+     */
+    public ResponseWriter write(String text) {
+        for (int i = 0; i < text.length(); i++) {
+            i = putChar(text, i);
+        }
+        return this;
+    }
+
+    public ResponseWriter write(long number) {
+        return write(Long.toString(number));
+    }
+
+    /**
+     * Writes text as a JSON string, in quotes and with the characters JSON does not
+     * allow in a string escaped.
+     */
+    public ResponseWriter writeString(String text) {
+        put((byte) '"');
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c == '"' || c == '\\' || c < 0x20) {
+                putEscaped(c);
+            } else {
+                i = putChar(text, i);
+            }
+        }
+        put((byte) '"');
+        return this;
+    }
+
+    /**
+     * Splices the remaining bytes of buffers into the response as they are,
+     * without copying them. The buffers must not change until the response is
+     * sent.
+     */
+    public ResponseWriter write(ByteBuffer... content) {
+        flush();
+        for (ByteBuffer buffer : content) {
+            parts.add(buffer);
+            length += buffer.remaining();
+        }
+        return this;
+    }
+
+    /**
+     * Splices a message into the response, to be read as the response is sent.
+     * The response can then only be handed out by {@link #toSource()}.
+     */
+    public ResponseWriter write(MessageSource content) {
+        flush();
+        if (!parts.isEmpty()) {
+            sources.add(MessageSource.of(parts.toArray(new ByteBuffer[0])));
+            parts.clear();
+        }
+        sources.add(content);
+        length += content.length();
+        return this;
+    }
+
+    /**
+     * Returns the number of bytes written so far.
+     */
+    public long length() {
+        return length + current.position();
+    }
+
+    /**
+     * Returns the response written so far, in order.
+     */
+    public ByteBuffer[] toBuffers() {
+        if (!sources.isEmpty()) {
+            throw new IllegalStateException("The response holds a MessageSource");
+        }
+        flush();
+        return parts.toArray(new ByteBuffer[0]);
+    }
+
+    /**
+     * Returns the response written so far, in order.
+     */
+    public MessageSource toSource() {
+        flush();
+        List<MessageSource> response = new ArrayList<>(sources);
+        response.add(MessageSource.of(parts.toArray(new ByteBuffer[0])));
+        return MessageSource.concat(response.toArray(new MessageSource[0]));
+    }
+
+    /**
+     * Encodes the character at index, or the surrogate pair starting there, as
+     * UTF-8.
+     *
+     * @return the index of the last character consumed
+     */
+    private int putChar(String text, int index) {
+        char c = text.charAt(index);
+        if (c < 0x80) {
+            put((byte) c);
+        } else if (c < 0x800) {
+            put((byte) (0xc0 | c >> 6));
+            put((byte) (0x80 | c & 0x3f));
+        } else if (Character.isHighSurrogate(c) && index + 1 < text.length()
+                && Character.isLowSurrogate(text.charAt(index + 1))) {
+            int codePoint = Character.toCodePoint(c, text.charAt(++index));
+            put((byte) (0xf0 | codePoint >> 18));
+            put((byte) (0x80 | codePoint >> 12 & 0x3f));
+            put((byte) (0x80 | codePoint >> 6 & 0x3f));
+            put((byte) (0x80 | codePoint & 0x3f));
+        } else if (Character.isSurrogate(c)) {
+            put((byte) '?');
+        } else {
+            put((byte) (0xe0 | c >> 12));
+            put((byte) (0x80 | c >> 6 & 0x3f));
+            put((byte) (0x80 | c & 0x3f));
+        }
+        return index;
+    }
+
+    private void putEscaped(char c) {
+        put((byte) '\\');
+        switch (c) {
+            case '"':
+            case '\\':
+                put((byte) c);
+                break;
+            case '\n':
+                put((byte) 'n');
+                break;
+            case '\r':
+                put((byte) 'r');
+                break;
+            case '\t':
+                put((byte) 't');
+                break;
+            default:
+                put((byte) 'u');
+                put((byte) '0');
+                put((byte) '0');
+                put(HEX[c >> 4]);
+                put(HEX[c & 0xf]);
+                break;
+        }
+    }
+
+    private void put(byte b) {
+        if (!current.hasRemaining() && current.capacity() >= SCRATCH_SIZE) {
+            flush();
+            current = ByteBuffer.allocate(SCRATCH_SIZE);
+        } else if (!current.hasRemaining()) {
+            ByteBuffer grown = ByteBuffer.allocate(Math.min(SCRATCH_SIZE, current.capacity() * 2));
+            current.flip();
+            grown.put(current);
+            current = grown;
+        }
+        current.put(b);
+    }
+
+    /**
+     * Closes the text written since the last part as a part of its own.
+     */
+    private void flush() {
+        if (current.position() > 0) {
+            current.flip();
+            parts.add(current);
+            length += current.remaining();
+            current = ByteBuffer.allocate(INITIAL_CAPACITY);
+        }
+    }
+}
@@ -0,0 +1,481 @@
+import static java.nio.channels.SelectionKey.OP_READ;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.Selector;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Router is a pure Java replacement for router.exe that can run in the same JVM
+ * as {@link Client} and {@link Server}. Like router.exe it forwards every packet
+ * to the peer named in its header and rewrites the peer fields to the sender, so
+ * the receiver can answer through the router.
+ * <p>
+ * On the way it emulates a network link per direction (sender to receiver):
+ * seeded random drops, a fixed delay plus uniform jitter, reordering (a packet
+ * held back by an extra delay), duplication, a bandwidth cap, a queue limit
+ * past which packets are tail-dropped and an MTU above which packets are
+ * dropped. Every direction keeps its own
+ * {@link Stats}. With the same seed and the same input the router makes the same
+ * decisions, which makes loss and delay scenarios reproducible.
+ */
+public class Router implements Closeable {
+
+    private final int port;
+    private final double dropRate;
+    private final long delayNanos;
+    private final long jitterNanos;
+    private final double reorderRate;
+    private final long reorderDelayNanos;
+    private final double duplicateRate;
+    private final long bandwidth;
+    private final int queueLimit;
+    private final int mtu;
+    private final Random random;
+
+    private final Map<String, Link> links = new LinkedHashMap<>();
+    private final PriorityQueue<Delivery> deliveries = new PriorityQueue<>();
+    private long deliveryCount;
+    private DatagramChannel channel;
+    private Selector selector;
+    private Thread thread;
+    private volatile boolean running;
+
+    private Router(Builder builder) {
+        this.port = builder.port;
+        this.dropRate = builder.dropRate;
+        this.delayNanos = TimeUnit.MILLISECONDS.toNanos(builder.delay);
+        this.jitterNanos = TimeUnit.MILLISECONDS.toNanos(builder.jitter);
+        this.reorderRate = builder.reorderRate;
+        this.reorderDelayNanos = TimeUnit.MILLISECONDS.toNanos(builder.reorderDelay);
+        this.duplicateRate = builder.duplicateRate;
+        this.bandwidth = builder.bandwidth;
+        this.queueLimit = builder.queueLimit;
+        this.mtu = builder.mtu;
+        this.random = new Random(builder.seed);
+    }
+
+    /**
+     * Runs a standalone router. Accepts the router.exe options --port, --drop-rate,
+     * --max-delay and --seed, plus --delay, --reorder-rate, --reorder-delay,
+     * --duplicate-rate, --bandwidth (bytes per second), --queue-limit (packets) and
+     * --mtu (bytes).
+     * Delays are in milliseconds, with an optional "ms" suffix.
+     */
+    public static void main(String[] args) throws Exception {
+        Builder builder = new Builder();
+        for (String arg : args) {
+            String[] kv = arg.split("=", 2);
+            String value = kv.length > 1 ? kv[1] : "";
+            switch (kv[0]) {
+                case "--port":
+                    builder.setPort(Integer.parseInt(value));
+                    break;
+                case "--drop-rate":
+                    builder.setDropRate(Double.parseDouble(value));
+                    break;
+                case "--max-delay":
+                    builder.setJitter(parseMillis(value));
+                    break;
+                case "--delay":
+                    builder.setDelay(parseMillis(value));
+                    break;
+                case "--seed":
+                    builder.setSeed(Long.parseLong(value));
+                    break;
+                case "--reorder-rate":
+                    builder.setReorderRate(Double.parseDouble(value));
+                    break;
+                case "--reorder-delay":
+                    builder.setReorderDelay(parseMillis(value));
+                    break;
+                case "--duplicate-rate":
+                    builder.setDuplicateRate(Double.parseDouble(value));
+                    break;
+                case "--bandwidth":
+                    builder.setBandwidth(Long.parseLong(value));
+                    break;
+                case "--queue-limit":
+                    builder.setQueueLimit(Integer.parseInt(value));
+                    break;
+                case "--mtu":
+                    builder.setMtu(Integer.parseInt(value));
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option " + arg);
+            }
+        }
+
+        Router router = builder.create();
+        router.start();
+        System.out.println("Router is running at port " + router.getPort());
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> System.out.println(router.getStats())));
+        router.thread.join();
+    }
+
+    private static long parseMillis(String value) {
+        return Long.parseLong(value.endsWith("ms") ? value.substring(0, value.length() - 2) : value);
+    }
+
+    /**
+     * Binds the router's port and starts forwarding on a background thread.
+     */
+    public void start() throws IOException {
+        channel = DatagramChannel.open();
+        channel.bind(new InetSocketAddress(port));
+        channel.configureBlocking(false);
+        selector = Selector.open();
+        channel.register(selector, OP_READ);
+        running = true;
+        thread = new Thread(() -> {
+            try {
+                run();
+            } catch (IOException e) {
+                if (running) {
+                    e.printStackTrace();
+                }
+            }
+        }, "router");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Returns the port the router listens on, useful when it was created with port
+     * 0.
+     */
+    public int getPort() {
+        try {
+            return ((InetSocketAddress) channel.getLocalAddress()).getPort();
+        } catch (IOException e) {
+            return port;
+        }
+    }
+
+    /**
+     * Returns the statistics of every direction seen so far, keyed by
+     * "sender -> receiver".
+     */
+    public synchronized Map<String, Stats> getStats() {
+        Map<String, Stats> stats = new LinkedHashMap<>();
+        for (Map.Entry<String, Link> e : links.entrySet()) {
+            stats.put(e.getKey(), e.getValue().stats);
+        }
+        return stats;
+    }
+
+    @Override
+    public void close() throws IOException {
+        running = false;
+        if (selector != null) {
+            selector.wakeup();
+        }
+        if (thread != null) {
+            try {
+                thread.join(1000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (selector != null) {
+            selector.close();
+        }
+        if (channel != null) {
+            channel.close();
+        }
+    }
+
+    private void run() throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(64 * 1024);
+        while (running) {
+            Delivery next = deliveries.peek();
+            long waitNanos = next == null ? 0 : next.time - System.nanoTime();
+            if (next == null) {
+                selector.select();
+            } else if (waitNanos > 0) {
+                selector.select(Math.max(1, TimeUnit.NANOSECONDS.toMillis(waitNanos)));
+            } else {
+                selector.selectNow();
+            }
+            selector.selectedKeys().clear();
+
+            for (; ; ) {
+                buf.clear();
+                InetSocketAddress from = (InetSocketAddress) channel.receive(buf);
+                if (from == null) {
+                    break;
+                }
+                buf.flip();
+                route(from, buf);
+            }
+
+            long now = System.nanoTime();
+            while ((next = deliveries.peek()) != null && next.time <= now) {
+                deliveries.poll();
+                next.link.queued--;
+                channel.send(ByteBuffer.wrap(next.data), next.to);
+                next.link.stats.forwarded.incrementAndGet();
+            }
+        }
+    }
+
+    private void route(InetSocketAddress from, ByteBuffer buf) throws IOException {
+        if (buf.limit() < Packet.MIN_LEN) {
+            return;
+        }
+        PacketView view = new PacketView().wrap(buf);
+        InetSocketAddress to = new InetSocketAddress(view.getPeerAddress(), view.getPeerPort());
+
+        // The receiver sees the sender as its peer.
+        buf.putInt(PacketView.ADDRESS_OFFSET, PacketView.toBits(from.getAddress()));
+        buf.putShort(PacketView.PORT_OFFSET, (short) from.getPort());
+        byte[] data = Arrays.copyOf(buf.array(), buf.limit());
+
+        Link link = link(from, to);
+        link.stats.received.incrementAndGet();
+        link.stats.bytes.addAndGet(data.length);
+
+        if (mtu > 0 && data.length > mtu) {
+            link.stats.oversized.incrementAndGet();
+            return;
+        }
+        if (random.nextDouble() < dropRate) {
+            link.stats.dropped.incrementAndGet();
+            return;
+        }
+        schedule(link, to, data);
+        if (random.nextDouble() < duplicateRate) {
+            link.stats.duplicated.incrementAndGet();
+            schedule(link, to, data);
+        }
+    }
+
+    private void schedule(Link link, InetSocketAddress to, byte[] data) {
+        if (queueLimit > 0 && link.queued >= queueLimit) {
+            link.stats.queueDropped.incrementAndGet();
+            return;
+        }
+        long now = System.nanoTime();
+
+        // Serialization on a capped link: packets leave one after the other.
+        long departure = now;
+        if (bandwidth > 0) {
+            departure = Math.max(now, link.busyUntil) + data.length * TimeUnit.SECONDS.toNanos(1) / bandwidth;
+            link.busyUntil = departure;
+        }
+
+        long time = departure + delayNanos;
+        if (jitterNanos > 0) {
+            time += (long) (random.nextDouble() * jitterNanos);
+        }
+        if (random.nextDouble() < reorderRate) {
+            link.stats.reordered.incrementAndGet();
+            time += reorderDelayNanos;
+        }
+
+        link.queued++;
+        deliveries.add(new Delivery(time, deliveryCount++, link, to, data));
+    }
+
+    private synchronized Link link(InetSocketAddress from, InetSocketAddress to) {
+        String key = from.getAddress().getHostAddress() + ":" + from.getPort() + " -> "
+                + to.getAddress().getHostAddress() + ":" + to.getPort();
+        Link link = links.get(key);
+        if (link == null) {
+            link = new Link();
+            links.put(key, link);
+        }
+        return link;
+    }
+
+    /**
+     * Counters for one direction of traffic through the router.
+     */
+    public static class Stats {
+        private final AtomicLong received = new AtomicLong();
+        private final AtomicLong forwarded = new AtomicLong();
+        private final AtomicLong dropped = new AtomicLong();
+        private final AtomicLong queueDropped = new AtomicLong();
+        private final AtomicLong oversized = new AtomicLong();
+        private final AtomicLong duplicated = new AtomicLong();
+        private final AtomicLong reordered = new AtomicLong();
+        private final AtomicLong bytes = new AtomicLong();
+
+        public long getReceived() {
+            return received.get();
+        }
+
+        public long getForwarded() {
+            return forwarded.get();
+        }
+
+        public long getDropped() {
+            return dropped.get();
+        }
+
+        public long getQueueDropped() {
+            return queueDropped.get();
+        }
+
+        public long getOversized() {
+            return oversized.get();
+        }
+
+        public long getDuplicated() {
+            return duplicated.get();
+        }
+
+        public long getReordered() {
+            return reordered.get();
+        }
+
+        public long getBytes() {
+            return bytes.get();
+        }
+
+        @Override
+        public String toString() {
+            return String.format("received=%d forwarded=%d dropped=%d queueDropped=%d oversized=%d duplicated=%d "
+                            + "reordered=%d bytes=%d", getReceived(), getForwarded(), getDropped(), getQueueDropped(),
+                    getOversized(), getDuplicated(), getReordered(), getBytes());
+        }
+    }
+
+    /**
+     * One direction of traffic: its queue and statistics.
+     */
+    private static class Link {
+        private final Stats stats = new Stats();
+        private int queued;
+        private long busyUntil;
+    }
+
+    /**
+     * A packet waiting for its delivery time.
+     */
+    private static class Delivery implements Comparable<Delivery> {
+        private final long time;
+        private final long order;
+        private final Link link;
+        private final InetSocketAddress to;
+        private final byte[] data;
+
+        Delivery(long time, long order, Link link, InetSocketAddress to, byte[] data) {
+            this.time = time;
+            this.order = order;
+            this.link = link;
+            this.to = to;
+            this.data = data;
+        }
+
+        @Override
+        public int compareTo(Delivery o) {
+            int c = Long.compare(time, o.time);
+            return c != 0 ? c : Long.compare(order, o.order);
+        }
+    }
+
+    public static class Builder {
+        private int port = 3333;
+        private double dropRate;
+        private long delay;
+        private long jitter;
+        private double reorderRate;
+        private long reorderDelay = 10;
+        private double duplicateRate;
+        private long bandwidth;
+        private int queueLimit;
+        private int mtu;
+        private long seed = System.nanoTime();
+
+        public Builder setPort(int port) {
+            this.port = port;
+            return this;
+        }
+
+        public Builder setDropRate(double dropRate) {
+            this.dropRate = dropRate;
+            return this;
+        }
+
+        /**
+         * Sets the fixed one-way delay in milliseconds.
+         */
+        public Builder setDelay(long delay) {
+            this.delay = delay;
+            return this;
+        }
+
+        /**
+         * Sets the maximum random delay in milliseconds added on top of the fixed
+         * delay (router.exe's --max-delay).
+         */
+        public Builder setJitter(long jitter) {
+            this.jitter = jitter;
+            return this;
+        }
+
+        public Builder setReorderRate(double reorderRate) {
+            this.reorderRate = reorderRate;
+            return this;
+        }
+
+        /**
+         * Sets how long in milliseconds a reordered packet is held back.
+         */
+        public Builder setReorderDelay(long reorderDelay) {
+            this.reorderDelay = reorderDelay;
+            return this;
+        }
+
+        public Builder setDuplicateRate(double duplicateRate) {
+            this.duplicateRate = duplicateRate;
+            return this;
+        }
+
+        /**
+         * Sets the link bandwidth in bytes per second per direction, 0 for
+         * unlimited.
+         */
+        public Builder setBandwidth(long bandwidth) {
+            this.bandwidth = bandwidth;
+            return this;
+        }
+
+        /**
+         * Sets how many packets may wait in one direction before new ones are
+         * dropped, 0 for unlimited.
+         */
+        public Builder setQueueLimit(int queueLimit) {
+            this.queueLimit = queueLimit;
+            return this;
+        }
+
+        /**
+         * Sets the largest packet the link carries, in bytes; larger ones are
+         * dropped. 0 for any size.
+         */
+        public Builder setMtu(int mtu) {
+            this.mtu = mtu;
+            return this;
+        }
+
+        public Builder setSeed(long seed) {
+            this.seed = seed;
+            return this;
+        }
+
+        public Router create() {
+            return new Router(this);
+        }
+    }
+}
@@ -0,0 +1,57 @@
+/**
+ * RttEstimator keeps the smoothed round-trip time and its variation with the
+ * Jacobson/Karels algorithm and derives the retransmission timeout from them
+ * (RFC 6298). Samples must come from packets that were never retransmitted
+ * (Karn's algorithm), and every timeout doubles the RTO until a fresh sample
+ * arrives.
+ */
+public class RttEstimator {
+
+    public static final long INITIAL_RTO = 1000;
+    public static final long MIN_RTO = 10;
+    public static final long MAX_RTO = 60000;
+
+    private static final double ALPHA = 1.0 / 8;
+    private static final double BETA = 1.0 / 4;
+
+    private double srtt = -1;
+    private double rttvar;
+    private long rto = INITIAL_RTO;
+
+    /**
+     * Adds a round-trip time measurement in milliseconds.
+     */
+    public void sample(long rtt) {
+        if (srtt < 0) {
+            srtt = rtt;
+            rttvar = rtt / 2.0;
+        } else {
+            rttvar = (1 - BETA) * rttvar + BETA * Math.abs(srtt - rtt);
+            srtt = (1 - ALPHA) * srtt + ALPHA * rtt;
+        }
+        rto = clamp((long) Math.ceil(srtt + Math.max(1, 4 * rttvar)));
+    }
+
+    /**
+     * Doubles the timeout after a retransmission timer expired.
+     */
+    public void backoff() {
+        rto = clamp(rto * 2);
+    }
+
+    public long getTimeout() {
+        return rto;
+    }
+
+    /**
+     * Returns the smoothed round-trip time, or the current timeout before the first
+     * sample.
+     */
+    public long getSmoothedRtt() {
+        return srtt < 0 ? rto : (long) srtt;
+    }
+
+    private static long clamp(long value) {
+        return Math.max(MIN_RTO, Math.min(MAX_RTO, value));
+    }
+}
@@ -0,0 +1,49 @@
+import java.nio.ByteBuffer;
+
+/**
+ * Segmenter splits a message of any size into fragments that each fit in the
+ * payload of a single DATA {@link Packet}. Every fragment starts with a fragment
+ * header:
+ * <pre>
+ *   message id (4 bytes) | fragment index (4 bytes) | fragment count (4 bytes) | data
+ * </pre>
+ * which lets a {@link Reassembler} on the other side put the message back
+ * together. Fragments are written straight into the outgoing packet buffer, so the
+ * message is never copied into intermediate arrays, see {@link MessageSource}.
+ */
+public class Segmenter {
+
+    public static final int HEADER_LEN = 12;
+    public static final int MAX_FRAGMENT_DATA = Packet.MAX_PAYLOAD_LEN - HEADER_LEN;
+
+    private Segmenter() {
+    }
+
+    /**
+     * Returns the number of fragments of at most maxData bytes a message of the
+     * given length needs. An empty message still takes one (empty) fragment so that
+     * it is delivered.
+     */
+    public static int fragmentCount(long messageLength, int maxData) {
+        long count = Math.max(1, (messageLength + maxData - 1) / maxData);
+        if (count > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Message too long: " + messageLength);
+        }
+        return (int) count;
+    }
+
+    /**
+     * Writes fragment index of a message into buf at its current position. The
+     * fragment holds the next maxData bytes of the message, or what is left of it.
+     */
+    public static void writeFragment(ByteBuffer buf, int messageId, int index, int count, MessageSource message,
+                                     int maxData) {
+        buf.putInt(messageId);
+        buf.putInt(index);
+        buf.putInt(count);
+        int limit = buf.limit();
+        buf.limit(Math.min(limit, buf.position() + maxData));
+        message.read(buf);
+        buf.limit(limit);
+    }
+}
@@ -0,0 +1,130 @@
+import java.util.Arrays;
+
+/**
+ * SequenceWindow holds one element per sequence number for a window of
+ * consecutive sequence numbers, in a ring indexed by the low bits of the
+ * sequence number with a bitmap of the slots in use. Lookups, insertions and
+ * removals are O(1) and allocate nothing, and the sequence numbers held can be
+ * walked in order a bitmap word at a time.
+ * <p>
+ * As only the low bits are used, the ring is indifferent to the 32-bit sequence
+ * field of a {@link Packet} wrapping around. The caller must keep every sequence
+ * number it holds within {@link #capacity()} of each other, and only look up
+ * sequence numbers within that range.
+ * <p>
+ * A SequenceWindow is not thread-safe.
+ */
+public class SequenceWindow<T> {
+
+    private final Object[] slots;
+    private final long[] occupied;
+    private final int mask;
+    private int size;
+
+    /**
+     * @param window the largest span of sequence numbers to hold at once
+     */
+    public SequenceWindow(int window) {
+        int capacity = Math.max(Long.SIZE, Integer.highestOneBit(Math.max(1, window - 1)) << 1);
+        this.slots = new Object[capacity];
+        this.occupied = new long[capacity / Long.SIZE];
+        this.mask = capacity - 1;
+    }
+
+    public int capacity() {
+        return slots.length;
+    }
+
+    /**
+     * Returns the ring slot of a sequence number, from 0 to capacity() - 1, for
+     * callers that keep state of their own per slot.
+     */
+    public int slot(long sequenceNumber) {
+        return (int) sequenceNumber & mask;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public boolean contains(long sequenceNumber) {
+        int index = (int) sequenceNumber & mask;
+        return (occupied[index >>> 6] & (1L << index)) != 0;
+    }
+
+    @SuppressWarnings("unchecked")
+    public T get(long sequenceNumber) {
+        return (T) slots[(int) sequenceNumber & mask];
+    }
+
+    /**
+     * Holds an element for a sequence number, replacing any element held for it.
+     */
+    public void put(long sequenceNumber, T element) {
+        int index = (int) sequenceNumber & mask;
+        if (slots[index] == null) {
+            occupied[index >>> 6] |= 1L << index;
+            size++;
+        }
+        slots[index] = element;
+    }
+
+    /**
+     * Removes the element of a sequence number and returns it, or null if none
+     * was held.
+     */
+    @SuppressWarnings("unchecked")
+    public T remove(long sequenceNumber) {
+        int index = (int) sequenceNumber & mask;
+        Object element = slots[index];
+        if (element != null) {
+            slots[index] = null;
+            occupied[index >>> 6] &= ~(1L << index);
+            size--;
+        }
+        return (T) element;
+    }
+
+    /**
+     * Returns the first sequence number in [from, end) that is held, or end if
+     * there is none.
+     */
+    public long next(long from, long end) {
+        return scan(from, end, 0);
+    }
+
+    /**
+     * Returns the first sequence number in [from, end) that is not held, or end if
+     * there is none.
+     */
+    public long nextMissing(long from, long end) {
+        return scan(from, end, -1L);
+    }
+
+    public void clear() {
+        Arrays.fill(slots, null);
+        Arrays.fill(occupied, 0);
+        size = 0;
+    }
+
+    /**
+     * Returns the first sequence number in [from, end) whose bit differs from
+     * skip's, or end.
+     */
+    private long scan(long from, long end, long skip) {
+        long sequenceNumber = from;
+        while (sequenceNumber < end) {
+            int index = (int) sequenceNumber & mask;
+            long word = (occupied[index >>> 6] ^ skip) >>> index;
+            if (word != 0) {
+                return Math.min(end, sequenceNumber + Long.numberOfTrailingZeros(word));
+            }
+            sequenceNumber += Long.SIZE - (index & 63);
+        }
+        return end;
+    }
+}
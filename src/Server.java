@@ -3,24 +3,88 @@ import static java.nio.charset.StandardCharsets.UTF_8;
 import java.io.*;
 import java.net.*;
 import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
 import java.nio.channels.DatagramChannel;
+import java.nio.channels.FileChannel;
+import java.lang.management.ManagementFactory;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Formatter;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
+import java.util.logging.StreamHandler;
+import javax.management.JMException;
+import javax.management.ObjectName;
 
 /**
  * This class contains the implementation of UDP Server.
  */
 public class Server {
 
-    private static int statusCode = 200;
-    ;
+    private static final Logger log = Logger.getLogger(Server.class.getName());
+
+    // -v logs every connection and request (FINE); -log sets any other level.
     static boolean debugFlag = false;
+    static Level logLevel = Level.INFO;
+    // How often the metrics are logged, 0 for never; they are always available over JMX.
+    static long metricsInterval = 0;
     static String dir = System.getProperty("user.dir");
-    static List<String> filelist = new ArrayList<>();
 
     static File currentFolder;
-    static int timeout = 3000;
+    // Every file under dir, kept current as the directory changes.
+    static FileIndex fileIndex;
+    // "data" of hot files for GET, escaped once and spliced into responses, bounded by this many bytes.
+    static long cacheSize = Runtime.getRuntime().maxMemory() / 8;
+    static ResponseCache responseCache;
     static int port = 8080;
+    // The address reported as "origin" in responses, looked up once.
+    static String origin;
+    static String congestionControl = "reno";
+    // Agree to 64-bit sequence numbers when a client offers them.
+    static boolean extendedSequenceNumbers = false;
+    // Compress responses to clients that offer compression, such as "deflate:6" or "lz"; null to decline.
+    static Compression compression = null;
+    // Send a REPAIR packet per this many DATA packets to clients that offer it, 0 to decline; "-fec auto" adapts it.
+    static int repairBlock = 0;
+    static boolean adaptiveRepair = false;
+    // Accept packets of up to this many bytes and offer to send them to clients, if the path carries them.
+    static int maxPacketLength = Packet.MAX_LEN;
+    // Agree to a stream per request when a client offers it, and answer each request on its own stream.
+    static boolean streams = false;
+    // A client sending a request, such as an upload chunk, longer than this many bytes is dropped.
+    static long maxRequestLength = 64L * 1024 * 1024;
+    static int workerThreads = Runtime.getRuntime().availableProcessors() * 2;
+    static int workerQueueSize = 1024;
+    // Kernel buffers of the socket, large enough to absorb bursts from many connections between two wakeups.
+    static int socketBufferSize = 4 * 1024 * 1024;
+    // Connections without any packet from the client for this long are closed.
+    static long idleTimeout = 5 * 60 * 1000;
+    // Files are mapped for GET in chunks of this size, as a single mapping cannot exceed 2 GB.
+    private static final long MAPPING_SIZE = 1L << 30;
+
+    // Connection state is owned by the event loop thread; workers only see the
+    // request and hand their response back as a task for the loop.
+    private final ConnectionTable<ServerConnection> connections = new ConnectionTable<>();
+    private final ExecutorService workers = new ThreadPoolExecutor(workerThreads, workerThreads, 0L,
+            TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(workerQueueSize));
+    private final BufferPool pool = new BufferPool(maxPacketLength,
+            (int) ((long) BufferPool.DEFAULT_MAX_POOLED * Packet.MAX_LEN / maxPacketLength), debugFlag);
+    private final PacketView packet = new PacketView();
+    private final Metrics metrics = new Metrics();
+    // Connections that received packets in the current batch.
+    private final List<ServerConnection> touched = new ArrayList<>();
+    // The "files" array of GET /, rendered once per version of the file index.
+    private volatile Listing listing;
+    private EventLoop loop;
+    private EventLoop.Endpoint endpoint;
 
 
     public static void main(String[] args) throws Exception {
@@ -40,25 +104,64 @@ public class Server {
 
         if (requestList.contains("-v")) {
             debugFlag = true;
+            logLevel = Level.FINE;
         }
 
+        if (requestList.contains("-log"))
+            logLevel = Level.parse(requestList.get(requestList.indexOf("-log") + 1).trim().toUpperCase());
+
+        if (requestList.contains("-metrics"))
+            metricsInterval = Long.parseLong(requestList.get(requestList.indexOf("-metrics") + 1).trim()) * 1000;
+
         if (requestList.contains("-p")) {
             String portStr = requestList.get(requestList.indexOf("-p") + 1).trim();
             port = Integer.parseInt(portStr);
         }
 
+        if (requestList.contains("-cc"))
+            congestionControl = requestList.get(requestList.indexOf("-cc") + 1).trim();
+
+        if (requestList.contains("-seq64"))
+            extendedSequenceNumbers = true;
+
+        if (requestList.contains("-compress"))
+            compression = Compression.parse(requestList.get(requestList.indexOf("-compress") + 1).trim());
+
+        if (requestList.contains("-fec")) {
+            String fec = requestList.get(requestList.indexOf("-fec") + 1).trim();
+            adaptiveRepair = fec.equals("auto");
+            repairBlock = adaptiveRepair ? ReliableConnection.DEFAULT_REPAIR_BLOCK : Integer.parseInt(fec);
+        }
+
+        if (requestList.contains("-mtu"))
+            maxPacketLength = Integer.parseInt(requestList.get(requestList.indexOf("-mtu") + 1).trim());
+
+        if (requestList.contains("-streams"))
+            streams = true;
+
         if (requestList.contains("-d"))
             dir = request.substring(request.indexOf("-d") + 3);
 
         System.out.println("\nCurrent Working Directory : " + dir + "");
+        configureLogging(logLevel);
 
+        log.fine(() -> "Server is now running at port " + port);
 
-        if (debugFlag)
-            System.out.println("Server is now running at port " + port);
+        try {
+            origin = InetAddress.getLocalHost().getHostAddress();
+        } catch (UnknownHostException e) {
+            origin = InetAddress.getLoopbackAddress().getHostAddress();
+        }
 
         currentFolder = new File(dir);
+        fileIndex = new FileIndex(currentFolder.toPath());
+        fileIndex.start();
+        responseCache = new ResponseCache(cacheSize);
+        log.fine(() -> "Indexed " + fileIndex.size() + " files and directories");
 
         Server server = new Server();
+        register("ReliableUDP:type=Transport", TransportMetrics.GLOBAL);
+        register("ReliableUDP:type=Server", server.metrics);
 
         Runnable task = () -> {
             try {
@@ -73,171 +176,499 @@ public class Server {
     }
 
     /**
-     * This method will extract payload from client request
+     * This method will send the log to stdout, one plain line per record, from the given level up
+     */
+    private static void configureLogging(Level level) {
+        Logger root = Logger.getLogger("");
+        for (Handler handler : root.getHandlers())
+            root.removeHandler(handler);
+        Handler console = new StreamHandler(System.out, new Formatter() {
+            @Override
+            public String format(LogRecord record) {
+                StringWriter line = new StringWriter();
+                line.write(formatMessage(record));
+                line.write(System.lineSeparator());
+                if (record.getThrown() != null)
+                    record.getThrown().printStackTrace(new PrintWriter(line));
+                return line.toString();
+            }
+        }) {
+            @Override
+            public synchronized void publish(LogRecord record) {
+                super.publish(record);
+                flush();
+            }
+
+            @Override
+            public synchronized void close() {
+                // System.out outlives the log.
+                flush();
+            }
+        };
+        console.setLevel(level);
+        root.addHandler(console);
+        root.setLevel(level);
+    }
+
+    /**
+     * This method will make an MBean available over JMX; metrics are best effort, so a failure is only logged
+     */
+    private static void register(String name, Object mbean) {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(mbean, new ObjectName(name));
+        } catch (JMException e) {
+            log.warning("Cannot register " + name + " : " + e);
+        }
+    }
+
+    private static void unregister(String name) {
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(new ObjectName(name));
+        } catch (JMException e) {
+            log.warning("Cannot unregister " + name + " : " + e);
+        }
+    }
+
+    private static String mbeanName(ServerConnection connection) {
+        return "ReliableUDP:type=Connection,peer=" + ObjectName.quote(connection.getTransport().getMetrics().getPeer());
+    }
+
+    /**
+     * This method will run the event loop: packets from the router are handed to the reliable connection of the
+     * client they belong to, and every complete message is dispatched. Requests are processed by the worker pool;
+     * their responses come back as tasks for the loop and are sent from its thread, which owns all connection state.
+     * Every connection has a timer for its retransmissions and idle timeout.
      */
     private void listenAndServe(int port) throws Exception {
-        try (DatagramChannel channel = DatagramChannel.open()) {
+        try (DatagramChannel channel = DatagramChannel.open(); EventLoop loop = new EventLoop(pool)) {
             channel.bind(new InetSocketAddress(port));  //will open datagram channel that will receive packets on port 8080
-            Packet response;
-            ByteBuffer buf = ByteBuffer.allocate(Packet.MAX_LEN).order(ByteOrder.BIG_ENDIAN);
-
-            for (; ; ) {
-                buf.clear();
-                SocketAddress router = channel.receive(buf); //The receive() method will copy the content of a received packet of data into the given Buffer.
-                if (router != null) {
-                    // Parse a packet from the received raw data.
-                    buf.flip();
-                    Packet packet = Packet.fromBuffer(buf);
-                    buf.flip();
-
-                    String requestPayload = new String(packet.getPayload(), UTF_8);
-                    // Send the response to the router not the client.
-                    // The peer address of the packet is the address of the client already.
-                    // We can use toBuilder to copy properties of the current packet.
-                    // This demonstrates how to create a new packet from an existing packet.
-
-                    if (requestPayload.equals("Hi S")) {
-                        System.out.println("Client: " + requestPayload);
-                        response = packet.toBuilder().setPayload("Hi C".getBytes()).create();
-                        channel.send(response.toBuffer(), router);
-                        System.out.println("Sending Hi from Server");
-                    } else if (requestPayload.contains("httpfs") || requestPayload.contains("httpc")) {
-                        System.out.println("Client: " + requestPayload);
-                        String responsePayload = processPayloadRequest(requestPayload);
-                        if (responsePayload.getBytes().length > Packet.MAX_LEN)
-                            response = packet.toBuilder().setPayload("Data size exceeds allowed limit".getBytes()).create();
-                        else
-                            response = packet.toBuilder().setPayload(responsePayload.getBytes()).create();
-                        channel.send(response.toBuffer(), router);
-
-                    } else if (requestPayload.equals("Received")) {
-                        System.out.println("Client: " + requestPayload + "\nSending Close");
-                        response = packet.toBuilder().setPayload("Close".getBytes()).create();
-                        channel.send(response.toBuffer(), router);
-
-                    } else if (requestPayload.equals("Ok")) {
-                        System.out.println("Client: " + requestPayload);
-                        System.out.println(requestPayload + " received..!");
+            channel.setOption(StandardSocketOptions.SO_RCVBUF, socketBufferSize);
+            channel.setOption(StandardSocketOptions.SO_SNDBUF, socketBufferSize);
+            this.loop = loop;
+            this.endpoint = loop.register(channel, new EventLoop.Handler() {
+                @Override
+                public void onDatagram(ByteBuffer datagram, SocketAddress router, long now) {
+                    receive(datagram, router, now);
+                }
 
-                    }
+                @Override
+                public void onBatchEnd(long now) {
+                    serveBatch(now);
                 }
+            });
+
+            if (metricsInterval > 0) {
+                EventLoop.Timer[] dump = new EventLoop.Timer[1];
+                dump[0] = loop.newTimer(now -> {
+                    log.info("Transport: " + TransportMetrics.GLOBAL);
+                    log.info("Server: " + metrics);
+                    dump[0].schedule(now + metricsInterval);
+                });
+                dump[0].schedule(System.currentTimeMillis() + metricsInterval);
+            }
+
+            for (; ; ) {
+                loop.runOnce(Long.MAX_VALUE);
             }
         }
 
     }
 
     /**
-     * This method proccesses the payload request from the client's input and will return the response body.
-     *
-     * @param request client's request
-     * @return response body
+     * This method will hand a packet to the connection of the client it comes from, opening a connection for a SYN
      */
-    private String processPayloadRequest(String request) throws Exception {
+    private void receive(ByteBuffer buf, SocketAddress router, long now) {
+        // Read the packet header in place from the received raw data.
+        if (!PacketView.isValid(buf)) {
+            log.fine(() -> "Dropping invalid packet from " + router);
+            pool.release(buf);
+            return;
+        }
+        packet.wrap(buf);
+
+        // Send the response to the router not the client.
+        // The peer address of the packet is the address of the client already.
+        ServerConnection connection = connections.get(packet.getPeerAddressBits(), packet.getPeerPort());
+        if (packet.getType() == Packet.SYN && connection != null
+                && connection.getTransport().getPeerInitialSequenceNumber() != packet.getSequenceNumber()) {
+            // The client reused its port for a new connection.
+            drop(connection);
+            connection = null;
+        }
+        if (connection == null) {
+            if (packet.getType() != Packet.SYN) {
+                pool.release(buf);
+                return;
+            }
+            connection = new ServerConnection(new ReliableConnection(packet.getPeerAddress(),
+                    packet.getPeerPort(), datagram -> endpoint.send(datagram, router), pool,
+                    ReliableConnection.DEFAULT_WINDOW_SIZE, CongestionControl.create(congestionControl)));
+            ServerConnection opened = connection;
+            connection.setTimer(loop.newTimer(time -> onTimeout(opened, time)));
+            connection.getTransport().setExtendedSequenceNumbers(extendedSequenceNumbers);
+            connection.getTransport().setCompression(compression);
+            connection.getTransport().setRepair(repairBlock, adaptiveRepair);
+            connection.getTransport().setMaxPacketLength(maxPacketLength);
+            connection.getTransport().setStreams(streams);
+            connection.getTransport().setMaxMessageLength(maxRequestLength);
+            connection.getTransport().listen();
+            connections.put(connection.getPeerAddressBits(), connection.getPeerPort(), connection);
+            register(mbeanName(connection), connection.getTransport().getMetrics());
+            log.fine(() -> "Connection from " + opened);
+        }
+        connection.setLastActivity(now);
+        if (!connection.isTouched()) {
+            connection.setTouched(true);
+            touched.add(connection);
+        }
+        try {
+            connection.getTransport().onPacket(buf, now);
+        } catch (IOException | RuntimeException e) {
+            fail(connection, e);
+        }
+    }
 
-        String url = "";
-        String response = "";
-        String verboseBody = "";
-        boolean verbose = false;
-        boolean overwrite = !request.contains("-overwrite=false");
+    /**
+     * This method will acknowledge the packets of a batch, connection by connection, and serve the requests they
+     * completed
+     */
+    private void serveBatch(long now) {
+        for (ServerConnection connection : touched) {
+            connection.setTouched(false);
+            if (!isOpen(connection))
+                continue;
+            try {
+                connection.getTransport().flush();
+                serveRequests(connection, now);
+                reschedule(connection);
+            } catch (IOException | RuntimeException e) {
+                fail(connection, e);
+            }
+        }
+        touched.clear();
+    }
 
-        List<String> requestData = Arrays.asList(request.split(" "));
+    /**
+     * This method will send the response a worker computed on the stream of its request, then go on with the next
+     * request of that stream
+     */
+    private void complete(ServerConnection connection, int stream, MessageSource response) {
+        if (!isOpen(connection))
+            return;
+        long now = System.currentTimeMillis();
+        connection.setDone(stream);
+        try {
+            connection.getTransport().send(stream, response, now);
+            serveRequests(connection, now);
+            reschedule(connection);
+        } catch (IOException | RuntimeException e) {
+            fail(connection, e);
+        }
+    }
 
-        if (debugFlag)
-            System.out.println("Server is processing Payload Request");
+    /**
+     * This method will run when the timer of a connection expires: it retransmits what is due, ends the connection
+     * once it is closed and closes it when the client has been idle for too long
+     */
+    private void onTimeout(ServerConnection connection, long now) {
+        ReliableConnection transport = connection.getTransport();
+        try {
+            transport.onTimer(now);
+            if (isIdle(connection, now)) {
+                log.fine("Closing idle connection " + connection);
+                transport.shutdown(now);
+            }
+            reschedule(connection);
+        } catch (IOException | RuntimeException e) {
+            fail(connection, e);
+        }
+    }
 
+    private boolean isIdle(ServerConnection connection, long now) {
+        return now - connection.getLastActivity() >= idleTimeout && !connection.isBusy()
+                && connection.getTransport().getState() == ReliableConnection.State.ESTABLISHED;
+    }
 
-        for (String d : requestData) {
-            if (d.startsWith("http://"))
-                url = d;
+    /**
+     * This method will set the timer of a connection to its next retransmission or, if it is waiting for the client,
+     * its idle timeout. A connection that has closed is dropped instead.
+     */
+    private void reschedule(ServerConnection connection) {
+        if (connection.getTransport().getState() == ReliableConnection.State.CLOSED) {
+            drop(connection);
+            return;
         }
+        long next = connection.getTransport().nextTimeout();
+        if (!connection.isBusy() && connection.getTransport().getState() == ReliableConnection.State.ESTABLISHED)
+            next = Math.min(next, connection.getLastActivity() + idleTimeout);
+        connection.getTimer().schedule(next);
+    }
 
-        if (url.contains(" ")) {
-            url = url.split(" ")[0];
+    private boolean isOpen(ServerConnection connection) {
+        return connections.get(connection.getPeerAddressBits(), connection.getPeerPort()) == connection;
+    }
+
+    /**
+     * This method will hand the requests the connection has delivered to the workers, one per stream at a time and
+     * in order within a stream, so that requests on different streams are processed concurrently. Once the client
+     * has closed its side and every request is answered, the server closes too.
+     */
+    private void serveRequests(ServerConnection connection, long now) throws IOException {
+        ReliableConnection transport = connection.getTransport();
+        MessagePart message;
+        while ((message = transport.pollMessage(now)) != null) {
+            connection.addRequest(message.getStream(), message.getData());
         }
 
-        URI uri = new URI(url);
+        while ((message = connection.takeRequest()) != null) {
+            submit(connection, message.getStream(), message.getData());
+        }
 
-        String host = uri.getHost();
+        if (!connection.isBusy() && !connection.hasRequests()
+                && transport.getState() == ReliableConnection.State.CLOSE_WAIT) {
+            log.fine(() -> "Client closed the connection, closing " + connection);
+            transport.shutdown(now);
+        }
+    }
 
+    /**
+     * This method will hand a request to the worker pool, which also decompresses it and compresses the response.
+     * The response is handed back to the event loop, which is woken up to send it.
+     */
+    private void submit(ServerConnection connection, int stream, ByteBuffer message) throws IOException {
+        long submitted = System.nanoTime();
+        try {
+            workers.execute(() -> {
+                Runnable completion = () -> fail(connection, new IOException("Request could not be handled"));
+                try {
+                    ByteBuffer frame = decode(connection, message);
+                    int requestId = RequestFrame.requestId(frame);
+                    MessageSource response;
+                    try {
+                        response = handleFrame(connection, requestId, frame, submitted);
+                    } catch (Exception e) {
+                        log.log(Level.FINE, "Request " + requestId + " failed", e);
+                        response = errorResponse(requestId, frame, 400, "BAD REQUEST", e.toString());
+                    }
+                    MessageSource result = encode(connection, response);
+                    completion = () -> complete(connection, stream, result);
+                } catch (IOException | RuntimeException e) {
+                    completion = () -> fail(connection, e);
+                } finally {
+                    // Whatever happened, the loop hears back, so that the connection is never left busy.
+                    loop.execute(completion);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            ByteBuffer frame = decode(connection, message);
+            int requestId = RequestFrame.requestId(frame);
+            MessageSource response = encode(connection, errorResponse(requestId, frame, 503, "SERVER BUSY", ""));
+            loop.execute(() -> complete(connection, stream, response));
+        }
+    }
 
-        if (requestData.contains("-v"))
-            verbose = true;
+    /**
+     * This method will return the request frame a message of the connection holds, decompressed if the client
+     * agreed to compression
+     */
+    private static ByteBuffer decode(ServerConnection connection, ByteBuffer message) throws IOException {
+        return connection.getTransport().getCompression() == null ? message : Compression.decode(message);
+    }
 
+    /**
+     * This method will compress a response if the client agreed to compression, below the threshold it only marks
+     * it as uncompressed
+     */
+    private static MessageSource encode(ServerConnection connection, MessageSource response) {
+        Compression compression = connection.getTransport().getCompression();
+        return compression == null ? response : compression.encode(response);
+    }
 
-        String body = "{\n";
-        body = body + "\t\"args\":";
-        body = body + "{},\n";
-        body = body + "\t\"headers\": {";
+    /**
+     * This method will drop a connection that failed, and only that one: an I/O error is the client's doing, anything
+     * else is a bug worth its stack trace
+     */
+    private void fail(ServerConnection connection, Exception e) {
+        if (!isOpen(connection))
+            return;
+        if (e instanceof IOException)
+            log.warning(e.getMessage() + ", dropping connection");
+        else
+            log.log(Level.SEVERE, "Unexpected error on " + connection + ", dropping connection", e);
+        drop(connection);
+    }
 
+    /**
+     * This method will handle one frame of a connection on a worker: a request, or a chunk of the upload the
+     * connection has in progress. The time from submitted, in System.nanoTime, to the response counts as the latency
+     * of the request.
+     *
+     * @return the response frame
+     */
+    private MessageSource handleFrame(ServerConnection connection, int requestId, ByteBuffer frame, long submitted)
+            throws Exception {
+        int type = RequestFrame.type(frame);
+        if (type == RequestFrame.REQUEST || type == RequestFrame.HTTP) {
+            Request request = type == RequestFrame.HTTP ? Request.decodeHttp(RequestFrame.bodyBuffer(frame))
+                    : Request.decode(RequestFrame.bodyBuffer(frame));
+            log.fine(() -> "Client: " + request);
+            if (!request.isStreamed()) {
+                MessageSource response = RequestFrame.encode(requestId, type, processPayloadRequest(request, null));
+                metrics.onRequest(request, submitted);
+                return response;
+            }
 
-        for (int i = 0; i < requestData.size(); i++) {
-            if (requestData.get(i).equals("-h")) {
+            // The body follows in chunks: start writing it and tell the client where to start.
+            Upload upload = startUpload(requestId, request);
+            if (connection.getUpload() != null)
+                connection.getUpload().close();
+            connection.setUpload(upload);
+            log.fine(() -> "Receiving upload at offset " + upload.getOffset());
+            String continued = request.isHttp() ? "HTTP/1.1 100 Continue\r\nOffset: " + upload.getOffset() + "\r\n\r\n"
+                    : "HTTP/1.1 100 CONTINUE\nOffset: " + upload.getOffset() + "\n";
+            return MessageSource.of(RequestFrame.encode(requestId, type, ByteBuffer.wrap(continued.getBytes())));
+        }
 
-                String t1 = requestData.get(i + 1).split(":")[0];
-                String t2 = requestData.get(i + 1).split(":")[1];
-                body = body + "\n\t\t\"" + t1 + "\": \"" + t2 + "\",";
+        Upload upload = connection.getUpload();
+        if (upload == null || upload.getRequestId() != requestId) {
+            throw new IOException("No upload in progress for request " + requestId);
+        }
+        try {
+            upload.write(RequestFrame.chunkOffset(frame), RequestFrame.chunkData(frame));
+            if (type == RequestFrame.CHUNK) {
+                return MessageSource.of(RequestFrame.encodeChunk(requestId, RequestFrame.CHUNK, upload.getOffset()));
             }
+            connection.setUpload(null);
+            Request request = upload.getRequest();
+            MessageSource response = RequestFrame.encode(requestId,
+                    request.isHttp() ? RequestFrame.HTTP : RequestFrame.REQUEST, processPayloadRequest(request, upload));
+            metrics.onRequest(request, submitted);
+            return response;
+        } catch (IOException e) {
+            connection.setUpload(null);
+            upload.close();
+            throw e;
         }
+    }
 
+    /**
+     * This method will open the part file of a POST whose body is streamed in chunks, resuming an interrupted
+     * upload of it if there is one
+     */
+    private Upload startUpload(int requestId, Request request) throws IOException {
+        if (request.getMethod() != Request.POST)
+            throw new IOException("Only a POST takes a body");
+        return new Upload(requestId, request, new File(dir + "/" + fileName(request)));
+    }
 
-        body = body + "\n\t\t\"Connection\": \"close\",\n";
-        body = body + "\t\t\"Host\": \"" + host + "\"\n";
+    /**
+     * This method will return the response frame for a request that could not be handled, in the protocol of the
+     * request
+     */
+    private static MessageSource errorResponse(int requestId, ByteBuffer frame, int statusCode, String reason,
+                                              String detail) {
+        if (frame.remaining() >= RequestFrame.HEADER_LEN && RequestFrame.type(frame) == RequestFrame.HTTP) {
+            ResponseWriter response = new ResponseWriter();
+            response.write("HTTP/1.1 ").write(statusCode).write(" ").write(reason).write("\r\n");
+            response.write("Content-Type: text/plain\r\n");
+            response.write("Content-Length: ").write(detail.getBytes(UTF_8).length).write("\r\n");
+            response.write("Connection: keep-alive\r\n\r\n").write(detail);
+            return MessageSource.of(RequestFrame.encode(requestId, RequestFrame.HTTP, response.toBuffers()));
+        }
+        String response = "HTTP/1.1 " + statusCode + " " + reason + "\n" + (detail.isEmpty() ? "" : detail + "\n");
+        return MessageSource.of(RequestFrame.encode(requestId, ByteBuffer.wrap(response.getBytes(UTF_8))));
+    }
 
+    /**
+     * This method will return the file a request is about, relative to dir: its path without the leading /get/ or
+     * /post/
+     */
+    private static String fileName(Request request) {
+        String path = request.getPath();
+        String prefix = request.getMethod() == Request.POST ? "/post/" : "/get/";
+        return path.startsWith(prefix) ? path.substring(prefix.length()) : path.substring(path.startsWith("/") ? 1 : 0);
+    }
 
-        body = body + "\t},\n";
+    /**
+     * This method will forget a connection and release its buffers
+     */
+    private void drop(ServerConnection connection) {
+        connections.remove(connection.getPeerAddressBits(), connection.getPeerPort());
+        connection.getTimer().cancel();
+        unregister(mbeanName(connection));
+        log.fine(() -> "Connection ended " + connection);
+        connection.getTransport().close();
+        Upload upload = connection.getUpload();
+        if (upload != null) {
+            connection.setUpload(null);
+            try {
+                upload.close();
+            } catch (IOException e) {
+                log.fine("Error while closing upload : " + e);
+            }
+        }
+    }
 
-        // GET or POST
-        String requestType;
+    /**
+     * This method proccesses the payload request from the client's input and will return the response body. The
+     * response is encoded by a ResponseWriter as it is built; the content of a requested file is spliced in as the
+     * JSON string the response cache holds, or for a file too big to cache, as a JsonString escaped a packet at a
+     * time from the memory-mapped file as the response is sent.
+     *
+     * @param request client's request, decoded
+     * @param upload  the streamed body of a POST, complete on disk, or null if the body is in the request
+     * @return response body
+     */
+    private MessageSource processPayloadRequest(Request request, Upload upload) throws Exception {
 
-        if (url.endsWith("get/"))
-            requestType = "GetFilesList";
-        else if (url.contains("get"))
-            requestType = "GetFileContent";
-        else
-            requestType = "POST";
+        String url = request.getUrl();
+        boolean overwrite = request.isOverwrite();
+        // Per request, so that concurrent requests never see each other's results.
+        int statusCode = 200;
 
+        log.fine("Server is processing Payload Request");
 
-        //Get list of files in the current directory
-        switch (requestType) {
-            case "GetFilesList": {
 
-//            parentDirectory = currentFolder;
-                filelist = new ArrayList<>();
-                body = body + "\t\"files\": { ";
-                List<String> files = getFilesFromDir(currentFolder, filelist);
+        ResponseWriter body = new ResponseWriter();
+        body.write("{\n\t\"args\":{},\n\t\"headers\": {");
 
-                //Can use files directly
-                List<String> fileFilterList = new ArrayList<String>(files);
 
-                for (int i = 0; i < fileFilterList.size() - 1; i++) {
-                    body = body + files.get(i) + " ,\n\t\t\t    ";
-                }
+        for (Map.Entry<String, String> header : request.getHeaders().entrySet()) {
+            if (!header.getKey().equals("Host"))
+                body.write("\n\t\t").writeString(header.getKey()).write(": ").writeString(header.getValue()).write(",");
+        }
 
-                body = body + fileFilterList.get(fileFilterList.size() - 1) + " },\n";
-                statusCode = 200;
 
-                break;
-            }
+        body.write("\n\t\t\"Connection\": \"keep-alive\",\n");
+        body.write("\t\t\"Host\": ").writeString(request.getHost()).write("\n");
 
 
-            // Get file content of the requested file
-            case "GetFileContent": {
-                String fileContent = "";
+        body.write("\t},\n");
 
-                String requestedFile;
-                requestedFile = url.substring(url.indexOf("get/") + 4);
+        String requestedFile = fileName(request);
 
-                List<String> files = getFilesFromDir(currentFolder, filelist);
-                System.out.println("Final file list:" + files);
+        switch (request.getMethod()) {
+            //Get list of files in the current directory, or the content of the requested file
+            case Request.GET: {
 
+                if (requestedFile.isEmpty()) {
+                    for (ByteBuffer part : listing()) {
+                        body.write(part.duplicate());
+                    }
+                    statusCode = 200;
+                    break;
+                }
 
-                if (!files.contains(requestedFile)) {
+                FileIndex.Entry entry = fileIndex.get(requestedFile);
+                if (entry == null || entry.isDirectory()) {
                     statusCode = 404;
                 } else {
-
-                    File file = new File(dir + "/" + requestedFile);
-                    fileContent = readDataFromFile(file);
-                    body = body + "\t\"data\": \"" + fileContent + "\",\n";
+                    MessageSource data = readData(requestedFile, entry);
+                    if (data == null) {
+                        body.write("\t\"data\": \"Unable to read the file\",\n");
+                    } else {
+                        body.write("\t\"data\": ").write(data).write(",\n");
+                    }
 
                     statusCode = 200;
                 }
@@ -247,164 +678,310 @@ public class Server {
             }
 
             // Post request
-            case "POST": {
+            case Request.POST: {
 
-                String requestedFile;
-                String data = "";
+                if (requestedFile.isEmpty())
+                    throw new IOException("No file to post to");
 
-                requestedFile = url.substring(url.indexOf("post/") + 5);
-                List<String> files = getFilesFromDir(currentFolder, filelist);
+                File file = new File(dir + "/" + requestedFile);
 
+                if (upload != null) {
+                    statusCode = upload.isNewFile() ? 202 : 201;
+                    upload.complete();
+                    fileIndex.update(file.toPath());
+                    responseCache.invalidate(requestedFile);
+                    break;
+                }
 
-                if (!files.contains(requestedFile))
+                if (fileIndex.get(requestedFile) == null)
                     statusCode = 202;
                 else
                     statusCode = 201;
 
-                int index = requestData.indexOf("-d");
 
-                for (int i = index + 1; i < requestData.size(); i++) {
-                    //System.out.println(data + " data is this");
-                    if (!requestData.get(i).equals("-overwrite=false"))
-                        data = data + requestData.get(i) + " ";
-                }
-
-
-                File file = new File(dir + "/" + requestedFile);
-                writeResponseToFile(file, data, overwrite);
+                writeResponseToFile(file, request.getBody(), overwrite);
+                fileIndex.update(file.toPath());
+                responseCache.invalidate(requestedFile);
 
                 break;
             }
         }
 
-        if (statusCode == 200) {
-            body = body + "\t\"status\": \"" + "HTTP/1.1 200 OK" + "\",\n";
-        } else if (statusCode == 201) {
+        String reason = "OK";
+        if (statusCode == 201) {
             if (overwrite)
-                body = body + "\t\"status\": \"" + "HTTP/1.1 201 FILE WAS OVER-WRITTEN" + "\",\n";
+                reason = "FILE WAS OVER-WRITTEN";
             else
-                body = body + "\t\"status\": \"" + "HTTP/1.1 201 FILE WAS NOT OVER-WRITTEN" + "\",\n";
+                reason = "FILE WAS NOT OVER-WRITTEN";
         } else if (statusCode == 202) {
-            body = body + "\t\"status\": \"" + "HTTP/1.1 202 NEW FILE CREATED" + "\",\n";
+            reason = "NEW FILE CREATED";
         } else if (statusCode == 404) {
-            body = body + "\t\"status\": \"" + "HTTP/1.1 404 FILE NOT FOUND" + "\",\n";
+            reason = "FILE NOT FOUND";
         }
-
-
-        body = body + "\t\"origin\": \"" + InetAddress.getLocalHost().getHostAddress() + "\",\n";
-        body = body + "\t\"url\": \"" + url + "\"\n";
-        body = body + "}\n";
-
-
-        if (verbose) {
-            verboseBody = verboseBody + "HTTP/1.1 200 OK\n";
-            verboseBody = verboseBody + "Date: " + java.util.Calendar.getInstance().getTime() + "\n";
-            verboseBody = verboseBody + "Content-Type: application/json\n";
-            verboseBody = verboseBody + "Content-Length: " + body.length() + "\n";
-            verboseBody = verboseBody + "Connection: close\n";
-            verboseBody = verboseBody + "Server: Localhost\n";
-            verboseBody = verboseBody + "Access-Control-Allow-Origin: *\n";
-            verboseBody = verboseBody + "Access-Control-Allow-Credentials: true\n";
-
-            response = verboseBody;
-            response = response + body;
-        } else {
-            response = body;
+        String status = "HTTP/1.1 " + statusCode + " " + reason;
+        body.write("\t\"status\": ").writeString(status).write(",\n");
+
+
+        body.write("\t\"origin\": ").writeString(origin).write(",\n");
+        body.write("\t\"url\": ").writeString(url).write("\n");
+        body.write("}\n");
+
+
+        ResponseWriter response = body;
+        if (request.isVerbose()) {
+            // An HTTP/1.1 response proper ends its lines with CRLF and its head with an empty line.
+            String newLine = request.isHttp() ? "\r\n" : "\n";
+            response = new ResponseWriter();
+            response.write(status).write(newLine);
+            response.write("Date: ").write(new Date().toString()).write(newLine);
+            response.write("Content-Type: application/json").write(newLine);
+            response.write("Content-Length: ").write(body.length()).write(newLine);
+            response.write("Connection: keep-alive").write(newLine);
+            response.write("Server: Localhost").write(newLine);
+            response.write("Access-Control-Allow-Origin: *").write(newLine);
+            response.write("Access-Control-Allow-Credentials: true").write(newLine);
+            if (request.isHttp())
+                response.write(newLine);
+            response.write(body.toSource());
         }
 
 
-        if (debugFlag) {
-            System.out.println("Sending response to Client..");
-
+        if (statusCode != 404)
+            metrics.onServed(request.getPath(), response.length());
+        if (log.isLoggable(Level.FINE)) {
+            log.fine("Sending response to Client..");
+            log.fine(url);
+            log.fine("response size:" + response.length());
+            log.fine("Response cache: " + responseCache);
         }
 
-        System.out.println(url);
-        System.out.println("response size:" + response.getBytes().length);
-        System.out.println("response:" + response);
-        return response;
+        return response.toSource();
     }
 
     /**
-     * This method will give list of files from specific directory
+     * This method will return the "data" of a GET, the content of a file as a JSON string: from the response cache if
+     * it holds the file as it is now, splice-only, otherwise read from disk and escaped once into the cache or, for
+     * files too big to cache, memory-mapped and escaped as it is sent
      *
-     * @return List of files
+     * @return the JSON string, or null if the file cannot be read
      */
-    static private List<String> getFilesFromDir(File currentDir, List<String> filelist) {
+    static private MessageSource readData(String path, FileIndex.Entry entry) throws IOException {
+        ByteBuffer[] cached = responseCache.get(path, entry.getSize(), entry.getLastModified());
+        if (cached != null)
+            return MessageSource.of(cached);
 
-        if (currentDir == null) {
+        File file = new File(dir + "/" + path);
+        if (!file.canRead())
             return null;
-        }
-
-        for (File file : Objects.requireNonNull(currentDir.listFiles())) {
-            if (!file.isDirectory()) {
-                if (!Arrays.asList(Objects.requireNonNull(currentFolder.listFiles())).contains(file)) {
-                    file.setExecutable(false);
-                    file.setReadable(false);
-                    file.setWritable(false);
-                }
-                if (!filelist.contains(file.getName()))
-                    filelist.add(file.getName());
-            } else {
-                if (!filelist.contains(file.getName()))
-                    filelist.add(file.getName());
+        if (entry.getSize() > responseCache.getMaxEntrySize())
+            return new JsonString(mapFile(file));
 
-                //System.out.println("dir is recusive" + filelist);
-                getFilesFromDir(file, filelist);
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer content = ByteBuffer.allocate((int) entry.getSize());
+            while (content.hasRemaining() && channel.read(content) >= 0) {
+                // Until the buffer is full, or the file turns out shorter than indexed.
             }
-            //to list the files and the subdirectories, but the packet size is an issue!!!
-            // filelist.add(file.getName());
+            content.flip();
+            ByteBuffer[] data = JsonString.encode(content);
+            responseCache.put(path, entry.getSize(), entry.getLastModified(), data);
+            return MessageSource.of(data);
         }
-        return filelist;
     }
 
+    /**
+     * This method will map a file into memory, in chunks of at most MAPPING_SIZE bytes, so that it can be sent
+     * straight from the page cache without ever being read onto the heap
+     *
+     * @return the chunks of the file, in order
+     */
+    static private ByteBuffer[] mapFile(File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long size = channel.size();
+            ByteBuffer[] chunks = new ByteBuffer[(int) ((size + MAPPING_SIZE - 1) / MAPPING_SIZE)];
+            for (int i = 0; i < chunks.length; i++) {
+                long position = i * MAPPING_SIZE;
+                chunks[i] = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(MAPPING_SIZE, size - position));
+            }
+            return chunks;
+        }
+    }
 
-    static public void writeResponseToFile(File fileName, String data, boolean flagOverwrite) {
+    static public void writeResponseToFile(File fileName, ByteBuffer data, boolean flagOverwrite) {
         try {
-            BufferedWriter bufferedWriter;
+            FileChannel channel;
 
             if (flagOverwrite) {
-                System.out.println("Over writing is set to true");
-                bufferedWriter = new BufferedWriter(new FileWriter(fileName));
+                log.fine("Over writing is set to true");
+                channel = FileChannel.open(fileName.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                        StandardOpenOption.TRUNCATE_EXISTING);
             } else {
-                System.out.println("Appending the data");
-                bufferedWriter = new BufferedWriter(new FileWriter(fileName, true));
+                log.fine("Appending the data");
+                channel = FileChannel.open(fileName.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                        StandardOpenOption.APPEND);
             }
-            bufferedWriter.write(data);
-            bufferedWriter.close();
+            while (data.hasRemaining())
+                channel.write(data);
+            channel.close();
 
-            if (debugFlag)
-                System.out.println("Response successfully saved to " + fileName);
+            log.fine(() -> "Response successfully saved to " + fileName);
 
         } catch (IOException ex) {
-            if (debugFlag)
-                System.out.println("Error while writing to file : '" + fileName + "'" + ex);
+            log.warning("Error while writing to file : '" + fileName + "'" + ex);
         }
     }
 
+    /**
+     * This method will return the "files" array of the directory listing, rendered again only when the file index
+     * changed since the last time
+     */
+    private ByteBuffer[] listing() {
+        long version = fileIndex.getVersion();
+        Listing cached = listing;
+        if (cached != null && cached.version == version) {
+            return cached.rendered;
+        }
+        ResponseWriter writer = new ResponseWriter();
+        writer.write("\t\"files\": [");
+        String separator = " ";
+        for (String name : fileIndex.list()) {
+            writer.write(separator).writeString(name);
+            separator = ",\n\t\t\t    ";
+        }
+        writer.write(" ],\n");
+        ByteBuffer[] rendered = writer.toBuffers();
+        listing = new Listing(version, rendered);
+        return rendered;
+    }
 
-    static public String readDataFromFile(File fileName) {
-        StringBuilder lines = new StringBuilder("");
-        String line = null;
+    private static class Listing {
+        private final long version;
+        private final ByteBuffer[] rendered;
 
-        try {
+        Listing(long version, ByteBuffer[] rendered) {
+            this.version = version;
+            this.rendered = rendered;
+        }
+    }
 
-            if (!fileName.canRead()) {
-                lines.append("Unable to read the file");
+    /**
+     * The server's metrics: request latency by method, bytes served by path, and the state of its connections, cache
+     * and socket. Requests are counted by the workers; the rest is read as it is when asked for.
+     */
+    private class Metrics implements ServerMetricsMXBean {
+        // Paths beyond this many are counted together, so that requests for ever new paths cannot grow the table.
+        private static final int MAX_TRACKED_PATHS = 1024;
+        private static final String OTHER_PATHS = "(other)";
+
+        private final LatencyHistogram getLatency = new LatencyHistogram();
+        private final LatencyHistogram postLatency = new LatencyHistogram();
+        private final Map<String, LongAdder> bytesServed = new ConcurrentHashMap<>();
+
+        void onRequest(Request request, long submitted) {
+            long micros = (System.nanoTime() - submitted) / 1000;
+            (request.getMethod() == Request.POST ? postLatency : getLatency).record(micros);
+        }
 
-            } else {
-                BufferedReader bufferedReader = new BufferedReader(new FileReader(fileName));
+        void onServed(String path, long bytes) {
+            LongAdder served = bytesServed.get(path);
+            if (served == null)
+                served = bytesServed.computeIfAbsent(bytesServed.size() < MAX_TRACKED_PATHS ? path : OTHER_PATHS,
+                        key -> new LongAdder());
+            served.add(bytes);
+        }
 
-                while ((line = bufferedReader.readLine()) != null) {
-                    lines.append(line);
+        @Override
+        public int getOpenConnections() {
+            return connections.size();
+        }
 
-                }
-                bufferedReader.close();
-            }
-        } catch (IOException ex) {
-            if (debugFlag)
-                System.out.println("Error reading file : '" + fileName + "'" + ex);
+        @Override
+        public long getGetRequests() {
+            return getLatency.getCount();
+        }
+
+        @Override
+        public double getGetLatencyMeanMicros() {
+            return getLatency.getMean();
+        }
+
+        @Override
+        public long getGetLatencyP50Micros() {
+            return getLatency.getValueAtPercentile(50);
+        }
+
+        @Override
+        public long getGetLatencyP99Micros() {
+            return getLatency.getValueAtPercentile(99);
         }
 
-        return lines.toString();
+        @Override
+        public long getGetLatencyMaxMicros() {
+            return getLatency.getMax();
+        }
+
+        @Override
+        public long getPostRequests() {
+            return postLatency.getCount();
+        }
+
+        @Override
+        public double getPostLatencyMeanMicros() {
+            return postLatency.getMean();
+        }
+
+        @Override
+        public long getPostLatencyP50Micros() {
+            return postLatency.getValueAtPercentile(50);
+        }
+
+        @Override
+        public long getPostLatencyP99Micros() {
+            return postLatency.getValueAtPercentile(99);
+        }
+
+        @Override
+        public long getPostLatencyMaxMicros() {
+            return postLatency.getMax();
+        }
+
+        @Override
+        public Map<String, Long> getBytesServedByPath() {
+            Map<String, Long> snapshot = new TreeMap<>();
+            for (Map.Entry<String, LongAdder> served : bytesServed.entrySet())
+                snapshot.put(served.getKey(), served.getValue().sum());
+            return snapshot;
+        }
+
+        @Override
+        public long getCacheHits() {
+            return responseCache.getHits();
+        }
+
+        @Override
+        public long getCacheMisses() {
+            return responseCache.getMisses();
+        }
+
+        @Override
+        public long getCacheBytes() {
+            return responseCache.getBytes();
+        }
+
+        @Override
+        public long getSendQueueDrops() {
+            return endpoint == null ? 0 : endpoint.getDropped();
+        }
+
+        @Override
+        public int getBuffersInUse() {
+            return pool.getOutstanding();
+        }
+
+        @Override
+        public String toString() {
+            return "connections=" + getOpenConnections() + " GET[" + getLatency + "] POST[" + postLatency
+                    + "] (latency in us) cache hits=" + getCacheHits() + " misses=" + getCacheMisses()
+                    + " sendQueueDrops=" + getSendQueueDrops() + " served=" + getBytesServedByPath();
+        }
     }
 }
@@ -0,0 +1,156 @@
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * ServerConnection is the server's state for one client: its reliable transport,
+ * which also tracks the connection state, and the requests waiting to be
+ * handled. Connections are persistent: a client may send any number of
+ * requests, pipelined, until it closes the connection or stays idle for too
+ * long. The requests of a stream are handled strictly one at a time and in
+ * order, so a request being processed by a worker holds back the requests behind
+ * it on the same stream, but never those of other streams or other clients.
+ * Without streams, every request is on stream 0.
+ * <p>
+ * Only the server's event loop thread touches a ServerConnection, except for
+ * the upload in progress, which belongs to the worker handling the request of
+ * the upload's stream.
+ */
+public class ServerConnection {
+
+    private final ReliableConnection transport;
+    private final int peerAddressBits;
+    private final int peerPort;
+    // Requests waiting for the one ahead of them on their stream, by stream, in order of arrival.
+    private final Map<Integer, Deque<ByteBuffer>> inboxes = new LinkedHashMap<>();
+    // The streams with a request being processed by a worker.
+    private final Set<Integer> busyStreams = new HashSet<>();
+    private boolean touched;
+    private long lastActivity;
+    private EventLoop.Timer timer;
+    private volatile Upload upload;
+
+    public ServerConnection(ReliableConnection transport) {
+        this.transport = transport;
+        this.peerAddressBits = PacketView.toBits(transport.getPeerAddress());
+        this.peerPort = transport.getPeerPort();
+    }
+
+    public ReliableConnection getTransport() {
+        return transport;
+    }
+
+    public int getPeerAddressBits() {
+        return peerAddressBits;
+    }
+
+    public int getPeerPort() {
+        return peerPort;
+    }
+
+    /**
+     * Returns true while a request of this connection is being processed by a
+     * worker.
+     */
+    public boolean isBusy() {
+        return !busyStreams.isEmpty();
+    }
+
+    /**
+     * Marks the request of a stream as done, so that the next one of the stream may
+     * be taken.
+     */
+    public void setDone(int stream) {
+        busyStreams.remove(stream);
+    }
+
+    /**
+     * Returns true while the connection has packets in the batch the event loop is
+     * handling.
+     */
+    public boolean isTouched() {
+        return touched;
+    }
+
+    public void setTouched(boolean touched) {
+        this.touched = touched;
+    }
+
+    /**
+     * Returns the timer of the connection's retransmissions and idle timeout.
+     */
+    public EventLoop.Timer getTimer() {
+        return timer;
+    }
+
+    public void setTimer(EventLoop.Timer timer) {
+        this.timer = timer;
+    }
+
+    /**
+     * Queues a request frame behind the other requests of its stream.
+     */
+    public void addRequest(int stream, ByteBuffer request) {
+        inboxes.computeIfAbsent(stream, s -> new ArrayDeque<>()).add(request);
+    }
+
+    /**
+     * Returns true if requests are waiting, whether or not their stream is busy.
+     */
+    public boolean hasRequests() {
+        return !inboxes.isEmpty();
+    }
+
+    /**
+     * Takes the next request of a stream that has none being processed and marks
+     * the stream busy, or returns null if there is none.
+     */
+    public MessagePart takeRequest() {
+        Iterator<Map.Entry<Integer, Deque<ByteBuffer>>> streams = inboxes.entrySet().iterator();
+        while (streams.hasNext()) {
+            Map.Entry<Integer, Deque<ByteBuffer>> inbox = streams.next();
+            if (busyStreams.contains(inbox.getKey())) {
+                continue;
+            }
+            ByteBuffer request = inbox.getValue().poll();
+            if (inbox.getValue().isEmpty()) {
+                streams.remove();
+            }
+            busyStreams.add(inbox.getKey());
+            return new MessagePart(inbox.getKey(), request, true);
+        }
+        return null;
+    }
+
+    /**
+     * Returns when the client last sent a packet.
+     */
+    public long getLastActivity() {
+        return lastActivity;
+    }
+
+    public void setLastActivity(long lastActivity) {
+        this.lastActivity = lastActivity;
+    }
+
+    /**
+     * Returns the POST body being streamed to disk, if any.
+     */
+    public Upload getUpload() {
+        return upload;
+    }
+
+    public void setUpload(Upload upload) {
+        this.upload = upload;
+    }
+
+    @Override
+    public String toString() {
+        return transport.getPeerAddress().getHostAddress() + ":" + peerPort + " " + transport.getState();
+    }
+}
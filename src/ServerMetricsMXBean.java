@@ -0,0 +1,51 @@
+import java.util.Map;
+
+/**
+ * What the server is doing, over JMX: its connections, the requests it served
+ * and how long they took, by method, and the bytes it sent for each path.
+ */
+public interface ServerMetricsMXBean {
+
+    int getOpenConnections();
+
+    long getGetRequests();
+
+    double getGetLatencyMeanMicros();
+
+    long getGetLatencyP50Micros();
+
+    long getGetLatencyP99Micros();
+
+    long getGetLatencyMaxMicros();
+
+    long getPostRequests();
+
+    double getPostLatencyMeanMicros();
+
+    long getPostLatencyP50Micros();
+
+    long getPostLatencyP99Micros();
+
+    long getPostLatencyMaxMicros();
+
+    /**
+     * Response bytes by request path, for the paths that were found.
+     */
+    Map<String, Long> getBytesServedByPath();
+
+    long getCacheHits();
+
+    long getCacheMisses();
+
+    long getCacheBytes();
+
+    /**
+     * Datagrams dropped because the socket's send queue was full.
+     */
+    long getSendQueueDrops();
+
+    /**
+     * Packet buffers taken from the pool and not yet given back.
+     */
+    int getBuffersInUse();
+}
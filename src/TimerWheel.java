@@ -0,0 +1,255 @@
+/**
+ * TimerWheel is a hierarchical hashed timing wheel: timeouts are hashed by
+ * their deadline into LEVELS wheels of SLOTS slots each, the first one tickMillis
+ * per slot and each next one SLOTS times coarser. Scheduling and cancelling are
+ * O(1) and allocate nothing, as timeouts are linked into their slot in place.
+ * As time advances, the slots of the coarser wheels are cascaded into the finer
+ * ones, and the timeouts of each tick fall due together.
+ * <p>
+ * A timeout never falls due before its deadline, rounded up to a tick. Deadlines
+ * too far ahead for the wheels wait in an overflow list until the wheels come
+ * round.
+ * <p>
+ * A TimerWheel is not thread-safe.
+ */
+public class TimerWheel<T extends TimerWheel.Timeout> {
+
+    private static final int SLOT_BITS = 6;
+    private static final int SLOTS = 1 << SLOT_BITS;
+    private static final int SLOT_MASK = SLOTS - 1;
+    private static final int LEVELS = 4;
+    private static final int SPAN_BITS = SLOT_BITS * LEVELS;
+
+    // Buckets past the wheels: timeouts that are due, and timeouts beyond the span
+    // of the wheels.
+    private static final int DUE = LEVELS * SLOTS;
+    private static final int OVERFLOW = DUE + 1;
+
+    private final long tickMillis;
+    private final Timeout[] buckets = new Timeout[OVERFLOW + 1];
+    // One bit per slot that holds timeouts, per wheel.
+    private final long[] occupied = new long[LEVELS];
+    // Every tick up to this one has been handled.
+    private long current;
+    private int pending;
+
+    /**
+     * @param now the time the wheel starts at
+     */
+    public TimerWheel(long tickMillis, long now) {
+        this.tickMillis = tickMillis;
+        this.current = now / tickMillis;
+    }
+
+    /**
+     * Schedules a timeout at deadline, moving it if it is already scheduled.
+     */
+    public void schedule(T timeout, long deadline) {
+        Timeout scheduled = timeout;
+        cancel(timeout);
+        scheduled.deadline = deadline;
+        scheduled.tick = (deadline + tickMillis - 1) / tickMillis;
+        place(scheduled);
+    }
+
+    public void cancel(T timeout) {
+        Timeout scheduled = timeout;
+        if (scheduled.bucket >= 0) {
+            unlink(scheduled);
+        }
+    }
+
+    /**
+     * Moves time forward to now, making every timeout whose deadline has passed
+     * due.
+     */
+    public void advance(long now) {
+        long target = now / tickMillis;
+        if (pending == 0) {
+            current = Math.max(current, target);
+            return;
+        }
+        while (current < target) {
+            long next = nextTick();
+            if (next > target) {
+                current = target;
+                return;
+            }
+            current = next;
+            cascade();
+            int slot = (int) current & SLOT_MASK;
+            for (Timeout timeout = buckets[slot]; timeout != null; timeout = buckets[slot]) {
+                unlink(timeout);
+                link(timeout, DUE);
+            }
+        }
+    }
+
+    /**
+     * Returns the next timeout that is due, taking it off the wheel, or null if
+     * there is none.
+     */
+    @SuppressWarnings("unchecked")
+    public T poll() {
+        Timeout timeout = buckets[DUE];
+        if (timeout != null) {
+            unlink(timeout);
+        }
+        return (T) timeout;
+    }
+
+    /**
+     * Returns a time at or before which the next timeout falls due, so that
+     * advancing then makes progress, or Long.MAX_VALUE if nothing is scheduled.
+     */
+    public long nextDeadline() {
+        if (buckets[DUE] != null) {
+            return current * tickMillis;
+        }
+        long next = nextTick();
+        return next == Long.MAX_VALUE ? next : next * tickMillis;
+    }
+
+    /**
+     * Returns the number of scheduled timeouts, due ones included.
+     */
+    public int size() {
+        int due = 0;
+        for (Timeout timeout = buckets[DUE]; timeout != null; timeout = timeout.next) {
+            due++;
+        }
+        return pending + due;
+    }
+
+    /**
+     * Returns the next tick at which a slot falls due or a coarser slot is cascaded.
+     */
+    private long nextTick() {
+        for (int level = 0; level < LEVELS; level++) {
+            int shift = SLOT_BITS * level;
+            int index = (int) (current >>> shift) & SLOT_MASK;
+            long later = index == SLOT_MASK ? 0 : occupied[level] & (-1L << (index + 1));
+            if (later != 0) {
+                long rotation = current >>> (shift + SLOT_BITS) << (shift + SLOT_BITS);
+                return rotation + ((long) Long.numberOfTrailingZeros(later) << shift);
+            }
+        }
+        if (buckets[OVERFLOW] != null) {
+            return ((current >>> SPAN_BITS) + 1) << SPAN_BITS;
+        }
+        return Long.MAX_VALUE;
+    }
+
+    /**
+     * Redistributes the coarser slots that start at the current tick, coarsest
+     * first.
+     */
+    private void cascade() {
+        if ((current & ((1L << SPAN_BITS) - 1)) == 0) {
+            replace(OVERFLOW);
+        }
+        for (int level = LEVELS - 1; level > 0; level--) {
+            int shift = SLOT_BITS * level;
+            if ((current & ((1L << shift) - 1)) == 0) {
+                replace(level * SLOTS + ((int) (current >>> shift) & SLOT_MASK));
+            }
+        }
+    }
+
+    /**
+     * Places the timeouts of a bucket again. The bucket is emptied first, as
+     * timeouts still beyond the wheels go back to the overflow list.
+     */
+    private void replace(int bucket) {
+        Timeout timeout = buckets[bucket];
+        buckets[bucket] = null;
+        if (bucket < DUE) {
+            occupied[bucket >> SLOT_BITS] &= ~(1L << (bucket & SLOT_MASK));
+        }
+        while (timeout != null) {
+            Timeout next = timeout.next;
+            pending--;
+            place(timeout);
+            timeout = next;
+        }
+    }
+
+    /**
+     * Links a timeout into the finest wheel whose current rotation holds its tick.
+     */
+    private void place(Timeout timeout) {
+        long tick = timeout.tick;
+        if (tick <= current) {
+            link(timeout, DUE);
+            return;
+        }
+        for (int level = 0; level < LEVELS; level++) {
+            int shift = SLOT_BITS * level;
+            if (tick >>> (shift + SLOT_BITS) == current >>> (shift + SLOT_BITS)) {
+                link(timeout, level * SLOTS + ((int) (tick >>> shift) & SLOT_MASK));
+                return;
+            }
+        }
+        link(timeout, OVERFLOW);
+    }
+
+    private void link(Timeout timeout, int bucket) {
+        Timeout head = buckets[bucket];
+        timeout.bucket = bucket;
+        timeout.prev = null;
+        timeout.next = head;
+        if (head != null) {
+            head.prev = timeout;
+        }
+        buckets[bucket] = timeout;
+        if (bucket < DUE) {
+            occupied[bucket >> SLOT_BITS] |= 1L << (bucket & SLOT_MASK);
+        }
+        if (bucket != DUE) {
+            pending++;
+        }
+    }
+
+    private void unlink(Timeout timeout) {
+        int bucket = timeout.bucket;
+        if (timeout.prev != null) {
+            timeout.prev.next = timeout.next;
+        } else {
+            buckets[bucket] = timeout.next;
+        }
+        if (timeout.next != null) {
+            timeout.next.prev = timeout.prev;
+        }
+        if (bucket < DUE && buckets[bucket] == null) {
+            occupied[bucket >> SLOT_BITS] &= ~(1L << (bucket & SLOT_MASK));
+        }
+        if (bucket != DUE) {
+            pending--;
+        }
+        timeout.prev = null;
+        timeout.next = null;
+        timeout.bucket = -1;
+    }
+
+    /**
+     * Something that can be scheduled on a TimerWheel, on one wheel at a time.
+     */
+    public static class Timeout {
+        private Timeout prev;
+        private Timeout next;
+        private int bucket = -1;
+        private long tick;
+        private long deadline;
+
+        public boolean isScheduled() {
+            return bucket >= 0;
+        }
+
+        /**
+         * Returns the deadline the timeout was last scheduled at.
+         */
+        public long getDeadline() {
+            return deadline;
+        }
+    }
+}
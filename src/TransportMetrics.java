@@ -0,0 +1,186 @@
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * TransportMetrics counts the traffic of reliable connections: packets and bytes
+ * each way, retransmissions, duplicates, repairs and round-trip times. Every
+ * connection has its own, which also adds everything it counts to
+ * {@link #GLOBAL}, the totals of the process. Counting costs an uncontended add
+ * per counter and never blocks.
+ * <p>
+ * TransportMetrics is thread-safe.
+ */
+public class TransportMetrics implements TransportMetricsMXBean {
+
+    /**
+     * The totals of every connection of the process.
+     */
+    public static final TransportMetrics GLOBAL = new TransportMetrics(null);
+
+    private final TransportMetrics parent;
+    private final LongAdder packetsSent = new LongAdder();
+    private final LongAdder packetsReceived = new LongAdder();
+    private final LongAdder bytesSent = new LongAdder();
+    private final LongAdder bytesReceived = new LongAdder();
+    private final LongAdder retransmits = new LongAdder();
+    private final LongAdder fastRetransmits = new LongAdder();
+    private final LongAdder timeouts = new LongAdder();
+    private final LongAdder duplicates = new LongAdder();
+    private final LongAdder repairsSent = new LongAdder();
+    private final LongAdder packetsRepaired = new LongAdder();
+    private final LatencyHistogram rtt = new LatencyHistogram();
+
+    /**
+     * @param parent the metrics that also count everything counted here, or null
+     */
+    public TransportMetrics(TransportMetrics parent) {
+        this.parent = parent;
+    }
+
+    public void onPacketSent(int bytes) {
+        packetsSent.increment();
+        bytesSent.add(bytes);
+        if (parent != null) {
+            parent.onPacketSent(bytes);
+        }
+    }
+
+    public void onPacketReceived(int bytes) {
+        packetsReceived.increment();
+        bytesReceived.add(bytes);
+        if (parent != null) {
+            parent.onPacketReceived(bytes);
+        }
+    }
+
+    public void onRetransmit() {
+        retransmits.increment();
+        if (parent != null) {
+            parent.onRetransmit();
+        }
+    }
+
+    public void onFastRetransmit() {
+        fastRetransmits.increment();
+        if (parent != null) {
+            parent.onFastRetransmit();
+        }
+    }
+
+    public void onTimeout() {
+        timeouts.increment();
+        if (parent != null) {
+            parent.onTimeout();
+        }
+    }
+
+    public void onDuplicate() {
+        duplicates.increment();
+        if (parent != null) {
+            parent.onDuplicate();
+        }
+    }
+
+    public void onRepairSent() {
+        repairsSent.increment();
+        if (parent != null) {
+            parent.onRepairSent();
+        }
+    }
+
+    public void onPacketRepaired() {
+        packetsRepaired.increment();
+        if (parent != null) {
+            parent.onPacketRepaired();
+        }
+    }
+
+    public void onRttSample(long millis) {
+        rtt.record(millis);
+        if (parent != null) {
+            parent.onRttSample(millis);
+        }
+    }
+
+    @Override
+    public long getPacketsSent() {
+        return packetsSent.sum();
+    }
+
+    @Override
+    public long getPacketsReceived() {
+        return packetsReceived.sum();
+    }
+
+    @Override
+    public long getBytesSent() {
+        return bytesSent.sum();
+    }
+
+    @Override
+    public long getBytesReceived() {
+        return bytesReceived.sum();
+    }
+
+    @Override
+    public long getRetransmits() {
+        return retransmits.sum();
+    }
+
+    @Override
+    public long getFastRetransmits() {
+        return fastRetransmits.sum();
+    }
+
+    @Override
+    public long getTimeouts() {
+        return timeouts.sum();
+    }
+
+    @Override
+    public long getDuplicates() {
+        return duplicates.sum();
+    }
+
+    @Override
+    public long getRepairsSent() {
+        return repairsSent.sum();
+    }
+
+    @Override
+    public long getPacketsRepaired() {
+        return packetsRepaired.sum();
+    }
+
+    @Override
+    public long getRttSamples() {
+        return rtt.getCount();
+    }
+
+    @Override
+    public double getRttMeanMillis() {
+        return rtt.getMean();
+    }
+
+    @Override
+    public long getRttP50Millis() {
+        return rtt.getValueAtPercentile(50);
+    }
+
+    @Override
+    public long getRttP99Millis() {
+        return rtt.getValueAtPercentile(99);
+    }
+
+    @Override
+    public long getRttMaxMillis() {
+        return rtt.getMax();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("sent=%d/%dB received=%d/%dB retransmits=%d fastRetransmits=%d timeouts=%d "
+                        + "duplicates=%d repairs=%d repaired=%d rtt[%s]", getPacketsSent(), getBytesSent(),
+                getPacketsReceived(), getBytesReceived(), getRetransmits(), getFastRetransmits(), getTimeouts(),
+                getDuplicates(), getRepairsSent(), getPacketsRepaired(), rtt);
+    }
+}
@@ -0,0 +1,53 @@
+/**
+ * The counters of reliable transport traffic, over JMX.
+ */
+public interface TransportMetricsMXBean {
+
+    long getPacketsSent();
+
+    long getPacketsReceived();
+
+    long getBytesSent();
+
+    long getBytesReceived();
+
+    /**
+     * Packets sent again because their retransmission timer expired.
+     */
+    long getRetransmits();
+
+    /**
+     * Packets sent again because the peer reported them missing.
+     */
+    long getFastRetransmits();
+
+    /**
+     * Times the retransmission timer expired, each backing off the timeout.
+     */
+    long getTimeouts();
+
+    /**
+     * DATA packets received that were already received.
+     */
+    long getDuplicates();
+
+    /**
+     * REPAIR packets sent, see {@link ReliableConnection#setRepair}.
+     */
+    long getRepairsSent();
+
+    /**
+     * Lost DATA packets rebuilt from a REPAIR packet rather than retransmitted.
+     */
+    long getPacketsRepaired();
+
+    long getRttSamples();
+
+    double getRttMeanMillis();
+
+    long getRttP50Millis();
+
+    long getRttP99Millis();
+
+    long getRttMaxMillis();
+}
@@ -0,0 +1,155 @@
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static java.nio.file.StandardOpenOption.APPEND;
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+
+/**
+ * Upload is a POST body streamed to disk as its chunks arrive, see
+ * {@link RequestFrame#CHUNK}. The body is written to a part file next to the
+ * target, named after it with {@link #PART_SUFFIX}, so that the target never
+ * holds a partial body: once complete, the part file is renamed over the target,
+ * or appended to it for -overwrite=false.
+ * <p>
+ * The part file outlives a broken connection. Starting the same upload again
+ * resumes it at the part file's size, which the server reports to the client.
+ * The same upload is the one with the same {@link Request#BODY_TAG}, kept in a
+ * tag file next to the part file; any other body starts over from 0.
+ */
+public class Upload implements Closeable {
+
+    public static final String PART_SUFFIX = ".part";
+    public static final String TAG_SUFFIX = PART_SUFFIX + ".tag";
+
+    private final int requestId;
+    private final Request request;
+    private final File target;
+    private final File part;
+    private final File tag;
+    private final boolean overwrite;
+    private final boolean newFile;
+    private final long length;
+    private final FileChannel channel;
+    private long offset;
+
+    public Upload(int requestId, Request request, File target) throws IOException {
+        this.requestId = requestId;
+        this.request = request;
+        this.target = target;
+        this.part = new File(target.getParentFile(), target.getName() + PART_SUFFIX);
+        this.tag = new File(target.getParentFile(), target.getName() + TAG_SUFFIX);
+        this.overwrite = request.isOverwrite();
+        this.newFile = !target.exists();
+        this.length = request.getBodyLength();
+        this.channel = FileChannel.open(part.toPath(), CREATE, WRITE);
+        this.offset = channel.size();
+        String bodyTag = request.getBodyTag();
+        if (offset > length || bodyTag == null || !bodyTag.equals(readTag())) {
+            // Left over from an upload of some other body, or of a body that cannot be told apart.
+            channel.truncate(0);
+            offset = 0;
+            if (bodyTag == null) {
+                Files.deleteIfExists(tag.toPath());
+            } else {
+                Files.write(tag.toPath(), bodyTag.getBytes(UTF_8));
+            }
+        }
+    }
+
+    public int getRequestId() {
+        return requestId;
+    }
+
+    /**
+     * Returns the request that started the upload.
+     */
+    public Request getRequest() {
+        return request;
+    }
+
+    /**
+     * Returns true if the target did not exist when the upload started.
+     */
+    public boolean isNewFile() {
+        return newFile;
+    }
+
+    /**
+     * Returns how many bytes of the body are on disk, where the next chunk must
+     * start.
+     */
+    public long getOffset() {
+        return offset;
+    }
+
+    /**
+     * Writes the next chunk of the body.
+     */
+    public void write(long position, ByteBuffer data) throws IOException {
+        if (position != offset) {
+            throw new IOException("Expected chunk at offset " + offset + ", got " + position);
+        }
+        if (offset + data.remaining() > length) {
+            throw new IOException("Upload longer than its Content-Length of " + length);
+        }
+        while (data.hasRemaining()) {
+            offset += channel.write(data, offset);
+        }
+    }
+
+    /**
+     * Moves the complete body into place: atomically replacing the target, or
+     * appending to it when the target exists and must not be overwritten.
+     */
+    public void complete() throws IOException {
+        if (offset != length) {
+            throw new IOException("Upload incomplete: " + offset + " of " + length + " bytes");
+        }
+        channel.force(true);
+        channel.close();
+
+        if (overwrite || newFile) {
+            Files.move(part.toPath(), target.toPath(), REPLACE_EXISTING, ATOMIC_MOVE);
+            Files.deleteIfExists(tag.toPath());
+            return;
+        }
+        try (FileChannel source = FileChannel.open(part.toPath(), READ);
+             FileChannel sink = FileChannel.open(target.toPath(), WRITE, APPEND)) {
+            for (long position = 0; position < length; ) {
+                position += source.transferTo(position, length - position, sink);
+            }
+            sink.force(true);
+        }
+        Files.delete(part.toPath());
+        Files.deleteIfExists(tag.toPath());
+    }
+
+    /**
+     * Stops writing, keeping the part file so that the upload can be resumed.
+     */
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    /**
+     * Returns the tag of the body in the part file, or null if there is none.
+     */
+    private String readTag() throws IOException {
+        try {
+            return new String(Files.readAllBytes(tag.toPath()), UTF_8);
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+    }
+}